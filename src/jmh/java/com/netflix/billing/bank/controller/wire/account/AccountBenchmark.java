@@ -0,0 +1,53 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.CASH;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.PROMOTION;
+
+/**
+ * Single threaded cost of the {@link Account} operations, without shards or journal. See
+ * {@link AccountDebitBenchmark} for debits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AccountBenchmark {
+
+    private static final String CUSTOMER = "CUSTOMER_1";
+    private static final Money CENT = new Money(new BigDecimal("0.01"), USD.toString());
+
+    // open credits the account holds while reading its balance
+    @Param({"1", "1000"})
+    public int openCredits;
+
+    private Account account;
+    private long sequence;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        account = new Account();
+        sequence = 0;
+        for (int i = 0; i < openCredits; i++) {
+            account.credit(CUSTOMER, new CreditAmount(PROMOTION, CENT, "SETUP_" + i));
+        }
+    }
+
+    @Benchmark
+    public boolean credit() {
+        return account.credit(CUSTOMER, new CreditAmount(CASH, CENT, "TX_" + sequence++));
+    }
+
+    @Benchmark
+    public CustomerBalance getBalance() {
+        return account.getBalance();
+    }
+}
@@ -0,0 +1,52 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.PROMOTION;
+
+/**
+ * Single threaded cost of {@link Account#debit(String, DebitAmount)} on an account holding many small credits:
+ * drains 10,000 one cent credits with 100 debits of a dollar, each spanning 100 credits. Setting up the account is
+ * not measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 50)
+@Fork(1)
+public class AccountDebitBenchmark {
+
+    private static final String CUSTOMER = "CUSTOMER_1";
+    private static final int CREDITS = 10_000;
+    private static final int DEBITS = 100;
+
+    private Account account;
+    private final DebitAmount[] debits = new DebitAmount[DEBITS];
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        Money cent = new Money(new BigDecimal("0.01"), USD.toString());
+        account = new Account();
+        for (int i = 0; i < CREDITS; i++) {
+            account.credit(CUSTOMER, new CreditAmount(PROMOTION, cent, "TX_" + i));
+        }
+        for (int i = 0; i < DEBITS; i++) {
+            debits[i] = new DebitAmount("INV_" + i, new Money(BigDecimal.ONE, USD.toString()));
+        }
+    }
+
+    @Benchmark
+    public CustomerBalance debitAcrossSmallCredits() {
+        for (DebitAmount debit : debits) {
+            account.debit(CUSTOMER, debit);
+        }
+        return account.getBalance();
+    }
+}
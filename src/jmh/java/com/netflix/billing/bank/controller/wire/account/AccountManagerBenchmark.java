@@ -0,0 +1,91 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.CASH;
+
+/**
+ * Throughput of {@link AccountManager} with every core posting credits and debits, either all to one hot customer
+ * (serialized on its shard) or spread uniformly across many customers. In memory only, no journal.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Threads(Threads.MAX)
+public class AccountManagerBenchmark {
+
+    private static final Money DOLLAR = new Money(BigDecimal.ONE, USD.toString());
+
+    // 1 for a single hot customer
+    @Param({"1", "10000"})
+    public int customers;
+
+    AccountManager accountManager;
+    String[] customerIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        accountManager = new AccountManager();
+        accountManager.accountExecutorService = new AccountExecutorService(
+                Runtime.getRuntime().availableProcessors(), 10);
+        customerIds = new String[customers];
+        for (int i = 0; i < customers; i++) {
+            customerIds[i] = "CUSTOMER_" + i;
+        }
+    }
+
+    // histories grow with every operation, start each iteration from accounts holding a single credit
+    @Setup(Level.Iteration)
+    public void clear() {
+        accountManager.clear();
+        for (String customerId : customerIds) {
+            accountManager.credit(customerId, new CreditAmount(CASH, DOLLAR, "SETUP"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        accountManager.accountExecutorService.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static int nextClient;
+
+        String prefix;
+        long sequence;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            synchronized (Client.class) {
+                prefix = "C" + nextClient++ + "_";
+            }
+        }
+    }
+
+    /**
+     * Credits and then debits a dollar, so balances stay flat while the histories grow
+     */
+    @Benchmark
+    public CustomerBalance creditThenDebit(Client client) {
+        long n = client.sequence++;
+        String customerId = customerIds[(int) (n % customerIds.length)];
+        String id = client.prefix + n;
+        accountManager.credit(customerId, new CreditAmount(CASH, DOLLAR, id));
+        return accountManager.debit(customerId, new DebitAmount(id, DOLLAR));
+    }
+
+    @Benchmark
+    public CustomerBalance getBalance(Client client) {
+        return accountManager.getBalance(customerIds[(int) (client.sequence++ % customerIds.length)]);
+    }
+}
@@ -0,0 +1,71 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.model.AccountState;
+import com.netflix.billing.bank.model.IdempotencyIndex;
+import com.netflix.billing.bank.model.OffHeapArena;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.math.BigDecimal;
+import java.time.Instant;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+
+/**
+ * Reports the heap an {@link Account} retains, per account and per line item: builds many accounts holding the same
+ * number of credits and debits and divides the growth of the live heap by their number. Every id is a fresh string,
+ * as it would be when parsed from a request. Run it with ./gradlew heapFootprint, -Paccounts, -Pcredits and -Pdebits
+ * change the shape measured and -Pstore=offheap measures the accounts of an {@link OffHeapAccountStore}.
+ */
+public class HeapFootprint {
+
+    private static final String CUSTOMER = "CUSTOMER_1";
+
+    public static void main(String[] args) {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int credits = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int debits = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        OffHeapArena arena = new OffHeapArena(1 << 26);
+        AccountStore store = args.length > 3 && args[3].equals("offheap") ? new OffHeapAccountStore(arena)
+                : new HeapAccountStore();
+        Instant transactionDate = Instant.now();
+
+        long before = usedHeap();
+        for (int a = 0; a < accounts; a++) {
+            Account account = store.computeIfAbsent(new String("CUSTOMER_" + a),
+                    () -> new Account(new IdempotencyIndex(), LedgerListener.NONE, store.newLedger()));
+            for (int i = 0; i < credits; i++) {
+                account.credit(CUSTOMER, new CreditAmount(CreditType.values()[i % 3],
+                        new Money(new BigDecimal("10.25"), USD.toString()), new String("TX_" + a + "_" + i)),
+                        transactionDate);
+            }
+            for (int i = 0; i < debits; i++) {
+                account.debit(CUSTOMER, new DebitAmount(new String("INV_" + a + "_" + i),
+                        new Money(new BigDecimal("15.5"), USD.toString())), transactionDate);
+            }
+        }
+        long after = usedHeap();
+
+        long perAccount = (after - before) / accounts;
+        AccountState state = store.get("CUSTOMER_0").getState();
+        int lineItems = state.getCredits() + state.getDebits();
+        System.out.printf("%d accounts with %d credits and %d debit line items%n", accounts, state.getCredits(),
+                state.getDebits());
+        System.out.printf("heap per account:     %,d bytes%n", perAccount);
+        System.out.printf("heap per line item: %,d bytes (including the account's fixed cost)%n",
+                lineItems == 0 ? 0 : perAccount / lineItems);
+        System.out.printf("off-heap per account: %,d bytes%n", arena.getAllocatedBytes() / accounts);
+    }
+
+    // heap in use once garbage is collected, as far as the collector can be asked to
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
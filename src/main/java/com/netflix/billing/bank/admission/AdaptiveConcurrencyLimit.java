@@ -0,0 +1,114 @@
+package com.netflix.billing.bank.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit on the operations in flight at once that follows the latency they are observed to take, in the manner of a
+ * gradient limiter. The shortest latency seen recently stands for the service with empty queues; as long as
+ * operations take about that long the limit grows, once they take markedly longer (work is queueing up) it shrinks
+ * in proportion, so requests are refused up front instead of waiting deep in a queue.
+ */
+public class AdaptiveConcurrencyLimit {
+
+    // latency may exceed the shortest observed one by this factor before the limit shrinks
+    private static final double TOLERANCE = 2.0;
+    // weight of a new estimate in the limit, smooths out single slow operations
+    private static final double SMOOTHING = 0.2;
+    // samples after which the shortest latency is forgotten, so it follows a service that became slower
+    private static final int MIN_LATENCY_WINDOW = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // samples are folded in by whoever gets the lock, the others skip theirs rather than wait
+    private final ReentrantLock update = new ReentrantLock();
+
+    // guarded by update, published for acquire
+    private volatile int limit;
+    private double estimate;
+    private long minLatencyNanos = Long.MAX_VALUE;
+    private int samples;
+
+    /**
+     * @param initialLimit
+     * @param minLimit
+     * @param maxLimit
+     */
+    public AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new Error("Invalid concurrency limit configuration");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.estimate = initialLimit;
+    }
+
+    /**
+     * Takes a slot for an operation
+     *
+     * @return false, taking nothing, when the limit is reached
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Frees the slot of an operation that completed
+     *
+     * @param latencyNanos time the operation took, from acquiring the slot
+     */
+    public void release(long latencyNanos) {
+        inFlight.decrementAndGet();
+        if (!update.tryLock()) {
+            return;
+        }
+        try {
+            if (++samples >= MIN_LATENCY_WINDOW) {
+                samples = 0;
+                minLatencyNanos = latencyNanos;
+            }
+            minLatencyNanos = Math.min(minLatencyNanos, Math.max(1L, latencyNanos));
+            double gradient = Math.min(1.0, TOLERANCE * minLatencyNanos / latencyNanos);
+            // room to grow by, so the limit keeps probing while latency stays flat
+            double headroom = Math.sqrt(estimate);
+            estimate = (1 - SMOOTHING) * estimate + SMOOTHING * (estimate * gradient + headroom);
+            estimate = Math.max(minLimit, Math.min(maxLimit, estimate));
+            limit = (int) estimate;
+        } finally {
+            update.unlock();
+        }
+    }
+
+    /**
+     * Frees the slot of an operation that was dropped before it ran, e.g. because a queue was full. Counts as a sign
+     * of overload and shrinks the limit.
+     */
+    public void drop() {
+        inFlight.decrementAndGet();
+        update.lock();
+        try {
+            estimate = Math.max(minLimit, estimate * 0.9);
+            limit = (int) estimate;
+        } finally {
+            update.unlock();
+        }
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,82 @@
+package com.netflix.billing.bank.admission;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a credit, debit or batch is let in, before it is queued on a shard: first against the customer's
+ * rate limit, then against the service's adaptive concurrency limit. Refusals are {@link OverloadError}s telling
+ * the caller when to try again; operations refused for overload give the customer's permits back.
+ */
+public class AdmissionControl {
+
+    // seconds a caller refused for overload is asked to wait, the limit adapts well within that
+    private static final long OVERLOADED_RETRY_AFTER_SECONDS = 1L;
+
+    private final AdaptiveConcurrencyLimit concurrencyLimit;
+    // null when customers are not rate limited
+    private final CustomerRateLimiter rateLimiter;
+
+    /**
+     * @param concurrencyLimit
+     * @param rateLimiter null to not rate limit customers
+     */
+    public AdmissionControl(AdaptiveConcurrencyLimit concurrencyLimit, CustomerRateLimiter rateLimiter) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Lets operations of given customer in, or refuses them
+     *
+     * @param customerId
+     * @param operations operations offered together, e.g. the size of a batch
+     * @return permit to hand back once the operations completed
+     */
+    public Permit acquire(String customerId, int operations) {
+        if (null != rateLimiter) {
+            long waitNanos = rateLimiter.tryAcquire(customerId, operations);
+            if (waitNanos > 0) {
+                throw new OverloadError(OverloadError.Reason.RATE_LIMITED,
+                        Math.max(1L, TimeUnit.NANOSECONDS.toSeconds(waitNanos + TimeUnit.SECONDS.toNanos(1) - 1)),
+                        "Rate limit exceeded");
+            }
+        }
+        if (!concurrencyLimit.tryAcquire()) {
+            if (null != rateLimiter) {
+                rateLimiter.release(customerId, operations);
+            }
+            throw new OverloadError(OverloadError.Reason.OVERLOADED, OVERLOADED_RETRY_AFTER_SECONDS,
+                    "Service overloaded");
+        }
+        return new Permit(System.nanoTime());
+    }
+
+    public AdaptiveConcurrencyLimit getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Slot of admitted operations in the concurrency limit
+     */
+    public class Permit {
+        private final long acquiredAt;
+
+        private Permit(long acquiredAt) {
+            this.acquiredAt = acquiredAt;
+        }
+
+        /**
+         * The operations completed, successfully or not
+         */
+        public void release() {
+            concurrencyLimit.release(System.nanoTime() - acquiredAt);
+        }
+
+        /**
+         * The operations were dropped before they ran
+         */
+        public void drop() {
+            concurrencyLimit.drop();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.netflix.billing.bank.admission;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Token bucket per customer: a customer may run burst operations at once and then ratePerSecond operations a second.
+ * Buckets that refilled completely are dropped now and then, they are recreated full when the customer comes back.
+ */
+public class CustomerRateLimiter {
+
+    // acquisitions between sweeps of full buckets
+    private static final int SWEEP_INTERVAL = 1 << 16;
+
+    private final double ratePerNano;
+    private final double burst;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicInteger untilSweep = new AtomicInteger(SWEEP_INTERVAL);
+
+    /**
+     * @param ratePerSecond operations a customer may run per second
+     * @param burst operations a customer may run at once, after being idle
+     */
+    public CustomerRateLimiter(double ratePerSecond, int burst) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new Error("Invalid rate limit configuration");
+        }
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+    }
+
+    /**
+     * Takes permits for operations of given customer
+     *
+     * @param customerId
+     * @param permits
+     * @return 0 when taken, otherwise nanoseconds until the customer has enough of them (nothing is taken)
+     */
+    public long tryAcquire(String customerId, int permits) {
+        long now = System.nanoTime();
+        if (untilSweep.decrementAndGet() == 0) {
+            untilSweep.set(SWEEP_INTERVAL);
+            sweep(now);
+        }
+        Bucket bucket = buckets.computeIfAbsent(customerId, id -> new Bucket(burst, now));
+        synchronized (bucket) {
+            bucket.refill(now);
+            // a batch larger than the burst is let through on a full bucket, it then has to wait for the refill
+            double needed = Math.min(permits, burst);
+            if (bucket.tokens < needed) {
+                return (long) Math.ceil((needed - bucket.tokens) / ratePerNano);
+            }
+            bucket.tokens -= permits;
+            return 0L;
+        }
+    }
+
+    /**
+     * Gives back permits taken for operations that were refused afterwards and never ran
+     *
+     * @param customerId
+     * @param permits
+     */
+    public void release(String customerId, int permits) {
+        Bucket bucket = buckets.get(customerId);
+        if (null == bucket) {
+            // swept since, the customer comes back to a full bucket
+            return;
+        }
+        synchronized (bucket) {
+            bucket.tokens = Math.min(burst, bucket.tokens + permits);
+        }
+    }
+
+    private void sweep(long now) {
+        for (Iterator<Bucket> i = buckets.values().iterator(); i.hasNext(); ) {
+            Bucket bucket = i.next();
+            synchronized (bucket) {
+                bucket.refill(now);
+                if (bucket.tokens >= burst) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    private class Bucket {
+        private double tokens;
+        private long refilledAt;
+
+        Bucket(double tokens, long refilledAt) {
+            this.tokens = tokens;
+            this.refilledAt = refilledAt;
+        }
+
+        void refill(long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(burst, tokens + (now - refilledAt) * ratePerNano);
+                refilledAt = now;
+            }
+        }
+    }
+}
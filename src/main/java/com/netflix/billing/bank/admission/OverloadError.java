@@ -0,0 +1,37 @@
+package com.netflix.billing.bank.admission;
+
+/**
+ * Refusal of an operation because the service or the customer is over its limits. Thrown when the operation is
+ * offered, before it is queued, so the caller learns of it at once and can retry later.
+ */
+public class OverloadError extends Error {
+
+    private static final long serialVersionUID = 1L;
+
+    public enum Reason {
+        // the customer exceeded its rate limit
+        RATE_LIMITED,
+        // the service is at its concurrency limit or a queue is full
+        OVERLOADED
+    }
+
+    private final Reason reason;
+    private final long retryAfterSeconds;
+
+    public OverloadError(Reason reason, long retryAfterSeconds, String message) {
+        super(message);
+        this.reason = reason;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /**
+     * Seconds the caller should wait before trying again
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,390 @@
+package com.netflix.billing.bank.binary;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import com.netflix.billing.bank.binary.BinaryProtocol.Request;
+import com.netflix.billing.bank.cluster.ClusterRouter;
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.controller.wire.account.AmountValidator;
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * TCP listener speaking {@link BinaryProtocol}, next to the HTTP endpoints and in front of the same
+ * {@link AccountManager}: credits, debits and batches are validated, admitted, journaled and replicated exactly as
+ * when they are posted over HTTP.
+ *
+ * One event loop thread owns every connection. It decodes the frames read and hands each operation to the account's
+ * shard without waiting for it; the shard completes it and queues the response frame on the connection, and the loop
+ * writes whatever responses are queued, many per write. A connection can so carry any number of requests in flight,
+ * answered as they complete. Once maxInFlight of a connection's requests are unanswered, or answered but not written
+ * because the client is not reading, the loop stops reading that connection until they drop below it again, so a
+ * client can not queue more work than that.
+ *
+ * In cluster mode a customer owned by another node is answered NOT_OWNER with that node rather than forwarded.
+ */
+public class BinaryListener {
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryListener.class);
+
+    private static final String INVALID_INPUT = "Invalid input parameters.";
+    // bytes a connection's read buffer starts with, it grows for larger frames
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // response frames written with one gathering write
+    private static final int WRITE_BATCH_SIZE = 256;
+    // operations accepted in one batch request, as over HTTP
+    private static final int MAX_BATCH_SIZE = 1000;
+    // seconds a client is asked to wait before retrying a request for an account being handed over
+    private static final long HAND_OVER_RETRY_AFTER_SECONDS = 1L;
+
+    private final AccountManager accountManager;
+    private final AmountValidator validator;
+    // null unless in cluster mode
+    private final ClusterRouter clusterRouter;
+    private final int maxInFlight;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread eventLoop;
+    // connections with response frames queued, handed to the event loop by the threads completing requests
+    private final Queue<Connection> ready = new ConcurrentLinkedQueue<>();
+    // whether the event loop was already woken up to handle ready connections
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean running = true;
+
+    /**
+     * Starts listening
+     *
+     * @param accountManager
+     * @param validator
+     * @param clusterRouter null unless in cluster mode
+     * @param port 0 for any free port
+     * @param maxInFlight requests of one connection unanswered before it is no longer read
+     */
+    public BinaryListener(AccountManager accountManager, AmountValidator validator, ClusterRouter clusterRouter,
+                          int port, int maxInFlight) throws IOException {
+        if (null == accountManager || null == validator || port < 0 || maxInFlight <= 0) {
+            throw new Error("Invalid binary listener configuration");
+        }
+        this.accountManager = accountManager;
+        this.validator = validator;
+        this.clusterRouter = clusterRouter;
+        this.maxInFlight = maxInFlight;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.eventLoop = new Thread(this::run, "binary-listener");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+        log.info("Binary protocol listening on port {}", getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            eventLoop.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.isValid()) {
+                        handle((Connection) key.attachment(), key.isReadable(), key.isWritable());
+                    }
+                }
+                Connection connection;
+                while (null != (connection = ready.poll())) {
+                    // cleared first, responses completed from now on queue the connection again
+                    connection.queued.set(false);
+                    if (connection.key.isValid()) {
+                        handle(connection, false, true);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.error("Binary listener event loop failed", e);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            closeQuietly(key);
+        }
+        closeQuietly(server.keyFor(selector));
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Could not close selector", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (null != (channel = server.accept())) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void handle(Connection connection, boolean readable, boolean writable) {
+        try {
+            if (readable && connection.channel.read(connection.in) < 0) {
+                close(connection);
+                return;
+            }
+            if (writable) {
+                write(connection);
+            }
+            // after writing, frames held back while the connection was at its limit are decoded once it is below it
+            if (!decode(connection)) {
+                close(connection);
+                return;
+            }
+            int interestOps = (connection.unanswered.get() < maxInFlight ? SelectionKey.OP_READ : 0)
+                    | (connection.writing.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (connection.key.interestOps() != interestOps) {
+                connection.key.interestOps(interestOps);
+            }
+        } catch (IOException e) {
+            log.debug("Closing binary connection", e);
+            close(connection);
+        }
+    }
+
+    /**
+     * Dispatches the complete frames of the connection's read buffer, as long as it is below its limit
+     *
+     * @param connection
+     * @return false when the connection sent a malformed or oversized frame
+     */
+    private boolean decode(Connection connection) {
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4 && connection.unanswered.get() < maxInFlight) {
+            int length = in.getInt(in.position());
+            if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                log.warn("Binary frame of {} bytes refused", length);
+                return false;
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.position(in.position() + 4);
+            ByteBuffer frame = in.slice();
+            frame.limit(length);
+            in.position(in.position() + length);
+            Request request;
+            try {
+                request = BinaryProtocol.readRequest(frame);
+            } catch (Error e) {
+                log.warn("Binary frame refused: {}", e.getMessage());
+                return false;
+            }
+            dispatch(connection, request);
+        }
+        in.compact();
+        // make room for a frame larger than the buffer, and give the room back once it is read
+        if (in.position() >= 4 && 4 + in.getInt(0) > in.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(4 + in.getInt(0));
+            in.flip();
+            connection.in = grown.put(in);
+        } else if (0 == in.position() && in.capacity() > READ_BUFFER_SIZE) {
+            connection.in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        }
+        return true;
+    }
+
+    private void dispatch(Connection connection, Request request) {
+        connection.unanswered.incrementAndGet();
+        CompletableFuture<ByteBuffer> response;
+        try {
+            response = execute(request);
+        } catch (Exception | Error e) {
+            response = CompletableFuture.completedFuture(failure(request.requestId, e));
+        }
+        response.whenComplete((frame, e) -> respond(connection, null == e ? frame : failure(request.requestId, e)));
+    }
+
+    private CompletableFuture<ByteBuffer> execute(Request request) {
+        long requestId = request.requestId;
+        String customerId = request.customerId;
+        if (null == customerId || customerId.isEmpty()) {
+            return CompletableFuture.completedFuture(BinaryProtocol.error(requestId, INVALID_INPUT));
+        }
+        if (null == clusterRouter) {
+            return submit(request);
+        }
+        // the event loop neither waits for a hand-over nor for a membership change holding the gate, the client retries
+        String owner;
+        try {
+            owner = clusterRouter.acquire(customerId, false, 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Error("Interrupted routing a request", e);
+        }
+        if (null == owner) {
+            return CompletableFuture.completedFuture(BinaryProtocol.overloaded(requestId, BinaryProtocol.OVERLOADED,
+                    HAND_OVER_RETRY_AFTER_SECONDS, "Account is being handed over"));
+        }
+        if (!clusterRouter.getSelf().equals(owner)) {
+            return CompletableFuture.completedFuture(BinaryProtocol.notOwner(requestId, owner));
+        }
+        try {
+            return submit(request);
+        } finally {
+            clusterRouter.release(customerId);
+        }
+    }
+
+    // hands a request for a customer served here to the account's shard
+    private CompletableFuture<ByteBuffer> submit(Request request) {
+        long requestId = request.requestId;
+        String customerId = request.customerId;
+        switch (request.op) {
+            case BinaryProtocol.CREDIT:
+                if (!validator.validateCredit(request.operation.getCredit())) {
+                    return CompletableFuture.completedFuture(BinaryProtocol.error(requestId, INVALID_INPUT));
+                }
+                return accountManager.creditAsync(customerId, request.operation.getCredit())
+                        .thenApply(balance -> BinaryProtocol.ok(requestId, balance));
+            case BinaryProtocol.DEBIT:
+                if (!validator.validateDebit(request.operation.getDebit())) {
+                    return CompletableFuture.completedFuture(BinaryProtocol.error(requestId, INVALID_INPUT));
+                }
+                return accountManager.debitAsync(customerId, request.operation.getDebit())
+                        .thenApply(balance -> BinaryProtocol.ok(requestId, balance));
+            case BinaryProtocol.BALANCE:
+                return accountManager.getBalanceAsync(customerId)
+                        .thenApply(balance -> BinaryProtocol.ok(requestId, balance));
+            default:
+                if (request.operations.isEmpty() || request.operations.size() > MAX_BATCH_SIZE) {
+                    return CompletableFuture.completedFuture(BinaryProtocol.error(requestId, INVALID_INPUT));
+                }
+                for (BatchOperation operation : request.operations) {
+                    if (!validator.validateOperation(operation)) {
+                        return CompletableFuture.completedFuture(BinaryProtocol.error(requestId, INVALID_INPUT));
+                    }
+                }
+                return accountManager.batchAsync(customerId, request.operations)
+                        .thenApply(result -> BinaryProtocol.ok(requestId, result));
+        }
+    }
+
+    private static ByteBuffer failure(long requestId, Throwable e) {
+        Throwable cause = e instanceof CompletionException && null != e.getCause() ? e.getCause() : e;
+        if (cause instanceof OverloadError) {
+            OverloadError overload = (OverloadError) cause;
+            return BinaryProtocol.overloaded(requestId, overload.getReason() == OverloadError.Reason.RATE_LIMITED
+                            ? BinaryProtocol.RATE_LIMITED : BinaryProtocol.OVERLOADED,
+                    overload.getRetryAfterSeconds(), overload.getMessage());
+        }
+        if (cause instanceof Error) {
+            return BinaryProtocol.error(requestId, cause.getMessage());
+        }
+        log.error("Binary request failed", cause);
+        return BinaryProtocol.error(requestId, "Internal error");
+    }
+
+    // called by whichever thread completed the request
+    private void respond(Connection connection, ByteBuffer frame) {
+        connection.responses.add(frame);
+        if (connection.queued.compareAndSet(false, true)) {
+            ready.add(connection);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void write(Connection connection) throws IOException {
+        ArrayDeque<ByteBuffer> writing = connection.writing;
+        while (true) {
+            ByteBuffer frame;
+            while (writing.size() < WRITE_BATCH_SIZE && null != (frame = connection.responses.poll())) {
+                writing.add(frame);
+            }
+            if (writing.isEmpty()) {
+                return;
+            }
+            connection.channel.write(writing.toArray(new ByteBuffer[0]));
+            while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                writing.poll();
+                connection.unanswered.decrementAndGet();
+            }
+            if (!writing.isEmpty()) {
+                // the socket buffer is full, wait for OP_WRITE
+                return;
+            }
+        }
+    }
+
+    private void close(Connection connection) {
+        closeQuietly(connection.key);
+        connection.responses.clear();
+        connection.writing.clear();
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        if (null == key) {
+            return;
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("Could not close channel", e);
+        }
+    }
+
+    private static final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // bytes read and not decoded yet, in write mode
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        // response frames completed and not picked up by the event loop yet
+        private final Queue<ByteBuffer> responses = new ConcurrentLinkedQueue<>();
+        // response frames being written, only touched by the event loop
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        // requests dispatched whose response is not written yet
+        private final AtomicInteger unanswered = new AtomicInteger();
+        // whether the connection is in the ready queue
+        private final AtomicBoolean queued = new AtomicBoolean();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
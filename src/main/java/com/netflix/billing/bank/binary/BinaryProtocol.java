@@ -0,0 +1,369 @@
+package com.netflix.billing.bank.binary;
+
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.Money;
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
+import com.netflix.billing.bank.controller.wire.batch.BatchResult;
+import com.netflix.billing.bank.controller.wire.batch.OperationOutcome;
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.model.Amounts;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of credits, debits, balance reads and batches, for callers sending many small operations.
+ *
+ * Every message is a frame: an int length followed by that many bytes. A request frame holds a long requestId chosen
+ * by the caller, an op byte, the customerId and the op's fields; the response frame starts with the same requestId and
+ * a status byte. Requests are answered as they complete, not in the order sent, so one connection can carry many
+ * operations in flight and the requestId matches them up. All numbers are big-endian, strings are an unsigned short
+ * length and UTF-8 bytes (length 0xffff for null), amounts are longs of {@link Amounts} minor units.
+ *
+ * <pre>
+ * CREDIT  creditType:byte units:long currency:string transactionId:string expiresAt:long (epoch millis, 0 for none)
+ * DEBIT   invoiceId:string units:long currency:string
+ * BALANCE
+ * BATCH   count:ushort, then per operation CREDIT or DEBIT:byte and its fields as above
+ *
+ * OK            balance, for a BATCH preceded by count:ushort and an OperationOutcome ordinal:byte per operation
+ * ERROR         message:string
+ * OVERLOADED    retryAfterSeconds:int message:string, the node is overloaded
+ * RATE_LIMITED  retryAfterSeconds:int message:string, the customer's rate limit was hit
+ * NOT_OWNER     owner:string, another node of the cluster owns the customer
+ *
+ * balance       version:long types:byte, per CreditType its ordinal:byte count:int and count (units:long currency:string)
+ * </pre>
+ */
+public final class BinaryProtocol {
+
+    // request ops
+    public static final byte CREDIT = 1;
+    public static final byte DEBIT = 2;
+    public static final byte BALANCE = 3;
+    public static final byte BATCH = 4;
+
+    // response statuses
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+    public static final byte OVERLOADED = 2;
+    public static final byte RATE_LIMITED = 3;
+    public static final byte NOT_OWNER = 4;
+
+    // largest frame accepted, a connection sending a larger one is closed
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+    // string length marking null
+    private static final int NULL_STRING = 0xffff;
+
+    private static final CreditType[] CREDIT_TYPES = CreditType.values();
+    private static final OperationOutcome[] OUTCOMES = OperationOutcome.values();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * A decoded request frame
+     */
+    public static final class Request {
+        public final long requestId;
+        public final byte op;
+        public final String customerId;
+        // set for CREDIT and DEBIT
+        public final BatchOperation operation;
+        // set for BATCH
+        public final List<BatchOperation> operations;
+
+        Request(long requestId, byte op, String customerId, BatchOperation operation,
+                List<BatchOperation> operations) {
+            this.requestId = requestId;
+            this.op = op;
+            this.customerId = customerId;
+            this.operation = operation;
+            this.operations = operations;
+        }
+    }
+
+    /**
+     * Decodes the body of a request frame, the bytes after its length
+     *
+     * @param frame
+     * @return Request
+     * @throws Error when the frame is malformed
+     */
+    public static Request readRequest(ByteBuffer frame) {
+        try {
+            long requestId = frame.getLong();
+            byte op = frame.get();
+            String customerId = readString(frame);
+            BatchOperation operation = null;
+            List<BatchOperation> operations = null;
+            switch (op) {
+                case CREDIT:
+                case DEBIT:
+                    operation = readOperation(op, frame);
+                    break;
+                case BALANCE:
+                    break;
+                case BATCH:
+                    int count = Short.toUnsignedInt(frame.getShort());
+                    operations = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        operations.add(readOperation(frame.get(), frame));
+                    }
+                    break;
+                default:
+                    throw new Error("Unknown op " + op);
+            }
+            if (frame.hasRemaining()) {
+                throw new Error("Trailing bytes in request frame");
+            }
+            return new Request(requestId, op, customerId, operation, operations);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new Error("Malformed request frame");
+        }
+    }
+
+    /**
+     * Encodes a credit request frame
+     */
+    public static ByteBuffer credit(long requestId, String customerId, CreditAmount credit) {
+        ByteBuffer frame = start(requestId, CREDIT, customerId);
+        frame = writeOperation(frame, BatchOperation.credit(credit));
+        return finish(frame);
+    }
+
+    /**
+     * Encodes a debit request frame
+     */
+    public static ByteBuffer debit(long requestId, String customerId, DebitAmount debit) {
+        ByteBuffer frame = start(requestId, DEBIT, customerId);
+        frame = writeOperation(frame, BatchOperation.debit(debit));
+        return finish(frame);
+    }
+
+    /**
+     * Encodes a balance request frame
+     */
+    public static ByteBuffer balance(long requestId, String customerId) {
+        return finish(start(requestId, BALANCE, customerId));
+    }
+
+    /**
+     * Encodes a batch request frame
+     */
+    public static ByteBuffer batch(long requestId, String customerId, List<BatchOperation> operations) {
+        ByteBuffer frame = start(requestId, BATCH, customerId);
+        frame.putShort((short) operations.size());
+        for (BatchOperation operation : operations) {
+            frame = ensure(frame, 1);
+            frame.put(null != operation.getCredit() ? CREDIT : DEBIT);
+            frame = writeOperation(frame, operation);
+        }
+        return finish(frame);
+    }
+
+    /**
+     * Encodes the response frame of a credit, debit or balance read
+     */
+    public static ByteBuffer ok(long requestId, CustomerBalance balance) {
+        ByteBuffer frame = response(requestId, OK);
+        return finish(writeBalance(frame, balance));
+    }
+
+    /**
+     * Encodes the response frame of a batch
+     */
+    public static ByteBuffer ok(long requestId, BatchResult result) {
+        ByteBuffer frame = ensure(response(requestId, OK), 2 + result.getOutcomes().size());
+        frame.putShort((short) result.getOutcomes().size());
+        for (OperationOutcome outcome : result.getOutcomes()) {
+            frame.put((byte) outcome.ordinal());
+        }
+        return finish(writeBalance(frame, result.getBalance()));
+    }
+
+    public static ByteBuffer error(long requestId, String message) {
+        return finish(writeString(response(requestId, ERROR), message));
+    }
+
+    public static ByteBuffer overloaded(long requestId, byte status, long retryAfterSeconds, String message) {
+        ByteBuffer frame = response(requestId, status);
+        frame.putInt((int) Math.min(Integer.MAX_VALUE, retryAfterSeconds));
+        return finish(writeString(frame, message));
+    }
+
+    public static ByteBuffer notOwner(long requestId, String owner) {
+        return finish(writeString(response(requestId, NOT_OWNER), owner));
+    }
+
+    /**
+     * Reads the balance of an OK response
+     */
+    public static CustomerBalance readBalance(ByteBuffer frame) {
+        CustomerBalance balance = new CustomerBalance();
+        balance.setVersion(frame.getLong());
+        Map<CreditType, List<Money>> balanceAmounts = new EnumMap<>(CreditType.class);
+        int types = frame.get();
+        for (int i = 0; i < types; i++) {
+            CreditType creditType = CREDIT_TYPES[frame.get()];
+            int count = frame.getInt();
+            List<Money> moneyList = new ArrayList<>(count);
+            for (int j = 0; j < count; j++) {
+                long units = frame.getLong();
+                moneyList.add(new Money(Amounts.toDecimal(units), readString(frame)));
+            }
+            balanceAmounts.put(creditType, moneyList);
+        }
+        balance.setBalanceAmounts(balanceAmounts);
+        return balance;
+    }
+
+    /**
+     * Reads the outcomes and balance of a batch's OK response
+     */
+    public static BatchResult readBatchResult(ByteBuffer frame) {
+        int count = Short.toUnsignedInt(frame.getShort());
+        List<OperationOutcome> outcomes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            outcomes.add(OUTCOMES[frame.get()]);
+        }
+        return new BatchResult(outcomes, readBalance(frame));
+    }
+
+    public static String readString(ByteBuffer frame) {
+        int length = Short.toUnsignedInt(frame.getShort());
+        if (NULL_STRING == length) {
+            return null;
+        }
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length,
+                StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+
+    private static BatchOperation readOperation(byte op, ByteBuffer frame) {
+        if (CREDIT == op) {
+            int creditType = frame.get();
+            if (creditType < 0 || creditType >= CREDIT_TYPES.length) {
+                throw new Error("Unknown credit type " + creditType);
+            }
+            long units = frame.getLong();
+            String currency = readString(frame);
+            String transactionId = readString(frame);
+            long expiresAt = frame.getLong();
+            CreditAmount credit = new CreditAmount(CREDIT_TYPES[creditType],
+                    new Money(Amounts.toDecimal(units), currency), transactionId);
+            if (expiresAt > 0) {
+                credit.setExpiresAt(Instant.ofEpochMilli(expiresAt));
+            }
+            return BatchOperation.credit(credit);
+        }
+        if (DEBIT == op) {
+            String invoiceId = readString(frame);
+            long units = frame.getLong();
+            return BatchOperation.debit(new DebitAmount(invoiceId, new Money(Amounts.toDecimal(units),
+                    readString(frame))));
+        }
+        throw new Error("Unknown batch op " + op);
+    }
+
+    private static ByteBuffer writeOperation(ByteBuffer frame, BatchOperation operation) {
+        if (null != operation.getCredit()) {
+            CreditAmount credit = operation.getCredit();
+            frame = ensure(frame, 1 + 8);
+            frame.put((byte) credit.getCreditType().ordinal());
+            frame.putLong(Amounts.toUnits(credit.getMoney().getAmount()));
+            frame = writeString(frame, credit.getMoney().getCurrency());
+            frame = writeString(frame, credit.getTransactionId());
+            frame = ensure(frame, 8);
+            frame.putLong(null == credit.getExpiresAt() ? 0L : credit.getExpiresAt().toEpochMilli());
+        } else {
+            DebitAmount debit = operation.getDebit();
+            frame = writeString(frame, debit.getInvoiceId());
+            frame = ensure(frame, 8);
+            frame.putLong(Amounts.toUnits(debit.getMoney().getAmount()));
+            frame = writeString(frame, debit.getMoney().getCurrency());
+        }
+        return frame;
+    }
+
+    private static ByteBuffer writeBalance(ByteBuffer frame, CustomerBalance balance) {
+        Map<CreditType, List<Money>> balanceAmounts = balance.getBalanceAmounts();
+        frame = ensure(frame, 9);
+        frame.putLong(balance.getVersion());
+        frame.put((byte) balanceAmounts.size());
+        for (Map.Entry<CreditType, List<Money>> amounts : balanceAmounts.entrySet()) {
+            frame = ensure(frame, 5);
+            frame.put((byte) amounts.getKey().ordinal());
+            frame.putInt(amounts.getValue().size());
+            for (Money money : amounts.getValue()) {
+                frame = ensure(frame, 8);
+                frame.putLong(Amounts.toUnits(money.getAmount()));
+                frame = writeString(frame, money.getCurrency());
+            }
+        }
+        return frame;
+    }
+
+    private static ByteBuffer writeString(ByteBuffer frame, String value) {
+        if (null == value) {
+            frame = ensure(frame, 2);
+            frame.putShort((short) NULL_STRING);
+            return frame;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length >= NULL_STRING) {
+            throw new Error("String too long for the binary protocol");
+        }
+        frame = ensure(frame, 2 + utf8.length);
+        frame.putShort((short) utf8.length);
+        frame.put(utf8);
+        return frame;
+    }
+
+    // a frame with room for its length, to be filled in by finish
+    private static ByteBuffer start(long requestId, byte op, String customerId) {
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        frame.putInt(0);
+        frame.putLong(requestId);
+        frame.put(op);
+        return writeString(frame, customerId);
+    }
+
+    private static ByteBuffer response(long requestId, byte status) {
+        ByteBuffer frame = ByteBuffer.allocate(64);
+        frame.putInt(0);
+        frame.putLong(requestId);
+        frame.put(status);
+        return frame;
+    }
+
+    // fills in the length and flips the frame for writing
+    private static ByteBuffer finish(ByteBuffer frame) {
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        return frame;
+    }
+
+    // returns frame, or a copy twice as large, with room for bytes more
+    private static ByteBuffer ensure(ByteBuffer frame, int bytes) {
+        if (frame.remaining() >= bytes) {
+            return frame;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * frame.capacity(), frame.position() + bytes));
+        frame.flip();
+        grown.put(frame);
+        return grown;
+    }
+}
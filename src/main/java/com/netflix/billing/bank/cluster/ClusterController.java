@@ -0,0 +1,64 @@
+package com.netflix.billing.bank.cluster;
+
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Internal endpoints nodes of a cluster use to manage membership and move accounts, only mapped in cluster mode.
+ */
+@RestController
+@ConditionalOnProperty("CLUSTER_NODES")
+@RequestMapping("cluster")
+public class ClusterController {
+
+    @Autowired
+    public ClusterRouter router;
+
+    @Autowired
+    public AccountManager accountManager;
+
+    /**
+     *
+     * @return Every node of the cluster as this node knows it.
+     */
+    @GetMapping("members")
+    public List<String> getMembers() {
+        return router.getMembers();
+    }
+
+    /**
+     * Apply to every node, new ones first: each node hands the accounts it no longer owns over to their new owner.
+     *
+     * @param members Every node of the cluster, host:port, including this one.
+     * @return How many accounts this node handed over.
+     */
+    @PutMapping("members")
+    public int setMembers(@RequestBody List<String> members) {
+        return router.setMembers(members);
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param image The account, as imaged by the node handing it over.
+     */
+    @PutMapping(value = "accounts/{customerId}", consumes = "application/octet-stream")
+    public void attachAccount(@PathVariable String customerId, @RequestBody byte[] image) {
+        accountManager.attachAccount(customerId, image);
+    }
+
+    /**
+     *
+     * @param node The node reporting, as it marks the requests it sends.
+     * @param members The membership it applied, comma separated.
+     */
+    @PutMapping(value = "handovers", consumes = "text/plain")
+    public void handedOver(@RequestHeader(ClusterRouter.FORWARDED_HEADER) String node, @RequestBody String members) {
+        router.handedOver(node, Arrays.asList(members.split(",")));
+    }
+}
@@ -0,0 +1,127 @@
+package com.netflix.billing.bank.cluster;
+
+import org.springframework.util.StreamUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UriUtils;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Forwards customer requests to the node owning the customer, so a client can call any node. The request is replayed
+ * as is over plain HTTP and the owner's answer relayed back unchanged, streamed responses included. Requests another
+ * node forwarded here are always served locally, even if the membership this node knows of disagrees. Requests for a
+ * customer being handed over to or from this node wait for the hand-over, and are refused with 503 if it takes longer
+ * than the cluster timeout.
+ */
+public class ClusterForwardingFilter extends OncePerRequestFilter {
+
+    // customer endpoints, the customerId is the first path segment after /customer/
+    private static final Pattern CUSTOMER_PATH = Pattern.compile("^/customer/([^/]+)(/.*)?$");
+    private static final int BUFFER_SIZE = 8192;
+    // seconds a client is asked to wait before retrying a request held by a hand-over for too long
+    private static final int HAND_OVER_RETRY_AFTER_SECONDS = 1;
+
+    private final ClusterRouter router;
+    // how long a request waits for the hand-over of its customer
+    private final long waitMillis;
+
+    /**
+     * @param router
+     * @param waitMillis
+     */
+    public ClusterForwardingFilter(ClusterRouter router, long waitMillis) {
+        this.router = router;
+        this.waitMillis = waitMillis;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        Matcher customer = CUSTOMER_PATH.matcher(path);
+        if (!customer.matches()) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String customerId = UriUtils.decode(customer.group(1), StandardCharsets.UTF_8);
+        String owner;
+        try {
+            owner = router.acquire(customerId, null != request.getHeader(ClusterRouter.FORWARDED_HEADER), waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted waiting for the hand-over of " + customerId, e);
+        }
+        if (null == owner) {
+            response.setHeader("Retry-After", String.valueOf(HAND_OVER_RETRY_AFTER_SECONDS));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Account is being handed over");
+            return;
+        }
+        if (router.getSelf().equals(owner)) {
+            // the gate is let go as soon as the request's operation reached its shard, this only covers requests that
+            // never submit one, a streamed response does not hold up a hand-over
+            try {
+                chain.doFilter(request, response);
+            } finally {
+                router.release(customerId);
+            }
+            return;
+        }
+        forward(owner, request, response);
+    }
+
+    private void forward(String owner, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String query = request.getQueryString();
+        HttpURLConnection connection = router.open(owner,
+                request.getRequestURI() + (null == query ? "" : "?" + query), request.getMethod());
+        if (null != request.getHeader("Accept")) {
+            connection.setRequestProperty("Accept", request.getHeader("Accept"));
+        }
+        try {
+            if (null != request.getContentType()) {
+                connection.setRequestProperty("Content-Type", request.getContentType());
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    StreamUtils.copy(request.getInputStream(), out);
+                }
+            }
+            int status = connection.getResponseCode();
+            response.setStatus(status);
+            if (null != connection.getContentType()) {
+                response.setContentType(connection.getContentType());
+            }
+            InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (null == in) {
+                return;
+            }
+            try {
+                // relay chunk by chunk, a streamed history reaches the client as the owner writes it
+                OutputStream out = response.getOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (int read; (read = in.read(buffer)) >= 0; ) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (!response.isCommitted()) {
+                response.sendError(HttpServletResponse.SC_BAD_GATEWAY, "Owner " + owner + " unreachable");
+                return;
+            }
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
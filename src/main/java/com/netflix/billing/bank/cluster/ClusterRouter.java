@@ -0,0 +1,391 @@
+package com.netflix.billing.bank.cluster;
+
+import com.netflix.billing.bank.controller.wire.account.AccountExecutorService;
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.util.UriUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Knows which node of the cluster owns every customer and moves accounts between nodes when the membership changes.
+ *
+ * Membership starts from the static list in configuration and can be replaced at runtime on every node, new nodes
+ * first. The accounts a node no longer owns are then handed over one by one: each keeps being served where it is until
+ * its hand-over starts, requests for it are held while its image is on the way and go to the new owner once it took
+ * the account over. The new owner in turn holds requests for the customers it gains until every node that owned them
+ * before reported its hand-over done, so no request creates an empty account ahead of the image.
+ */
+public class ClusterRouter {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterRouter.class);
+
+    // header marking a request forwarded by another node, always served where it lands so it cannot loop
+    public static final String FORWARDED_HEADER = "X-Billing-Forwarded-By";
+    // stripes of the gates ordering requests dispatched here ahead of the hand-over of their customer
+    private static final int GATE_STRIPES = 64;
+
+    // address of this node, as listed in the membership
+    private final String self;
+    // points per node on the ring
+    private final int virtualNodes;
+    // connect and read timeout of calls to other nodes
+    private final int timeoutMillis;
+    // how long customers gained are held for the nodes that owned them to report their hand-over done
+    private final long handOverTimeoutMillis;
+    private final AccountManager accountManager;
+    // replaced, never mutated, when the membership changes
+    private volatile HashRing ring;
+    // read locked until the operation of a request dispatched here is submitted to its shard, write locked to start
+    // the hand-over of a customer
+    private final ReadWriteLock[] gates = new ReadWriteLock[GATE_STRIPES];
+    // customer whose gate the current thread read locked, until its operation is submitted or the request ends
+    private final ThreadLocal<String> held = new ThreadLocal<>();
+    // customers with an account here the ring has on another node: not handed over yet, or kept after a failure;
+    // replaced when the membership changes
+    private volatile Set<String> kept = ConcurrentHashMap.newKeySet();
+    // customers being handed over from this node, completed once the new owner took the account or it was kept
+    private final Map<String, CompletableFuture<Void>> leaving = new ConcurrentHashMap<>();
+    // ring before the last membership change, owners of the customers this node gained
+    private volatile HashRing previous;
+    // nodes handing customers over to this one, completed once they report done
+    private volatile Map<String, CompletableFuture<Void>> arriving = Collections.emptyMap();
+    // System.nanoTime() customers gained stop being held at, whether their previous owner reported or not
+    private volatile long arrivingDeadline;
+    // membership each node last reported its hand-over done for, guarded by itself
+    private final Map<String, Set<String>> handedOver = new HashMap<>();
+
+    /**
+     * @param self
+     * @param members every node of the cluster, including self
+     * @param previousMembers membership before this node joined, its customers are held as after a change from it;
+     *                        empty if not joining
+     * @param virtualNodes
+     * @param timeoutMillis
+     * @param handOverTimeoutMillis
+     * @param accountManager
+     * @param accountExecutorService shards of accountManager, a request's gate is released once it submitted there
+     */
+    public ClusterRouter(String self, List<String> members, List<String> previousMembers, int virtualNodes,
+                         int timeoutMillis, long handOverTimeoutMillis, AccountManager accountManager,
+                         AccountExecutorService accountExecutorService) {
+        if (null == self || self.isEmpty() || timeoutMillis <= 0 || handOverTimeoutMillis <= 0 ||
+                !members.contains(self)) {
+            throw new Error("Invalid cluster configuration");
+        }
+        this.self = self;
+        this.virtualNodes = virtualNodes;
+        this.timeoutMillis = timeoutMillis;
+        this.handOverTimeoutMillis = handOverTimeoutMillis;
+        this.accountManager = accountManager;
+        this.ring = new HashRing(members, virtualNodes);
+        for (int i = 0; i < GATE_STRIPES; i++) {
+            gates[i] = new ReentrantReadWriteLock();
+        }
+        if (!previousMembers.isEmpty()) {
+            expectHandOvers(new HashRing(previousMembers, virtualNodes), ring);
+        }
+        accountExecutorService.setSubmitListener(this::release);
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    public List<String> getMembers() {
+        return ring.getNodes();
+    }
+
+    /**
+     * Returns the node owning given customer
+     *
+     * @param customerId
+     * @return node address
+     */
+    public String ownerOf(String customerId) {
+        return ring.ownerOf(customerId);
+    }
+
+    public boolean isLocal(String customerId) {
+        return self.equals(ring.ownerOf(customerId));
+    }
+
+    /**
+     * Returns the node to serve a request for given customer on, waiting while the customer is handed over to or
+     * from this node. When that is this node, the customer's hand-over is held off until the operation the request
+     * submits reached the account's shard, ahead of a detach, or until {@link #release(String)}.
+     *
+     * @param customerId
+     * @param forwarded whether another node forwarded the request, those are served here once no longer held
+     * @param waitMillis how long to wait for a hand-over or a membership change, 0 not to block at all
+     * @return node address, null when the customer or the membership is still being changed
+     */
+    public String acquire(String customerId, boolean forwarded, long waitMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        ReadWriteLock gate = gateOf(customerId);
+        while (true) {
+            CompletableFuture<Void> handOver = handOverOf(customerId);
+            if (null == handOver) {
+                // a hand-over starting or the membership being swapped holds the gate only briefly, but the event
+                // loop of the binary listener must not block on it
+                if (!gate.readLock().tryLock(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    return null;
+                }
+                if (null == handOverOf(customerId)) {
+                    String owner = forwarded || kept.contains(customerId) ? self : ring.ownerOf(customerId);
+                    if (self.equals(owner)) {
+                        held.set(customerId);
+                    } else {
+                        gate.readLock().unlock();
+                    }
+                    return owner;
+                }
+                gate.readLock().unlock();
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            try {
+                handOver.get(remaining, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (ExecutionException e) {
+                // never completed exceptionally
+            }
+        }
+    }
+
+    /**
+     * Lets the hand-over of given customer start again, once a request {@link #acquire(String, boolean, long)}
+     * returned this node for was submitted to the account's shard or ended. Does nothing when the current thread no
+     * longer holds the customer's gate.
+     *
+     * @param customerId
+     */
+    public void release(String customerId) {
+        if (customerId.equals(held.get())) {
+            held.remove();
+            gateOf(customerId).readLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the membership and hands the accounts now owned by other nodes over to them, then reports the
+     * hand-over done to every other node. Accounts a node refuses or cannot be reached for stay here, are still served
+     * here, and are logged.
+     *
+     * @param members every node of the cluster, including self
+     * @return number of accounts handed over
+     */
+    public synchronized int setMembers(List<String> members) {
+        if (null == members || !members.contains(self)) {
+            throw new Error("Invalid cluster membership");
+        }
+        HashRing next = new HashRing(members, virtualNodes);
+        // listed before the gates are closed, accounts created in between are picked up after the swap
+        List<String> moving = new ArrayList<>();
+        Set<String> keeping = ConcurrentHashMap.newKeySet();
+        for (String customerId : accountManager.getCustomerIds()) {
+            if (!self.equals(next.ownerOf(customerId))) {
+                keeping.add(customerId);
+                moving.add(customerId);
+            }
+        }
+        for (ReadWriteLock gate : gates) {
+            gate.writeLock().lock();
+        }
+        try {
+            // every request dispatched so far was submitted to its shard, the ones after this see the new ring
+            kept = keeping;
+            expectHandOvers(ring, next);
+            ring = next;
+        } finally {
+            for (ReadWriteLock gate : gates) {
+                gate.writeLock().unlock();
+            }
+        }
+
+        int moved = 0;
+        for (String customerId : moving) {
+            if (handOver(customerId, next.ownerOf(customerId))) {
+                moved++;
+            }
+        }
+        // accounts created by requests dispatched just before the ring was swapped, their operations were still queued
+        for (String customerId : accountManager.getCustomerIds()) {
+            if (!self.equals(next.ownerOf(customerId)) && !kept.contains(customerId) &&
+                    handOver(customerId, next.ownerOf(customerId))) {
+                moved++;
+            }
+        }
+        for (String node : next.getNodes()) {
+            if (!self.equals(node)) {
+                reportHandedOver(node, next.getNodes());
+            }
+        }
+        log.info("Cluster membership {} applied, {} accounts handed over", next.getNodes(), moved);
+        return moved;
+    }
+
+    /**
+     * Records that node handed over every account it held of the customers this node owns under members
+     *
+     * @param node
+     * @param members membership node applied
+     */
+    public void handedOver(String node, List<String> members) {
+        synchronized (handedOver) {
+            handedOver.put(node, new TreeSet<>(members));
+            CompletableFuture<Void> pending = arriving.get(node);
+            if (null != pending && new TreeSet<>(ring.getNodes()).equals(handedOver.get(node))) {
+                pending.complete(null);
+            }
+        }
+    }
+
+    // holds requests for the customers next gains from the other nodes of before until those report done
+    private void expectHandOvers(HashRing before, HashRing next) {
+        synchronized (handedOver) {
+            Set<String> members = new TreeSet<>(next.getNodes());
+            Map<String, CompletableFuture<Void>> pending = new HashMap<>();
+            for (String node : before.getNodes()) {
+                if (self.equals(node)) {
+                    continue;
+                }
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                if (members.equals(handedOver.get(node))) {
+                    done.complete(null);
+                }
+                pending.put(node, done);
+            }
+            previous = before;
+            arrivingDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(handOverTimeoutMillis);
+            arriving = pending;
+        }
+    }
+
+    // hands the account of given customer over, requests for it are held meanwhile
+    private boolean handOver(String customerId, String owner) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        ReadWriteLock gate = gateOf(customerId);
+        gate.writeLock().lock();
+        try {
+            leaving.put(customerId, done);
+            kept.remove(customerId);
+        } finally {
+            gate.writeLock().unlock();
+        }
+        try {
+            byte[] image = accountManager.detachAccount(customerId);
+            if (null == image) {
+                return false;
+            }
+            try {
+                send(owner, customerId, image);
+                return true;
+            } catch (IOException | Error e) {
+                accountManager.attachAccount(customerId, image);
+                kept.add(customerId);
+                log.error("Handing account of {} over to {} failed, kept on {}", customerId, owner, self, e);
+                return false;
+            }
+        } finally {
+            leaving.remove(customerId);
+            done.complete(null);
+        }
+    }
+
+    // the hand-over a request for given customer has to wait for, null if none
+    private CompletableFuture<Void> handOverOf(String customerId) {
+        CompletableFuture<Void> handOver = leaving.get(customerId);
+        if (null != handOver) {
+            return handOver;
+        }
+        HashRing before = previous;
+        if (null == before || System.nanoTime() - arrivingDeadline > 0 || !isLocal(customerId)) {
+            return null;
+        }
+        handOver = arriving.get(before.ownerOf(customerId));
+        return null == handOver || handOver.isDone() ? null : handOver;
+    }
+
+    private ReadWriteLock gateOf(String customerId) {
+        return gates[Math.floorMod(customerId.hashCode(), GATE_STRIPES)];
+    }
+
+    /**
+     * Opens a connection to the same path on another node
+     *
+     * @param node
+     * @param path request path and query, starting with /
+     * @param method
+     * @return connection, marked as forwarded by this node
+     */
+    public HttpURLConnection open(String node, String path, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + node + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty(FORWARDED_HEADER, self);
+        return connection;
+    }
+
+    private void send(String node, String customerId, byte[] image) throws IOException {
+        String path = "/cluster/accounts/" + UriUtils.encodePathSegment(customerId, StandardCharsets.UTF_8);
+        HttpURLConnection connection = open(node, path, "PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(image.length);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(image);
+        }
+        int status = connection.getResponseCode();
+        connection.disconnect();
+        if (status / 100 != 2) {
+            throw new IOException("Node " + node + " answered " + status);
+        }
+    }
+
+    private void reportHandedOver(String node, List<String> members) {
+        try {
+            HttpURLConnection connection = open(node, "/cluster/handovers", "PUT");
+            byte[] body = String.join(",", members).getBytes(StandardCharsets.UTF_8);
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "text/plain");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            connection.disconnect();
+            if (status / 100 != 2) {
+                throw new IOException("Node " + node + " answered " + status);
+            }
+        } catch (IOException e) {
+            log.error("Reporting hand-over done to {} failed, it holds the customers it gained until it times out",
+                    node, e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.netflix.billing.bank.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Immutable consistent-hash ring assigning customerIds to nodes. Every node is placed on the ring at a number of
+ * virtual points, a customer belongs to the node of the first point at or after its own hash. Adding or removing a
+ * node only moves the customers on the arcs it gains or loses, about 1/n of them.
+ *
+ * The ring depends only on the set of nodes, not on the order they are listed in, so nodes configured with the same
+ * membership agree on every owner.
+ */
+public final class HashRing {
+
+    // sorted node names
+    private final List<String> nodes;
+    // points on the ring, ascending, and the node owning each
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * @param nodes node addresses, host:port
+     * @param virtualNodes points placed on the ring per node
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (null == nodes || nodes.isEmpty() || virtualNodes <= 0) {
+            throw new Error("Invalid cluster membership");
+        }
+        TreeSet<String> sorted = new TreeSet<>(nodes);
+        // a point two nodes both hash to goes to the first of them, on every node alike
+        TreeMap<Long, String> ring = new TreeMap<>();
+        for (String node : sorted) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.putIfAbsent(hash(node + "#" + i), node);
+            }
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(sorted));
+        this.points = new long[ring.size()];
+        this.owners = new String[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            points[i] = point.getKey();
+            owners[i++] = point.getValue();
+        }
+    }
+
+    /**
+     * Returns the node owning given customerId
+     *
+     * @param customerId
+     * @return node address
+     */
+    public String ownerOf(String customerId) {
+        int i = Arrays.binarySearch(points, hash(customerId));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        // past the last point wraps around to the first
+        return owners[i == points.length ? 0 : i];
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    // 64 bit FNV-1a over the UTF-8 bytes, finished with the murmur3 mixer so similar keys spread over the whole ring
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -1,12 +1,272 @@
 package com.netflix.billing.bank.config;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.billing.bank.admission.AdaptiveConcurrencyLimit;
+import com.netflix.billing.bank.admission.AdmissionControl;
+import com.netflix.billing.bank.admission.CustomerRateLimiter;
+import com.netflix.billing.bank.binary.BinaryListener;
+import com.netflix.billing.bank.cluster.ClusterForwardingFilter;
+import com.netflix.billing.bank.cluster.ClusterRouter;
+import com.netflix.billing.bank.controller.LedgerJsonConverter;
+import com.netflix.billing.bank.controller.wire.account.AccountExecutorService;
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.controller.wire.account.AccountStore;
+import com.netflix.billing.bank.controller.wire.account.AmountValidator;
+import com.netflix.billing.bank.controller.wire.account.LedgerListener;
+import com.netflix.billing.bank.controller.wire.account.OffHeapAccountStore;
+import com.netflix.billing.bank.controller.wire.account.TieredAccountStore;
+import com.netflix.billing.bank.journal.FsyncPolicy;
+import com.netflix.billing.bank.journal.Journal;
+import com.netflix.billing.bank.journal.SnapshotStore;
+import com.netflix.billing.bank.metrics.LedgerMetrics;
+import com.netflix.billing.bank.model.OffHeapArena;
+import com.netflix.billing.bank.model.PeriodicTask;
+import com.netflix.billing.bank.replication.ReplicaFilter;
+import com.netflix.billing.bank.replication.Replicator;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Your Spring dependency configurations go here.
  */
 @Configuration
 public class ApplicationConfig {
 
-}
+    // number of single-writer shards customers are partitioned across, defaults to the number of cores
+    @Value("${NUM_SHARDS:0}")
+    private int numShards;
+
+    // number of threads running tasks which are not tied to a customer
+    @Value("${NUM_THREADS:100}")
+    private int numThreads;
+
+    // opt-in: run shards on virtual threads when the JDK supports them (Java 21+)
+    @Value("${VIRTUAL_THREADS:false}")
+    private boolean virtualThreads;
+
+    // tasks a shard mailbox holds before refusing more
+    @Value("${SHARD_QUEUE_CAPACITY:" + AccountExecutorService.DEFAULT_QUEUE_CAPACITY + "}")
+    private int queueCapacity;
+
+    @Bean(destroyMethod = "shutdown")
+    public AccountExecutorService accountExecutorService() {
+        int shards = numShards > 0 ? numShards : Runtime.getRuntime().availableProcessors();
+        return new AccountExecutorService(shards, numThreads, virtualThreads, queueCapacity);
+    }
+
+    /**
+     * Admission of credits, debits and batches: an adaptive limit on the operations in flight, between
+     * CONCURRENCY_LIMIT_MIN and CONCURRENCY_LIMIT_MAX, and a per customer rate limit when CUSTOMER_RATE_LIMIT is set
+     */
+    @Bean
+    public AdmissionControl admissionControl(@Value("${CONCURRENCY_LIMIT_MIN:50}") int minLimit,
+                                             @Value("${CONCURRENCY_LIMIT_MAX:2000}") int maxLimit,
+                                             @Value("${CUSTOMER_RATE_LIMIT:0}") double ratePerSecond,
+                                             @Value("${CUSTOMER_RATE_BURST:0}") int burst) {
+        CustomerRateLimiter rateLimiter = ratePerSecond <= 0 ? null
+                : new CustomerRateLimiter(ratePerSecond, burst > 0 ? burst : (int) Math.ceil(ratePerSecond));
+        return new AdmissionControl(new AdaptiveConcurrencyLimit(Math.max(minLimit, Math.min(maxLimit, 200)),
+                minLimit, maxLimit), rateLimiter);
+    }
+
+    /**
+     * Off-heap account store, only created when ACCOUNT_STORE is offheap: account histories are kept in direct memory
+     * reserved OFFHEAP_SLAB_SIZE bytes at a time, up to the JVM's -XX:MaxDirectMemorySize
+     */
+    @Bean
+    @ConditionalOnProperty(name = "ACCOUNT_STORE", havingValue = "offheap")
+    public AccountStore offHeapAccountStore(MeterRegistry meterRegistry,
+                                            @Value("${OFFHEAP_SLAB_SIZE:67108864}") int slabSize) {
+        OffHeapArena arena = new OffHeapArena(slabSize);
+        Gauge.builder("ledger.offheap.allocated", arena, OffHeapArena::getAllocatedBytes)
+                .description("Off-heap bytes held by account histories and the account index")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("ledger.offheap.reserved", arena, OffHeapArena::getReservedBytes)
+                .description("Off-heap bytes reserved in slabs, in use or not")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        return new OffHeapAccountStore(arena);
+    }
+
+    /**
+     * Tiered account store, only created when ACCOUNT_STORE is tiered: at most ACCOUNT_CACHE_SIZE accounts are kept in
+     * memory, the others are written to segment files in ACCOUNT_COLD_DIR and read back when they are next used
+     */
+    @Bean
+    @ConditionalOnProperty(name = "ACCOUNT_STORE", havingValue = "tiered")
+    public AccountStore tieredAccountStore(MeterRegistry meterRegistry, AccountExecutorService accountExecutorService,
+                                           @Value("${ACCOUNT_CACHE_SIZE:100000}") int capacity,
+                                           @Value("${ACCOUNT_COLD_DIR:data/cold}") String directory,
+                                           @Value("${ACCOUNT_COLD_SEGMENT_SIZE:67108864}") int segmentSize)
+            throws IOException {
+        TieredAccountStore store = new TieredAccountStore(accountExecutorService, capacity, new File(directory),
+                segmentSize);
+        FunctionCounter.builder("ledger.accounts.hits", store, TieredAccountStore::getHits)
+                .description("Account lookups served from memory")
+                .register(meterRegistry);
+        FunctionTimer.builder("ledger.accounts.loads", store, TieredAccountStore::getLoads,
+                TieredAccountStore::getLoadNanos, TimeUnit.NANOSECONDS)
+                .description("Accounts read back from the cold tier")
+                .register(meterRegistry);
+        FunctionCounter.builder("ledger.accounts.evictions", store, TieredAccountStore::getEvictions)
+                .description("Accounts moved from memory to the cold tier")
+                .register(meterRegistry);
+        Gauge.builder("ledger.accounts.hit.ratio", store, TieredAccountStore::getHitRatio)
+                .description("Share of account lookups served from memory")
+                .register(meterRegistry);
+        Gauge.builder("ledger.accounts.hot", store, TieredAccountStore::getHotSize)
+                .description("Accounts held in memory")
+                .register(meterRegistry);
+        Gauge.builder("ledger.accounts.cold", store, TieredAccountStore::getColdSize)
+                .description("Accounts held in the cold tier")
+                .register(meterRegistry);
+        Gauge.builder("ledger.accounts.cold.files", store, TieredAccountStore::getColdBytes)
+                .description("Bytes of the cold tier's segment files")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        return store;
+    }
+
+    /**
+     * Balances and debit history pages are written by hand instead of by Jackson's bean serializers, a balance is
+     * encoded once per version
+     */
+    @Bean
+    public LedgerJsonConverter ledgerJsonConverter(ObjectMapper objectMapper) {
+        return new LedgerJsonConverter(objectMapper.getFactory());
+    }
 
+    /**
+     * Ledger metrics, exposed with the request latencies on /actuator/prometheus
+     */
+    @Bean
+    public LedgerListener ledgerMetrics(MeterRegistry meterRegistry, AccountExecutorService accountExecutorService,
+                                        AdmissionControl admissionControl) {
+        return new LedgerMetrics(meterRegistry, accountExecutorService, admissionControl);
+    }
+
+    /**
+     * Expires credits past their expiry every CREDIT_EXPIRY_TICK_MS, debits skip them until then. Not created on read
+     * replicas, they apply the expiries journaled by the primary.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnExpression("'${REPLICA_OF:}'.isEmpty()")
+    public PeriodicTask expirySweeper(AccountManager accountManager,
+                                      @Value("${CREDIT_EXPIRY_TICK_MS:" + AccountManager.DEFAULT_EXPIRY_TICK_MILLIS
+                                              + "}") long tickMillis) {
+        return new PeriodicTask("expiry-sweeper", tickMillis, () -> {
+            accountManager.sweepExpired();
+            return null;
+        });
+    }
+
+    /**
+     * Journal of accepted credits and debits, only created when JOURNAL_DIR is set. Without it accounts are kept in
+     * memory only and wiped on restart.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty("JOURNAL_DIR")
+    public Journal journal(@Value("${JOURNAL_DIR}") String directory,
+                           @Value("${JOURNAL_SEGMENT_SIZE:67108864}") int segmentSize,
+                           @Value("${JOURNAL_FSYNC:ALWAYS}") FsyncPolicy fsyncPolicy,
+                           @Value("${JOURNAL_FSYNC_INTERVAL_MS:10}") long fsyncIntervalMillis) throws IOException {
+        return new Journal(new File(directory), segmentSize, fsyncPolicy, fsyncIntervalMillis);
+    }
+
+    /**
+     * Snapshots of every account, so startup only replays the journal written after the newest one. Only created
+     * along with the journal, when SNAPSHOT_DIR is set.
+     */
+    @Bean
+    @ConditionalOnProperty({"JOURNAL_DIR", "SNAPSHOT_DIR"})
+    public SnapshotStore snapshotStore(@Value("${SNAPSHOT_DIR}") String directory,
+                                       @Value("${SNAPSHOT_RETAINED:2}") int retained) throws IOException {
+        return new SnapshotStore(new File(directory), retained);
+    }
+
+    // snapshots every SNAPSHOT_INTERVAL_MS, the journal still holds everything a failed one would have covered
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty({"JOURNAL_DIR", "SNAPSHOT_DIR"})
+    public PeriodicTask snapshotter(AccountManager accountManager,
+                                    @Value("${SNAPSHOT_INTERVAL_MS:300000}") long intervalMillis) {
+        return new PeriodicTask("snapshotter", intervalMillis, accountManager::snapshot);
+    }
+
+    /**
+     * Cluster mode, only created when CLUSTER_NODES lists the nodes (host:port) customers are partitioned across.
+     * CLUSTER_SELF is this node's entry in that list. After a membership change, the customers a node gains are held
+     * for at most CLUSTER_HANDOVER_TIMEOUT_MS until their previous owners report their hand-over done; a node joining
+     * the cluster is told the membership it joins with CLUSTER_PREVIOUS_NODES.
+     */
+    @Bean
+    @ConditionalOnProperty("CLUSTER_NODES")
+    public ClusterRouter clusterRouter(AccountManager accountManager,
+                                       AccountExecutorService accountExecutorService,
+                                       @Value("${CLUSTER_NODES}") String[] nodes,
+                                       @Value("${CLUSTER_SELF}") String self,
+                                       @Value("${CLUSTER_PREVIOUS_NODES:}") String[] previousNodes,
+                                       @Value("${CLUSTER_VIRTUAL_NODES:128}") int virtualNodes,
+                                       @Value("${CLUSTER_TIMEOUT_MS:5000}") int timeoutMillis,
+                                       @Value("${CLUSTER_HANDOVER_TIMEOUT_MS:60000}") long handOverTimeoutMillis) {
+        return new ClusterRouter(self, Arrays.asList(nodes), Arrays.asList(previousNodes), virtualNodes, timeoutMillis,
+                handOverTimeoutMillis, accountManager, accountExecutorService);
+    }
+
+    // a request held by a hand-over waits as long as a call to another node may take
+    @Bean
+    @ConditionalOnProperty("CLUSTER_NODES")
+    public ClusterForwardingFilter clusterForwardingFilter(ClusterRouter clusterRouter,
+                                                           @Value("${CLUSTER_TIMEOUT_MS:5000}") int timeoutMillis) {
+        return new ClusterForwardingFilter(clusterRouter, timeoutMillis);
+    }
+
+    /**
+     * Binary protocol listener on BINARY_PORT, only created when it is set. Each connection may have
+     * BINARY_MAX_IN_FLIGHT requests unanswered before it is no longer read. Not created on read replicas, they do not
+     * take credits and debits.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty("BINARY_PORT")
+    @ConditionalOnExpression("'${REPLICA_OF:}'.isEmpty()")
+    public BinaryListener binaryListener(AccountManager accountManager, AmountValidator validator,
+                                         Optional<ClusterRouter> clusterRouter,
+                                         @Value("${BINARY_PORT}") int port,
+                                         @Value("${BINARY_MAX_IN_FLIGHT:1024}") int maxInFlight) throws IOException {
+        return new BinaryListener(accountManager, validator, clusterRouter.orElse(null), port, maxInFlight);
+    }
+
+    /**
+     * Read replica of the primary at REPLICA_OF (host:port, which needs a JOURNAL_DIR), only created when it is set.
+     * The replica serves balance and history reads while it is at most REPLICA_MAX_STALENESS_MS behind.
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty("REPLICA_OF")
+    public Replicator replicator(AccountManager accountManager, MeterRegistry meterRegistry,
+                                 @Value("${REPLICA_OF}") String primary,
+                                 @Value("${REPLICA_POLL_MS:50}") long pollMillis,
+                                 @Value("${REPLICA_TIMEOUT_MS:5000}") int timeoutMillis,
+                                 @Value("${REPLICA_READ_TIMEOUT_MS:1000}") long readTimeoutMillis) {
+        return new Replicator(primary, accountManager, meterRegistry, pollMillis, timeoutMillis, readTimeoutMillis);
+    }
+
+    @Bean
+    @ConditionalOnProperty("REPLICA_OF")
+    public ReplicaFilter replicaFilter(Replicator replicator,
+                                       @Value("${REPLICA_MAX_STALENESS_MS:5000}") long maxStalenessMillis) {
+        return new ReplicaFilter(replicator, maxStalenessMillis);
+    }
+}
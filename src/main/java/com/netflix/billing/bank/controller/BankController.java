@@ -1,38 +1,87 @@
 package com.netflix.billing.bank.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.netflix.billing.bank.controller.wire.account.AccountManager;
 import com.netflix.billing.bank.controller.wire.account.AmountValidator;
 import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.HistoryOrder;
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
+import com.netflix.billing.bank.controller.wire.batch.BatchResult;
 import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitHistory;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import com.netflix.billing.bank.replication.Replicator;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Implement the following methods to complete the exercise.
+ *
+ * Balance, credit, debit and history reads are answered asynchronously: the servlet thread is released as soon as
+ * the operation is handed to the account's shard, or a replica starts waiting for a write, and the response is
+ * written once the returned future completes.
+ *
+ * Servlet edition of the endpoints, the default; the reactive one is built with -Preactive, see ReactiveBankController.
  */
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class BankController {
 
+    // operations accepted in one batch request
+    private static final int MAX_BATCH_SIZE = 1000;
+    // debits returned in one history page
+    private static final int MAX_HISTORY_PAGE_SIZE = 1000;
+    // newline delimited JSON, one value per line
+    private static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
     @Autowired
     public AccountManager accountManager;
 
     @Autowired
     public AmountValidator validator;
 
+    @Autowired
+    public ObjectMapper objectMapper;
+
+    // present on a read replica only
+    @Autowired(required = false)
+    public Replicator replicator;
+
     /**
      *
      * @param customerId String id representing the customer/account id.
      * @return How much money is left in the customer's account, i.e, After adding all the credits,
      * and subtracting all the debits, how much money is left.
      */
+    public CompletableFuture<CustomerBalance> getBalance(String customerId) {
+        return getBalance(customerId, null);
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param minVersion The version of a balance the primary returned, to read your own writes from a replica.
+     * @return How much money is left in the customer's account, as of minVersion or later.
+     */
     @GetMapping("customer/{customerId}/balance")
-    public CustomerBalance getBalance(@PathVariable String customerId) {
+    public CompletableFuture<CustomerBalance> getBalance(@PathVariable String customerId,
+                                                         @RequestParam(required = false) Long minVersion) {
         if (null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid input parameters.");
         }
-        return accountManager.getBalance(customerId);
+        if (null == minVersion || null == replicator) {
+            return accountManager.getBalanceAsync(customerId);
+        }
+        return replicator.awaitVersion(customerId, minVersion)
+                .thenCompose(reached -> accountManager.getBalanceAsync(customerId));
     }
 
     /**
@@ -42,12 +91,13 @@ public class BankController {
      * @return How much money is left in the customer's account after the credit was applied.
      */
     @PostMapping("customer/{customerId}/credit")
-    public CustomerBalance postCredit(@PathVariable String customerId, @RequestBody CreditAmount creditAmount) {
+    public CompletableFuture<CustomerBalance> postCredit(@PathVariable String customerId,
+                                                         @RequestBody CreditAmount creditAmount) {
         if (null == customerId || customerId.isEmpty() ||
                 null == creditAmount || !validator.validateCredit(creditAmount)) {
             throw new Error("Invalid input parameters.");
         }
-        return accountManager.credit(customerId, creditAmount);
+        return accountManager.creditAsync(customerId, creditAmount);
     }
 
     /**
@@ -57,20 +107,86 @@ public class BankController {
      * @return How much money is left in the customer's account after the debit amount was deducted from balance.
      */
     @PostMapping("customer/{customerId}/debit")
-    public CustomerBalance debit(@PathVariable String customerId, @RequestBody DebitAmount debitAmount) {
+    public CompletableFuture<CustomerBalance> debit(@PathVariable String customerId,
+                                                    @RequestBody DebitAmount debitAmount) {
         if (null == customerId || customerId.isEmpty() || !validator.validateDebit(debitAmount)) {
             throw new Error("Invalid input parameters.");
         }
-        return accountManager.debit(customerId, debitAmount);
+        return accountManager.debitAsync(customerId, debitAmount);
     }
 
     /**
      *
      * @param customerId String id representing the customer/account id.
-     * @return The debitHistory object representing all the debit transactions made to the customer's account.
+     * @param operations Credits and debits to apply to the customer's account, in order.
+     * @return What happened to each operation, and how much money is left in the customer's account after all of them.
+     */
+    @PostMapping("customer/{customerId}/batch")
+    public CompletableFuture<BatchResult> batch(@PathVariable String customerId,
+                                                @RequestBody List<BatchOperation> operations) {
+        if (null == customerId || customerId.isEmpty() ||
+                null == operations || operations.isEmpty() || operations.size() > MAX_BATCH_SIZE) {
+            throw new Error("Invalid input parameters.");
+        }
+        for (BatchOperation operation : operations) {
+            if (!validator.validateOperation(operation)) {
+                throw new Error("Invalid input parameters.");
+            }
+        }
+        return accountManager.batchAsync(customerId, operations);
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param limit How many debits to return at most. The whole history is returned when absent.
+     * @param cursor The nextCursor of the previous page, absent for the first page.
+     * @param order OLDEST_FIRST (default) or NEWEST_FIRST.
+     * @param minVersion The version of a balance the primary returned, to read your own writes from a replica.
+     * @return One page of the debit transactions made to the customer's account, with the cursor to the next one.
      */
     @GetMapping("customer/{customerId}/history")
-    public DebitHistory debitHistory(@PathVariable String customerId) {
+    public CompletableFuture<DebitHistoryPage> debitHistory(
+            @PathVariable String customerId,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "OLDEST_FIRST") HistoryOrder order,
+            @RequestParam(required = false) Long minVersion) {
+        if (null == customerId || customerId.isEmpty() ||
+                (null != limit && (limit <= 0 || limit > MAX_HISTORY_PAGE_SIZE))) {
+            throw new Error("Invalid input parameters.");
+        }
+        int pageSize = null == limit ? Integer.MAX_VALUE : limit;
+        if (null == minVersion || null == replicator) {
+            return accountManager.getDebitHistoryPageAsync(customerId, pageSize, cursor, order);
+        }
+        return replicator.awaitVersion(customerId, minVersion)
+                .thenCompose(reached -> accountManager.getDebitHistoryPageAsync(customerId, pageSize, cursor, order));
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @return Every credit applied to the customer's account, oldest first, streamed as newline delimited JSON.
+     */
+    @GetMapping("customer/{customerId}/credits")
+    public ResponseEntity<StreamingResponseBody> creditHistory(@PathVariable String customerId) {
+        if (null == customerId || customerId.isEmpty()) {
+            throw new Error("Invalid input parameters.");
+        }
+        // fail unknown customers before the response is committed, the published state is enough to tell
+        accountManager.getAccountState(customerId);
+        StreamingResponseBody body = out ->
+                accountManager.streamCreditHistory(customerId, objectMapper.writer(), out);
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @return The debitHistory object representing all the debit transactions made to the customer's account.
+     */
+    public DebitHistory debitHistory(String customerId) {
         if (null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid input parameters.");
         }
@@ -0,0 +1,62 @@
+package com.netflix.billing.bank.controller;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.LedgerJson;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes balances and debit history pages with {@link LedgerJson} ahead of the Jackson converter: a balance read again
+ * at the same version is answered with the bytes encoded the first time. Requests are still read by Jackson.
+ */
+public class LedgerJsonConverter extends AbstractHttpMessageConverter<Object> {
+
+    private final JsonFactory factory;
+
+    public LedgerJsonConverter(JsonFactory factory) {
+        super(StandardCharsets.UTF_8, MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.factory = factory;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return CustomerBalance.class == clazz || DebitHistoryPage.class == clazz;
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new Error("Only written by " + getClass().getSimpleName());
+    }
+
+    @Override
+    protected void writeInternal(Object body, HttpOutputMessage outputMessage) throws IOException {
+        if (body instanceof CustomerBalance) {
+            outputMessage.getBody().write(LedgerJson.balance((CustomerBalance) body, factory));
+            return;
+        }
+        // flushed, not closed, the container closes the response body
+        JsonGenerator generator = factory.createGenerator(outputMessage.getBody(), JsonEncoding.UTF8);
+        LedgerJson.writeDebitHistoryPage(generator, (DebitHistoryPage) body);
+        generator.flush();
+    }
+
+    @Override
+    protected Long getContentLength(Object body, MediaType contentType) throws IOException {
+        return body instanceof CustomerBalance ? (long) LedgerJson.balance((CustomerBalance) body, factory).length
+                : null;
+    }
+}
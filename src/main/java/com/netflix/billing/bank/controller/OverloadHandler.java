@@ -0,0 +1,25 @@
+package com.netflix.billing.bank.controller;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+/**
+ * Answers refused operations with 429 (the customer's rate limit) or 503 (the service is overloaded), telling the
+ * client when to retry. Every other error keeps the default handling.
+ */
+@ControllerAdvice
+public class OverloadHandler {
+
+    @ExceptionHandler(OverloadError.class)
+    public ResponseEntity<String> overloaded(OverloadError error) {
+        HttpStatus status = error.getReason() == OverloadError.Reason.RATE_LIMITED
+                ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+        return ResponseEntity.status(status)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(error.getRetryAfterSeconds()))
+                .body(error.getMessage());
+    }
+}
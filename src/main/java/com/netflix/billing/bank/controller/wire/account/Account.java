@@ -7,97 +7,195 @@ import com.netflix.billing.bank.controller.wire.credit.CreditType;
 import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitHistory;
 import com.netflix.billing.bank.controller.wire.debit.DebitLineItem;
+import com.netflix.billing.bank.journal.SnapshotStore;
+import com.netflix.billing.bank.model.AccountState;
+import com.netflix.billing.bank.model.Amounts;
+import com.netflix.billing.bank.model.BalanceView;
+import com.netflix.billing.bank.model.CreditQueue;
+import com.netflix.billing.bank.model.HeapLedgerLog;
+import com.netflix.billing.bank.model.IdempotencyIndex;
+import com.netflix.billing.bank.model.LedgerLog;
+import com.netflix.billing.bank.model.OpenCredit;
 
-import java.math.BigDecimal;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
-// Customer Bank Account
+// Customer Bank Account, only ever mutated by the AccountExecutorService shard owning the customer
 public class Account {
-    // credits
-    private Map<CreditType, List<CreditLineItem>> creditsMap;
-    // debits
-    private List<DebitLineItem> debitsList;
-    // credit history
-    private CreditHistory creditHistory;
-    // debit history
-    private DebitHistory debitHistory;
-    // total credit amount - running balance
-    private volatile BigDecimal totalCreditAmount;
-    // customerId -> (creditType -> set of transactions)
-    private Map<String, Map<CreditType, Set<String>>> processedTransactionsMap; // for dedupe credits
-    // customerId -> set of invoiceId
-    private Map<String, Set<String>> processedInvoicesMap; // for dedupe debits
+    // idempotency namespace of invoiceIds, transactionIds are namespaced by creditType
+    private static final int INVOICES = 0;
+    // added to the pins once the store dropped the account
+    private static final int RETIRED = 1 << 30;
+
+    // credits by CreditType, oldest first, with the amount left on each type in minor units
+    private Map<CreditType, CreditQueue> creditsMap;
+    // credit and debit history, wire line items are only built from it when read
+    private final LedgerLog ledger;
+    // processed transactionIds (one namespace per creditType) and invoiceIds, for dedupe
+    private final IdempotencyIndex processedIds;
+    // observes dedupe hits, refused and applied debits
+    private final LedgerListener listener;
+    // journal sequence number of the last operation applied to this account
+    private long lastLsn;
+    // balance and history lengths as of the last whole operation, replaced (never mutated) by the writer once the
+    // operation is fully applied and read by anyone without locking
+    private volatile AccountState state;
+    // credits offered to the account, for spotting hot accounts; only touched by the owning shard
+    private final RateWindow creditRate = new RateWindow();
+    // epoch millis no open credit expires before, Long.MAX_VALUE when none expires; may lag behind debits consuming
+    // the credit it was taken from, then the next expiry pass corrects it
+    private long nextExpiry = Long.MAX_VALUE;
+    // epoch millis an expiry pass is scheduled for in the shard's timing wheel, Long.MAX_VALUE when none is
+    private long scheduledExpiry = Long.MAX_VALUE;
+    // readers holding the ledger, plus RETIRED once the store dropped the account; the ledger is released once both
+    // the store and the last reader are done with it
+    private final AtomicInteger pins = new AtomicInteger();
 
     // new Account constructor
     public Account() {
-        creditsMap = new ConcurrentHashMap<>();
-        debitsList = Collections.synchronizedList(new ArrayList<>());
-        creditHistory = new CreditHistory();
-        debitHistory = new DebitHistory();
-        totalCreditAmount = new BigDecimal(0);
-        processedTransactionsMap = new ConcurrentHashMap<>();
-        processedInvoicesMap = new ConcurrentHashMap<>();
+        this(new IdempotencyIndex(), LedgerListener.NONE);
+    }
+
+    /**
+     * @param processedIds empty index remembering processed transactions and invoices, sized as configured
+     * @param listener
+     */
+    public Account(IdempotencyIndex processedIds, LedgerListener listener) {
+        this(processedIds, listener, new HeapLedgerLog());
     }
 
     /**
-     * Returns current snapshot of {@link CustomerBalance}
+     * @param processedIds empty index remembering processed transactions and invoices, sized as configured
+     * @param listener
+     * @param ledger empty log to keep the history in, see {@link AccountStore#newLedger()}
+     */
+    public Account(IdempotencyIndex processedIds, LedgerListener listener, LedgerLog ledger) {
+        creditsMap = new EnumMap<>(CreditType.class);
+        this.ledger = ledger;
+        this.processedIds = processedIds;
+        this.listener = listener;
+        state = AccountState.EMPTY;
+    }
+
+    /**
+     * Returns current snapshot of {@link CustomerBalance}. The balance is immutable and shared by all readers until
+     * the next credit or debit, so this is safe to call from any thread.
      *
      * @return CustomerBalance
      */
     public CustomerBalance getBalance() {
-        CustomerBalance balance = new CustomerBalance();
-        // build CustomerBalance
-        for (CreditType creditType : CreditType.values()) {
-            if (creditsMap.containsKey(creditType)) {
-                balance.addAll(creditType, creditsMap.get(creditType)
-                        .stream()
-                        .map(cb -> cb.getMoney())
-                        .collect(Collectors.toList()));
-            }
+        return state.getBalanceView().getBalance();
+    }
+
+    /**
+     * Returns the current balance along with the version of the ledger it reflects
+     *
+     * @return BalanceView
+     */
+    public BalanceView getBalanceView() {
+        return state.getBalanceView();
+    }
+
+    /**
+     * Returns the last published state. Balance and histories read through it are consistent with each other, even
+     * while the owning shard is applying the next operation.
+     *
+     * @return AccountState
+     */
+    public AccountState getState() {
+        return state;
+    }
+
+    /**
+     * Returns the amount left on all open credits
+     *
+     * @return minor units
+     */
+    public long getCreditTotal() {
+        long total = 0L;
+        for (CreditQueue openCredits : creditsMap.values()) {
+            total += openCredits.getTotal();
         }
+        return total;
+    }
 
-        return balance;
+    /**
+     * Returns the amount left on the open credits of given creditType
+     *
+     * @param creditType
+     * @return minor units
+     */
+    public long getCreditTotal(CreditType creditType) {
+        CreditQueue openCredits = creditsMap.get(creditType);
+        return null == openCredits ? 0L : openCredits.getTotal();
     }
 
     /**
      * Record credit to customer account
      *
      * @param creditAmount
+     * @return false if the credit was a duplicate and had no effect
+     */
+    public boolean credit(String customerId, CreditAmount creditAmount) {
+        return credit(customerId, creditAmount, Instant.now());
+    }
+
+    /**
+     * Record credit to customer account as applied at given time
+     *
+     * @param customerId
+     * @param creditAmount
+     * @param transactionDate
+     * @return false if the credit was a duplicate and had no effect
      */
-    public void credit(String customerId, CreditAmount creditAmount) {
+    public boolean credit(String customerId, CreditAmount creditAmount, Instant transactionDate) {
         if (null == creditAmount || null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid input parameters");
         }
 
         CreditType creditType = creditAmount.getCreditType();
         // dedupe credit
-        if (processedTransactionsMap.containsKey(customerId) &&
-                processedTransactionsMap.get(customerId).containsKey(creditType) &&
-                processedTransactionsMap.get(customerId).get(creditType).contains(creditAmount.getTransactionId())) {
-            return;
+        if (processedIds.contains(namespace(creditType), creditAmount.getTransactionId())) {
+            listener.creditDeduplicated();
+            return false;
         }
 
-        CreditLineItem creditLineItem = creditAmount.toCreditLineItem();
-        List<CreditLineItem> creditLineItems = creditsMap.getOrDefault(creditType, new ArrayList<>());
-        // add CreditLineItem
-        creditLineItems.add(creditLineItem);
-        creditsMap.put(creditType, creditLineItems);
+        if (null != creditAmount.getExpiresAt() && !creditAmount.getExpiresAt().isAfter(transactionDate)) {
+            throw new Error("Credit already expired");
+        }
+
+        // the only conversion from the wire amount, ledger arithmetic is done in minor units
+        long creditAmountValue = Amounts.toUnits(creditAmount.getMoney().getAmount());
+        try {
+            Math.addExact(getCreditTotal(), creditAmountValue);
+        } catch (ArithmeticException e) {
+            throw new Error("Balance overflow");
+        }
 
-        // update total credit amaunt
-        totalCreditAmount = totalCreditAmount.add(creditLineItem.getMoney().getAmount());
         // add credit to the history
-        this.getCreditHistory().add(creditLineItem);
+        Instant expiresAt = creditAmount.getExpiresAt();
+        int credit = ledger.addCredit(creditAmount.getTransactionId(), creditType, creditAmountValue,
+                creditAmount.getMoney().getCurrency(), transactionDate.toEpochMilli(),
+                null == expiresAt ? 0L : expiresAt.toEpochMilli());
+        CreditQueue openCredits = creditsMap.computeIfAbsent(creditType, type -> new CreditQueue());
+        // add the open credit, updates the running total of its type
+        OpenCredit openCredit = new OpenCredit(credit, null == expiresAt ? Long.MAX_VALUE : expiresAt.toEpochMilli(),
+                creditAmountValue);
+        openCredits.add(openCredit);
+        nextExpiry = Math.min(nextExpiry, openCredit.getExpiresAt());
+
+        // publish the new balance along with the credit, showing a copy of the caller's Money which stays theirs
+        Money money = new Money(creditAmount.getMoney().getAmount(), creditAmount.getMoney().getCurrency());
+        publish(state.getBalanceView().edit().append(creditType, money).build());
 
-        // mark credit processed (transactionId for given creditType for given customer)
-        Map<CreditType, Set<String>> transactionIdMap =
-                processedTransactionsMap.getOrDefault(customerId, new ConcurrentHashMap<>());
-        Set<String> transactionIds = transactionIdMap.getOrDefault(creditType, new HashSet<>());
-        transactionIds.add(creditLineItem.getTransactionId());
-        transactionIdMap.put(creditType, transactionIds);
-        processedTransactionsMap.put(customerId, transactionIdMap);
+        // mark credit processed (transactionId for given creditType)
+        processedIds.add(namespace(creditType), creditAmount.getTransactionId(), transactionDate.toEpochMilli());
+        return true;
     }
 
     /**
@@ -105,72 +203,417 @@ public class Account {
      *
      * @param customerId
      * @param debitAmount
+     * @return false if the debit was a duplicate and had no effect
      */
-    public void debit(String customerId, DebitAmount debitAmount) {
+    public boolean debit(String customerId, DebitAmount debitAmount) {
+        return debit(customerId, debitAmount, Instant.now());
+    }
+
+    /**
+     * Record debit to customer account as applied at given time
+     *
+     * @param customerId
+     * @param debitAmount
+     * @param transactionDate
+     * @return false if the debit was a duplicate and had no effect
+     */
+    public boolean debit(String customerId, DebitAmount debitAmount, Instant transactionDate) {
         if (null == debitAmount) {
-            return;
+            return false;
         }
         // dedupe debit
-        if (processedInvoicesMap.containsKey(customerId) &&
-                processedInvoicesMap.get(customerId).contains(debitAmount.getInvoiceId())) {
-            return;
+        if (processedIds.contains(INVOICES, debitAmount.getInvoiceId())) {
+            listener.debitDeduplicated();
+            return false;
         }
+        // credits that expired are never debited, whether or not the sweeper got to them
+        expire(transactionDate);
 
-        BigDecimal debitAmountValue = debitAmount.getMoney().getAmount();
-        if (debitAmountValue.compareTo(totalCreditAmount) > 0) { // Error scenario
-            throw new Error("Insufficient balance");
+        // the only conversion from the wire amount, ledger arithmetic is done in minor units
+        long debitAmountValue = Amounts.toUnits(debitAmount.getMoney().getAmount());
+        long debitUnits = debitAmountValue;
+        if (debitAmountValue > getCreditTotal()) { // Error scenario
+            listener.insufficientBalance();
+            throw new Error("Insufficient balance"); // AccountManager tells it apart in batches
         }
 
+        long consumeStart = System.nanoTime();
+        // every line item of the debit refers to the same invoiceId
+        String invoiceId = debitAmount.getInvoiceId();
+        String currency = debitAmount.getMoney().getCurrency();
+        long dateMillis = transactionDate.toEpochMilli();
+        int creditsConsumed = 0;
+        BalanceView.Builder view = state.getBalanceView().edit();
         outerloop:
         for (CreditType creditType : CreditType.values()) {
-            if (!creditsMap.containsKey(creditType)) {
+            CreditQueue openCredits = creditsMap.get(creditType);
+            if (null == openCredits) {
                 continue;
             }
 
-            for (Iterator<CreditLineItem> it = creditsMap.get(creditType).iterator(); it.hasNext(); ) {
-                CreditLineItem creditLineItem = it.next();
-                BigDecimal currentCreditAmount = creditLineItem.getMoney().getAmount();
-                creditLineItem.getInvoiceIdList().add(debitAmount.getInvoiceId()); // invoiceId
-
-                // current credit amount <= debit amount, consume whole credit
-                int cmp = currentCreditAmount.compareTo(debitAmountValue);
-                if (cmp <= 0) {
-                    debitAmountValue = debitAmountValue.subtract(currentCreditAmount);
-                    totalCreditAmount = totalCreditAmount.subtract(currentCreditAmount);
-                    it.remove(); // remove current CreditLineItem
-                } else {
-                    // current credit amount > debit amount, consume partial credit
-                    currentCreditAmount = currentCreditAmount.subtract(debitAmountValue);
-                    totalCreditAmount = totalCreditAmount.subtract(debitAmountValue);
-                    debitAmountValue = new BigDecimal(0);
-                    creditLineItem.getMoney().setAmount(currentCreditAmount);
+            int consumedCredits = 0;
+            while (!openCredits.isEmpty()) {
+                OpenCredit credit = openCredits.peek();
+                creditsConsumed++;
+
+                // consume whole credit when it is <= debit amount (dropping it), otherwise consume partial credit
+                debitAmountValue -= openCredits.consumeHead(debitAmountValue);
+                if (credit.isConsumed()) {
+                    consumedCredits++;
                 }
 
-                DebitLineItem debitLineItem = debitAmount.toDebitLineItem();
-                debitLineItem.setCreditType(creditType); // creditType
-                debitLineItem.setTransactionId(creditLineItem.getTransactionId()); // transactionId
-                debitLineItem.setTransactionDate(Instant.now()); // instant
-                // add to debits list
-                debitsList.add(debitLineItem);
-                // add to the history
-                this.getDebitHistory().add(debitLineItem);
+                // add to the history, linked to the credit it was charged against
+                ledger.addDebit(invoiceId, debitUnits, currency, credit.getCredit(), dateMillis);
 
-                if (debitAmountValue.compareTo(BigDecimal.ZERO) == 0) {  // consumed credits for given DebitLineItem
+                if (debitAmountValue == 0) {  // consumed credits for given DebitLineItem
+                    view.dropHead(creditType, consumedCredits);
+                    if (!credit.isConsumed()) {
+                        view.withHead(creditType, new Money(Amounts.toDecimal(credit.getRemaining()),
+                                ledger.getCreditCurrency(credit.getCredit())));
+                    }
                     break outerloop; // break outerloop for loop
                 }
             }
+            view.dropHead(creditType, consumedCredits);
         }
-        // mark debit processed (invoiceId for given customer)
-        Set<String> invoiceIds = processedInvoicesMap.getOrDefault(customerId, new HashSet<>());
-        invoiceIds.add(debitAmount.getInvoiceId());
-        processedInvoicesMap.put(customerId, invoiceIds);
+        // publish the new balance along with all the debit line items at once
+        publish(view.build());
+        listener.debitApplied(creditsConsumed, System.nanoTime() - consumeStart);
+        // mark debit processed (invoiceId)
+        processedIds.add(INVOICES, debitAmount.getInvoiceId(), transactionDate.toEpochMilli());
+        return true;
     }
 
+    /**
+     * Removes the open credits that expired by given time from the balance, recording what was left on each as
+     * expired in the credit history. Every credit removed counts as one ledger change.
+     *
+     * @param now
+     * @return expired credits, nothing when no credit is due
+     */
+    public List<OpenCredit> expire(Instant now) {
+        long nowMillis = now.toEpochMilli();
+        if (nextExpiry > nowMillis) {
+            return Collections.emptyList();
+        }
+        return expire(credit -> credit.isExpired(nowMillis));
+    }
+
+    /**
+     * Removes one open credit from the balance as expired, as the sweeper did before it was journaled
+     *
+     * @param creditType
+     * @param transactionId
+     * @return false when the credit is not open (anymore)
+     */
+    public boolean expire(CreditType creditType, String transactionId) {
+        return !expire(credit -> ledger.getCreditType(credit.getCredit()) == creditType
+                && Objects.equals(ledger.getTransactionId(credit.getCredit()), transactionId)).isEmpty();
+    }
+
+    // removes matching open credits and publishes the balance without them in one go
+    private List<OpenCredit> expire(Predicate<OpenCredit> filter) {
+        List<OpenCredit> expired = new ArrayList<>();
+        BalanceView.Builder view = state.getBalanceView().edit();
+        long next = Long.MAX_VALUE;
+        for (Map.Entry<CreditType, CreditQueue> entry : creditsMap.entrySet()) {
+            CreditQueue openCredits = entry.getValue();
+            List<OpenCredit> removed = openCredits.removeIf(filter);
+            if (!removed.isEmpty()) {
+                for (OpenCredit credit : removed) {
+                    ledger.setExpired(credit.getCredit(), credit.getRemaining());
+                }
+                expired.addAll(removed);
+                List<Money> open = new ArrayList<>(openCredits.size());
+                for (OpenCredit credit : openCredits) {
+                    open.add(openMoney(credit));
+                }
+                view.replace(entry.getKey(), open);
+            }
+            for (OpenCredit credit : openCredits) {
+                next = Math.min(next, credit.getExpiresAt());
+            }
+        }
+        nextExpiry = next;
+        if (!expired.isEmpty()) {
+            publish(view.build(state.getVersion() + expired.size()));
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the credit history up to the last published state, as wire line items built from the ledger
+     *
+     * @return CreditHistory
+     */
     public CreditHistory getCreditHistory() {
+        AccountState current = state;
+        List<CreditLineItem> credits = new ArrayList<>(current.getCredits());
+        for (int i = 0; i < current.getCredits(); i++) {
+            credits.add(creditLineItem(i, current.getDebits()));
+        }
+        CreditHistory creditHistory = new CreditHistory();
+        creditHistory.setCreditHistory(credits);
         return creditHistory;
     }
 
+    /**
+     * Returns the debit history up to the last published state, as wire line items built from the ledger
+     *
+     * @return DebitHistory
+     */
     public DebitHistory getDebitHistory() {
+        int size = state.getDebits();
+        List<DebitLineItem> debits = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            debits.add(getDebitLineItem(i));
+        }
+        DebitHistory debitHistory = new DebitHistory();
+        debitHistory.setDebits(debits);
         return debitHistory;
     }
+
+    /**
+     * Builds the wire line item of one credit, listing the invoices debited to it up to the last published state
+     *
+     * @param index position in the credit history, below the published state's credits
+     * @return CreditLineItem
+     */
+    public CreditLineItem getCreditLineItem(int index) {
+        return creditLineItem(index, state.getDebits());
+    }
+
+    /**
+     * Builds the wire line item of one debit
+     *
+     * @param index position in the debit history, below the published state's debits
+     * @return DebitLineItem
+     */
+    public DebitLineItem getDebitLineItem(int index) {
+        DebitLineItem debit = new DebitLineItem(ledger.getInvoiceId(index),
+                new Money(Amounts.toDecimal(ledger.getDebitUnits(index)), ledger.getDebitCurrency(index)),
+                Instant.ofEpochMilli(ledger.getDebitDate(index)));
+        int credit = ledger.getDebitCredit(index);
+        if (credit >= 0) {
+            debit.setTransactionId(ledger.getTransactionId(credit));
+            debit.setCreditType(ledger.getCreditType(credit));
+        }
+        return debit;
+    }
+
+    private CreditLineItem creditLineItem(int index, int debitLimit) {
+        String currency = ledger.getCreditCurrency(index);
+        CreditLineItem credit = new CreditLineItem(ledger.getTransactionId(index), ledger.getCreditType(index),
+                new Money(Amounts.toDecimal(ledger.getCreditUnits(index)), currency),
+                Instant.ofEpochMilli(ledger.getCreditDate(index)));
+        credit.setInvoiceIdList(ledger.getInvoiceIds(index, debitLimit));
+        if (ledger.getExpiresAt(index) > 0) {
+            credit.setExpiresAt(Instant.ofEpochMilli(ledger.getExpiresAt(index)));
+        }
+        if (ledger.getExpired(index) >= 0) {
+            credit.setExpired(new Money(Amounts.toDecimal(ledger.getExpired(index)), currency));
+        }
+        return credit;
+    }
+
+    /**
+     * Writes the complete account state (open credits, histories, processed transactions and invoices) in the
+     * snapshot format. Must run on the shard owning the account so the image is consistent.
+     *
+     * @param out
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeLong(lastLsn);
+        out.writeLong(state.getVersion());
+
+        // credit history, open credits and debits refer to a credit by its position in it
+        out.writeInt(ledger.getCredits());
+        for (int i = 0; i < ledger.getCredits(); i++) {
+            writeString(out, ledger.getTransactionId(i));
+            out.writeByte(ledger.getCreditType(i).ordinal());
+            out.writeLong(ledger.getCreditUnits(i));
+            writeString(out, ledger.getCreditCurrency(i));
+            out.writeLong(ledger.getCreditDate(i));
+            out.writeLong(ledger.getExpiresAt(i));
+            out.writeLong(ledger.getExpired(i));
+        }
+        for (CreditType creditType : CreditType.values()) {
+            CreditQueue openCredits = creditsMap.get(creditType);
+            out.writeInt(null == openCredits ? -1 : openCredits.size());
+            if (null != openCredits) {
+                for (OpenCredit openCredit : openCredits) {
+                    out.writeInt(openCredit.getCredit());
+                    out.writeLong(openCredit.getRemaining());
+                }
+            }
+        }
+
+        // debit history, the invoices of a credit are rebuilt from it
+        out.writeInt(ledger.getDebits());
+        for (int i = 0; i < ledger.getDebits(); i++) {
+            writeString(out, ledger.getInvoiceId(i));
+            out.writeLong(ledger.getDebitUnits(i));
+            writeString(out, ledger.getDebitCurrency(i));
+            out.writeInt(ledger.getDebitCredit(i));
+            out.writeLong(ledger.getDebitDate(i));
+        }
+
+        processedIds.writeTo(out);
+    }
+
+    /**
+     * Reads an account written by {@link #writeTo(DataOutput)} into this new account, the running totals are rebuilt
+     * from the open credits
+     *
+     * @param in
+     * @param version snapshot format version the account was written with, only the current one is read
+     */
+    public void readFrom(DataInput in, int version) throws IOException {
+        if (version != SnapshotStore.VERSION) {
+            throw new IOException("Unsupported account image version " + version);
+        }
+        CreditType[] creditTypes = CreditType.values();
+        lastLsn = in.readLong();
+        long balanceVersion = in.readLong();
+
+        int numCredits = in.readInt();
+        for (int i = 0; i < numCredits; i++) {
+            String transactionId = readString(in);
+            CreditType creditType = creditTypes[in.readByte()];
+            long units = in.readLong();
+            String currency = readString(in);
+            long dateMillis = in.readLong();
+            long expiresAt = in.readLong();
+            ledger.addCredit(transactionId, creditType, units, currency, dateMillis, expiresAt);
+            long expired = in.readLong();
+            if (expired >= 0) {
+                ledger.setExpired(i, expired);
+            }
+        }
+        BalanceView.Builder view = BalanceView.EMPTY.edit();
+        for (CreditType creditType : creditTypes) {
+            int numOpenCredits = in.readInt();
+            if (numOpenCredits < 0) {
+                continue;
+            }
+            view.track(creditType);
+            CreditQueue openCredits = new CreditQueue();
+            for (int i = 0; i < numOpenCredits; i++) {
+                int credit = in.readInt();
+                long expiresAt = ledger.getExpiresAt(credit);
+                OpenCredit openCredit = new OpenCredit(credit, expiresAt > 0 ? expiresAt : Long.MAX_VALUE,
+                        in.readLong());
+                openCredits.add(openCredit);
+                nextExpiry = Math.min(nextExpiry, openCredit.getExpiresAt());
+                view.append(creditType, openMoney(openCredit));
+            }
+            creditsMap.put(creditType, openCredits);
+        }
+        BalanceView balanceView = view.build(balanceVersion);
+
+        int numDebits = in.readInt();
+        for (int i = 0; i < numDebits; i++) {
+            String invoiceId = readString(in);
+            long units = in.readLong();
+            String currency = readString(in);
+            int credit = in.readInt();
+            ledger.addDebit(invoiceId, units, currency, credit, in.readLong());
+        }
+        publish(balanceView);
+
+        processedIds.readFrom(in);
+    }
+
+    // replaces the published state, the writer is the only one to do so and has appended to the ledger already
+    private void publish(BalanceView balanceView) {
+        state = new AccountState(balanceView, ledger.getCredits(), ledger.getDebits());
+    }
+
+    // amount of an open credit as shown in the balance
+    private Money openMoney(OpenCredit credit) {
+        return new Money(Amounts.toDecimal(credit.getRemaining()), ledger.getCreditCurrency(credit.getCredit()));
+    }
+
+    // idempotency namespace of the transactionIds of given creditType
+    private static int namespace(CreditType creditType) {
+        return 1 + creditType.ordinal();
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(null != value);
+        if (null != value) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Returns the epoch millis no open credit expires before, Long.MAX_VALUE when none expires
+     */
+    public long getNextExpiry() {
+        return nextExpiry;
+    }
+
+    long getScheduledExpiry() {
+        return scheduledExpiry;
+    }
+
+    void setScheduledExpiry(long scheduledExpiry) {
+        this.scheduledExpiry = scheduledExpiry;
+    }
+
+    RateWindow getCreditRate() {
+        return creditRate;
+    }
+
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    public void setLastLsn(long lastLsn) {
+        this.lastLsn = lastLsn;
+    }
+
+    /**
+     * Keeps the ledger from being released until {@link #unpin()}, for reading the history while the store may drop
+     * the account, e.g. when it is restored or handed over
+     *
+     * @return false when the store already dropped the account, look it up again
+     */
+    public boolean pin() {
+        int current;
+        do {
+            current = pins.get();
+            if (current >= RETIRED) {
+                return false;
+            }
+        } while (!pins.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    public void unpin() {
+        if (pins.decrementAndGet() == RETIRED) {
+            ledger.release();
+        }
+    }
+
+    /**
+     * Called by the store once it dropped the account, releases the ledger as soon as no reader holds it
+     */
+    public void retire() {
+        if (pins.getAndAdd(RETIRED) == 0) {
+            ledger.release();
+        }
+    }
+
+    /**
+     * Returns the ledger the histories are kept in. Must only be read on the shard owning the account, or up to
+     * the published state.
+     */
+    public LedgerLog getLedger() {
+        return ledger;
+    }
 }
\ No newline at end of file
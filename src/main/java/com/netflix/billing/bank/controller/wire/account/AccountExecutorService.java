@@ -1,36 +1,370 @@
 package com.netflix.billing.bank.controller.wire.account;
 
-import org.springframework.stereotype.Component;
+import com.netflix.billing.bank.admission.OverloadError;
 
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
-@Component
+/**
+ * Executes account operations on single-writer shards. Every customerId hashes to exactly one shard, and each shard
+ * is a single thread draining its own mailbox, so operations on one account are applied strictly in submission order
+ * without any locking, while unrelated customers spread across all shards.
+ *
+ * Mailboxes are bounded: a task offered to a full one is refused at once with an {@link OverloadError}, rather than
+ * waiting behind more work than the shard can get through in reasonable time.
+ */
 public class AccountExecutorService {
 
-    // number of threads executorService runs, move this config param to ApplicationConfig
-    private static final int NUM_THREADS = 100;
+    // tasks a mailbox holds unless configured otherwise
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
 
-    private ExecutorService executorService = Executors.newFixedThreadPool(NUM_THREADS);
+    // shard index of the task running on the current thread, -1 outside of shards
+    private static final ThreadLocal<Integer> CURRENT_SHARD = ThreadLocal.withInitial(() -> -1);
+
+    // one single threaded executor (and mailbox) per shard
+    private final ThreadPoolExecutor[] shards;
+    // executor for tasks which are not tied to a customer
+    private final ExecutorService executorService;
+    private final boolean virtualThreads;
+    // told the customerId of every task submitted for a customer, null when nobody listens
+    private volatile Consumer<String> submitListener;
+
+    /**
+     * @param numShards number of single-writer shards customers are partitioned across
+     * @param numThreads number of threads running tasks that are not tied to a customer
+     */
+    public AccountExecutorService(int numShards, int numThreads) {
+        this(numShards, numThreads, false);
+    }
+
+    /**
+     * @param numShards number of single-writer shards customers are partitioned across
+     * @param numThreads number of threads running tasks that are not tied to a customer
+     * @param virtualThreads run shards and un-keyed tasks on virtual threads, ignored on JDKs without them
+     */
+    public AccountExecutorService(int numShards, int numThreads, boolean virtualThreads) {
+        this(numShards, numThreads, virtualThreads, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param numShards number of single-writer shards customers are partitioned across
+     * @param numThreads number of threads running tasks that are not tied to a customer
+     * @param virtualThreads run shards and un-keyed tasks on virtual threads, ignored on JDKs without them
+     * @param queueCapacity tasks each shard, and the un-keyed executor, hold at most while they are busy
+     */
+    public AccountExecutorService(int numShards, int numThreads, boolean virtualThreads, int queueCapacity) {
+        if (numShards <= 0 || numThreads <= 0 || queueCapacity <= 0) {
+            throw new Error("Invalid executor configuration");
+        }
+        ThreadFactory virtualThreadFactory = virtualThreads ? VirtualThreads.factory() : null;
+        this.virtualThreads = null != virtualThreadFactory;
+
+        shards = new ThreadPoolExecutor[numShards];
+        for (int i = 0; i < numShards; i++) {
+            // what Executors.newSingleThreadExecutor builds, minus the wrapper hiding the mailbox
+            shards[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity), new ShardThreadFactory(i, virtualThreadFactory));
+        }
+        // virtual threads are cheap enough to start one per task, platform threads queue up like the shards; either
+        // way no more tasks are taken in than numThreads running and queueCapacity waiting
+        executorService = this.virtualThreads
+                ? new ThreadPerTaskExecutor(virtualThreadFactory, numThreads + queueCapacity)
+                : new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(queueCapacity));
+    }
+
+    /**
+     * Submit callableTask to the shard owning given customerId. Tasks for the same customer never run concurrently
+     * and are applied in the order they were submitted. The calling thread is never blocked; a full mailbox refuses
+     * the task with an {@link OverloadError}.
+     *
+     * @param customerId
+     * @param callableTask
+     * @return future completed with the result of callableTask once the shard ran it
+     */
+    public <T> CompletableFuture<T> submit(String customerId, Callable<T> callableTask) {
+        if (null == customerId || null == callableTask) {
+            throw new Error("Invalid callable function to execute");
+        }
+        CompletableFuture<T> result = submit(shardFor(customerId), callableTask);
+        Consumer<String> listener = submitListener;
+        if (null != listener) {
+            listener.accept(customerId);
+        }
+        return result;
+    }
+
+    /**
+     * Registers a listener told the customerId of every task {@link #submit(String, Callable)} queued for a customer,
+     * on the submitting thread right after the task reached the shard's mailbox
+     *
+     * @param submitListener
+     */
+    public void setSubmitListener(Consumer<String> submitListener) {
+        this.submitListener = submitListener;
+    }
+
+    /**
+     * Submit callableTask to given shard, for work on all the accounts a shard owns
+     *
+     * @param shard shard index
+     * @param callableTask
+     * @return future completed with the result of callableTask once the shard ran it
+     */
+    public <T> CompletableFuture<T> submit(int shard, Callable<T> callableTask) {
+        if (shard < 0 || shard >= shards.length || null == callableTask) {
+            throw new Error("Invalid callable function to execute");
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        // already running on the owning shard, queueing behind ourselves would never complete
+        if (CURRENT_SHARD.get() == shard) {
+            complete(result, callableTask);
+        } else {
+            try {
+                shards[shard].execute(() -> complete(result, callableTask));
+            } catch (RejectedExecutionException e) {
+                throw overloaded();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Execute callableTask on the shard owning given customerId and wait for its result.
+     *
+     * @param customerId
+     * @param callableTask
+     * @return result of callableTask
+     */
+    public <T> T execute(String customerId, Callable<T> callableTask) {
+        return await(submit(customerId, callableTask));
+    }
 
     /**
      * Execute callableTask using ExecutorService
      * @param callableTask
-     * @return CustomerBalance
+     * @return result of callableTask
      */
-    public CustomerBalance execute(Callable<CustomerBalance> callableTask) {
+    public <T> T execute(Callable<T> callableTask) {
         if (null == callableTask) {
             throw new Error("Invalid callable function to execute");
         }
+        Future<T> result;
+        try {
+            result = executorService.submit(callableTask);
+        } catch (RejectedExecutionException e) {
+            throw overloaded();
+        }
+        return await(result);
+    }
 
-        Future<CustomerBalance> result = executorService.submit(callableTask);
-        CustomerBalance balance;
+    /**
+     * Wait for an account operation, surfacing ledger errors (insufficient balance, invalid input) as they were
+     * thrown on the shard.
+     *
+     * @param result
+     * @return value result was completed with
+     */
+    public <T> T await(Future<T> result) {
         try {
-            balance = result.get();
+            return result.get();
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new Error("Credit Interrupted.");
         } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
             throw new Error("Credit Interrupted.");
         }
-        return balance;
+    }
+
+    /**
+     * Returns the shard index given customerId is pinned to
+     *
+     * @param customerId
+     * @return shard index
+     */
+    public int shardFor(String customerId) {
+        int h = customerId.hashCode();
+        // spread the higher bits, String.hashCode of similar ids differs mostly in the low bits
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    /**
+     * Returns the shard whose task is running on the current thread
+     *
+     * @return shard index, -1 outside of shards
+     */
+    public int currentShard() {
+        return CURRENT_SHARD.get();
+    }
+
+    public int getNumShards() {
+        return shards.length;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Number of tasks waiting in the shard mailboxes and for the un-keyed executor
+     */
+    public int getQueueDepth() {
+        // a thread per task never queues
+        int depth = executorService instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executorService).getQueue().size() : 0;
+        for (ThreadPoolExecutor shard : shards) {
+            depth += shard.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Number of shard and un-keyed threads currently running a task
+     */
+    public int getActiveThreads() {
+        int active = executorService instanceof ThreadPoolExecutor
+                ? ((ThreadPoolExecutor) executorService).getActiveCount()
+                : ((ThreadPerTaskExecutor) executorService).getActiveCount();
+        for (ThreadPoolExecutor shard : shards) {
+            active += shard.getActiveCount();
+        }
+        return active;
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdown();
+        }
+        executorService.shutdown();
+    }
+
+    private static OverloadError overloaded() {
+        return new OverloadError(OverloadError.Reason.OVERLOADED, 1L, "Service overloaded");
+    }
+
+    private static <T> void complete(CompletableFuture<T> result, Callable<T> callableTask) {
+        try {
+            result.complete(callableTask.call());
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    private static class ShardThreadFactory implements ThreadFactory {
+        private final int shard;
+        // virtual thread factory, null for platform threads
+        private final ThreadFactory delegate;
+        // a single thread executor replaces its thread if a task kills it
+        private final AtomicInteger sequence = new AtomicInteger();
+
+        ShardThreadFactory(int shard, ThreadFactory delegate) {
+            this.shard = shard;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Runnable shardRunnable = () -> {
+                CURRENT_SHARD.set(shard);
+                runnable.run();
+            };
+            Thread thread = null == delegate ? new Thread(shardRunnable) : delegate.newThread(shardRunnable);
+            int n = sequence.getAndIncrement();
+            thread.setName("account-shard-" + shard + (n > 0 ? "-" + n : ""));
+            return thread;
+        }
+    }
+
+    // Starts a thread per task, refusing tasks while as many as it is bounded to are running
+    private static class ThreadPerTaskExecutor extends AbstractExecutorService {
+        private final ThreadFactory threadFactory;
+        private final int maxTasks;
+        // one per running task, the platform executor's queue bound on how many are taken in
+        private final Semaphore permits;
+        // no task is started once set, running ones finish
+        private volatile boolean shutdown;
+
+        ThreadPerTaskExecutor(ThreadFactory threadFactory, int maxTasks) {
+            this.threadFactory = threadFactory;
+            this.maxTasks = maxTasks;
+            this.permits = new Semaphore(maxTasks);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (shutdown || !permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many tasks running");
+            }
+            try {
+                threadFactory.newThread(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                }).start();
+            } catch (RuntimeException | Error e) {
+                permits.release();
+                throw new RejectedExecutionException("Task not started", e);
+            }
+        }
+
+        int getActiveCount() {
+            return maxTasks - permits.availablePermits();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown();
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && getActiveCount() == 0;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            // running tasks each hold a permit until they end
+            if (!shutdown || !permits.tryAcquire(maxTasks, timeout, unit)) {
+                return false;
+            }
+            permits.release(maxTasks);
+            return true;
+        }
+    }
+
+    // Virtual threads are looked up reflectively, the build targets Java 8
+    private static class VirtualThreads {
+
+        static ThreadFactory factory() {
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                return (ThreadFactory) factory.invoke(builder);
+            } catch (ReflectiveOperationException e) {
+                return null; // JDK without virtual threads, stay on platform threads
+            }
+        }
     }
 }
@@ -1,15 +1,54 @@
 package com.netflix.billing.bank.controller.wire.account;
 
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.netflix.billing.bank.admission.AdmissionControl;
+import com.netflix.billing.bank.admission.OverloadError;
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
+import com.netflix.billing.bank.controller.wire.batch.BatchResult;
+import com.netflix.billing.bank.controller.wire.batch.OperationOutcome;
 import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
 import com.netflix.billing.bank.controller.wire.credit.CreditHistory;
+import com.netflix.billing.bank.controller.wire.credit.CreditLineItem;
 import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitHistory;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.debit.DebitLineItem;
+import com.netflix.billing.bank.journal.Journal;
+import com.netflix.billing.bank.journal.JournalRecord;
+import com.netflix.billing.bank.journal.SnapshotStore;
+import com.netflix.billing.bank.model.AccountState;
+import com.netflix.billing.bank.model.Amounts;
+import com.netflix.billing.bank.model.IdempotencyIndex;
+import com.netflix.billing.bank.model.LedgerLog;
+import com.netflix.billing.bank.model.OpenCredit;
+import com.netflix.billing.bank.model.TimingWheel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Class to maintain credits and debits for each customer
@@ -17,16 +56,259 @@ import java.util.concurrent.ConcurrentHashMap;
 @Component
 public class AccountManager {
 
-    // CustomerId to their Accounts map
-    private Map<String, Account> customerIdToAccountMap = new ConcurrentHashMap<>();
-    // ExecutorService for multi threads
+    private static final Logger log = LoggerFactory.getLogger(AccountManager.class);
+
+    // message of the Error Account.debit refuses a debit exceeding the balance with
+    private static final String INSUFFICIENT_BALANCE = "Insufficient balance";
+    // credits a shard serializes in one go while streaming the credit history
+    private static final int STREAM_BATCH_SIZE = 256;
+    // accounts a shard images in one go while snapshotting, writes to the shard are served between batches
+    private static final int SNAPSHOT_BATCH_SIZE = 256;
+    // credits a second an account takes before its credits are striped, see CreditStripes
+    public static final long DEFAULT_HOT_ACCOUNT_CREDIT_RATE = 2000L;
+    // window the credit rate of an account is measured over
+    private static final long HOT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // resolution credits expire at, and interval the sweeper runs at
+    public static final long DEFAULT_EXPIRY_TICK_MILLIS = 1000L;
+
+    // CustomerId to their Accounts, on the heap unless an off-heap or tiered store is configured
+    @Autowired(required = false)
+    AccountStore accountStore = new HeapAccountStore();
+    // hot accounts, their credits are appended to stripes and applied by the shard in bulk instead of one task each
+    Map<String, CreditStripes> hotAccounts = new ConcurrentHashMap<>();
+    // arrival order of credits and debits of hot accounts, buffered credits are applied in it
+    private final AtomicLong arrivals = new AtomicLong();
+    // timing wheel of each shard, holding the customers that have credits to expire; only used by that shard
+    private final Map<Integer, TimingWheel<String>> expiryWheels = new ConcurrentHashMap<>();
+    // single-writer shards, every account is only ever mutated by the shard owning its customerId
     @Autowired
     AccountExecutorService accountExecutorService;
+    // journal of accepted credits and debits, absent when the ledger is kept in memory only
+    @Autowired(required = false)
+    Journal journal;
+    // set once an append to the journal failed: an account then holds a change the journal does not, which would not
+    // survive a restart, so every operation is refused until the ledger is restarted and recovered from the journal
+    private volatile Throwable journalFailure;
+    // snapshots of all accounts, bounding how much of the journal is replayed on startup
+    @Autowired(required = false)
+    SnapshotStore snapshotStore;
+    // rate and concurrency limits credits, debits and batches are admitted under, absent when they are not limited
+    @Autowired(required = false)
+    AdmissionControl admissionControl;
+    // metrics, absent when nothing observes the accounts
+    @Autowired(required = false)
+    LedgerListener ledgerListener;
+    // processed transactionIds and invoiceIds an account remembers for dedupe, see IdempotencyIndex
+    @Value("${IDEMPOTENCY_CAPACITY:" + IdempotencyIndex.DEFAULT_CAPACITY + "}")
+    int idempotencyCapacity = IdempotencyIndex.DEFAULT_CAPACITY;
+    @Value("${IDEMPOTENCY_RETENTION_MS:" + IdempotencyIndex.DEFAULT_RETENTION_MILLIS + "}")
+    long idempotencyRetentionMillis = IdempotencyIndex.DEFAULT_RETENTION_MILLIS;
+    // credits a second from which an account is treated as hot, 0 to never stripe credits
+    @Value("${HOT_ACCOUNT_CREDIT_RATE:" + DEFAULT_HOT_ACCOUNT_CREDIT_RATE + "}")
+    long hotAccountCreditRate = DEFAULT_HOT_ACCOUNT_CREDIT_RATE;
+    @Value("${CREDIT_EXPIRY_TICK_MS:" + DEFAULT_EXPIRY_TICK_MILLIS + "}")
+    long expiryTickMillis = DEFAULT_EXPIRY_TICK_MILLIS;
+
+    /**
+     * Rebuilds every account, including the processed transactions and invoices, from the newest snapshot and the
+     * journal written after it
+     */
+    @PostConstruct
+    public void recover() throws IOException {
+        accountStore.setAccountFactory(this::newAccount);
+        if (null == journal) {
+            return;
+        }
+        // runs before the application serves requests, so it can apply directly instead of through the shards
+        long snapshotLsn = null == snapshotStore ? 0L : snapshotStore.loadLatest(this::newAccount, accountStore::put);
+        journal.replay(snapshotLsn, this::apply);
+        // from what the store knows of each account, an account moved out of memory is not read back for it
+        for (String customerId : accountStore.customerIds()) {
+            long nextExpiry = accountStore.getNextExpiry(customerId);
+            if (nextExpiry < Long.MAX_VALUE) {
+                expiryWheel(accountExecutorService.shardFor(customerId)).schedule(nextExpiry, customerId);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of every account and drops the journal segments it covers. Accounts are imaged on their own
+     * shard in small batches, so each image is consistent while writes carry on in between.
+     *
+     * @return journal LSN the snapshot covers
+     */
+    public long snapshot() throws IOException {
+        if (null == journal || null == snapshotStore) {
+            throw new Error("Snapshots need a journal and a snapshot store");
+        }
+        checkJournal();
+        // every record up to here was applied before it was journaled, so the images taken below all include it
+        long lsn = journal.getLastLsn();
+        try (SnapshotStore.Writer writer = snapshotStore.create(lsn, accountExecutorService.getNumShards())) {
+            imageAll(writer::write);
+            writer.commit();
+        }
+        journal.truncate(lsn);
+        log.info("Snapshot covering journal up to LSN {} written", lsn);
+        return lsn;
+    }
+
+    /**
+     * Writes every account to out, for a replica to start from: the snapshot format version and the journal LSN the
+     * images cover, then each customerId and account image, then false. Accounts are imaged as for a snapshot.
+     *
+     * @param out
+     * @return journal LSN the images cover
+     */
+    public long exportAccounts(DataOutput out) throws IOException {
+        if (null == journal) {
+            throw new Error("Replication needs a journal");
+        }
+        checkJournal();
+        long lsn = journal.getLastLsn();
+        out.writeInt(SnapshotStore.VERSION);
+        out.writeLong(lsn);
+        imageAll((shard, customerId, image) -> {
+            out.writeBoolean(true);
+            out.writeUTF(customerId);
+            out.writeInt(image.length);
+            out.write(image);
+        });
+        out.writeBoolean(false);
+        return lsn;
+    }
+
+    /**
+     * Applies operations shipped from the primary's journal, each on the shard owning its customer, and waits for
+     * all of them. Operations an account already reflects are skipped, as on recovery.
+     *
+     * @param records in LSN order
+     */
+    public void applyReplicated(List<JournalRecord> records) {
+        List<CompletableFuture<Void>> applied = new ArrayList<>(records.size());
+        for (JournalRecord record : records) {
+            // shards run in submission order, so the operations of a customer keep theirs
+            applied.add(accountExecutorService.submit(record.getCustomerId(), () -> {
+                apply(record);
+                return null;
+            }));
+        }
+        accountExecutorService.await(CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[0])));
+    }
+
+    /**
+     * Returns the customers this node holds an account for
+     *
+     * @return customerIds, a copy
+     */
+    public List<String> getCustomerIds() {
+        return accountStore.customerIds();
+    }
+
+    /**
+     * Removes the account of given customer and returns its image in the snapshot format, for another node to take
+     * it over. Runs on the shard owning the account, so no operation is applied between imaging and removal. Returns
+     * once the removal is journaled, a restart does not bring the account back here.
+     *
+     * @param customerId
+     * @return account image, null when there is no account for customerId
+     */
+    public byte[] detachAccount(String customerId) {
+        checkJournal();
+        return accountExecutorService.await(accountExecutorService.execute(customerId, () -> {
+            Account account = accountStore.getForUpdate(customerId);
+            if (null == account) {
+                return CompletableFuture.completedFuture((byte[]) null);
+            }
+            CreditStripes stripes = hotAccounts.remove(customerId);
+            if (null != stripes) {
+                applyHot(account, customerId, stripes.drain());
+            }
+            byte[] image = image(Collections.singletonList(customerId)).get(0);
+            accountStore.remove(customerId);
+            return journal(account, JournalRecord.detach(customerId, System.currentTimeMillis()))
+                    .thenApply(lsn -> image);
+        }));
+    }
+
+    /**
+     * Takes over an account imaged by {@link #detachAccount(String)}, on this or another node. Refused when the
+     * customer already has a ledger here. The image is journaled, so a restart brings the account back before the
+     * operations applied to it here. Returns once that record is durable.
+     *
+     * @param customerId
+     * @param image
+     */
+    public void attachAccount(String customerId, byte[] image) {
+        if (null == customerId || customerId.isEmpty() || null == image) {
+            throw new Error("Invalid input parameters for account");
+        }
+        checkJournal();
+        JournalRecord record = JournalRecord.attach(customerId, image, SnapshotStore.VERSION,
+                System.currentTimeMillis());
+        if (null != journal && !journal.fits(record)) {
+            throw new Error("Account image exceeds journal segment size");
+        }
+        accountExecutorService.await(accountExecutorService.execute(customerId, () -> {
+            Account existing = accountStore.get(customerId);
+            if (null != existing && existing.getState().getVersion() > 0) {
+                throw new Error("Account already exists");
+            }
+            Account account = readAccount(image, SnapshotStore.VERSION);
+            // LSNs of another node's journal mean nothing in this one, the attach record's LSN replaces it
+            account.setLastLsn(0L);
+            accountStore.put(customerId, account);
+            scheduleExpiry(customerId, account);
+            return journal(account, record);
+        }));
+    }
+
+    /**
+     * Replaces the account of given customer with an image exported by the primary, keeping the primary's LSN so
+     * operations shipped afterwards apply exactly once
+     *
+     * @param customerId
+     * @param image
+     * @param version snapshot format version the image was written with
+     */
+    public void restoreAccount(String customerId, byte[] image, int version) {
+        accountExecutorService.execute(customerId, () -> {
+            accountStore.put(customerId, readAccount(image, version));
+            return null;
+        });
+    }
+
+    /**
+     * Expires the credits that are due on every shard: each shard advances its timing wheel and removes the expired
+     * credits of the customers it hands back in one pass per account. Waits until all shards are done.
+     */
+    public void sweepExpired() {
+        checkJournal();
+        List<CompletableFuture<Void>> swept = new ArrayList<>(accountExecutorService.getNumShards());
+        for (int shard = 0; shard < accountExecutorService.getNumShards(); shard++) {
+            TimingWheel<String> wheel = expiryWheel(shard);
+            swept.add(accountExecutorService.submit(shard, () -> {
+                Instant now = Instant.now();
+                for (String customerId : wheel.advance(now.toEpochMilli())) {
+                    Account account = accountStore.getForUpdate(customerId);
+                    if (null == account) {
+                        continue;
+                    }
+                    if (account.getScheduledExpiry() <= now.toEpochMilli()) {
+                        account.setScheduledExpiry(Long.MAX_VALUE);
+                    }
+                    expireDue(account, customerId, now);
+                }
+                return null;
+            }));
+        }
+        accountExecutorService.await(CompletableFuture.allOf(swept.toArray(new CompletableFuture<?>[0])));
+    }
 
     // for junits
     public void clear() {
-        customerIdToAccountMap.clear();
-        customerIdToAccountMap = new ConcurrentHashMap<>();
+        accountStore.clear();
+        hotAccounts = new ConcurrentHashMap<>();
     }
 
     /**
@@ -37,19 +319,37 @@ public class AccountManager {
      * @return CustomerBalance
      */
     public CustomerBalance credit(String customerId, CreditAmount creditAmount) {
+        return accountExecutorService.await(creditAsync(customerId, creditAmount));
+    }
+
+    /**
+     * Posts credit to the account for given customerId without blocking the caller
+     *
+     * @param customerId
+     * @param creditAmount
+     * @return CustomerBalance once the credit was applied
+     */
+    public CompletableFuture<CustomerBalance> creditAsync(String customerId, CreditAmount creditAmount) {
         if (null == customerId || customerId.isEmpty() || null == creditAmount) {
             throw new Error("Invalid input parameters for credit");
         }
+        CreditStripes stripes = hotAccounts.get(customerId);
+        if (null != stripes) {
+            return admitted(customerId, 1, () -> offerHot(customerId, stripes, creditAmount));
+        }
 
         // credit the customer account
-        Account account = customerIdToAccountMap.getOrDefault(customerId, new Account());
-        Callable<CustomerBalance> creditTask = () -> {
-            account.credit(customerId, creditAmount);
-            customerIdToAccountMap.put(customerId, account);
-            return account.getBalance();
+        Callable<CompletableFuture<CustomerBalance>> creditTask = () -> {
+            Account account = accountStore.computeIfAbsent(customerId, this::newAccount);
+            JournalRecord record = applyCredit(account, customerId, creditAmount);
+            CustomerBalance balance = account.getBalance();
+            detectHot(customerId, account);
+            return null == record ? CompletableFuture.completedFuture(balance)
+                    : journal(account, record).thenApply(lsn -> balance);
         };
-        // let executorService handle the execution
-        return accountExecutorService.execute(creditTask);
+        // let the shard owning the customer apply it
+        return admitted(customerId, 1,
+                () -> accountExecutorService.submit(customerId, creditTask).thenCompose(balance -> balance));
     }
 
     /**
@@ -60,19 +360,99 @@ public class AccountManager {
      * @return CustomerBalance
      */
     public CustomerBalance debit(String customerId, DebitAmount debitAmount) {
+        return accountExecutorService.await(debitAsync(customerId, debitAmount));
+    }
+
+    /**
+     * Posts debit to given customer's account without blocking the caller
+     *
+     * @param customerId
+     * @param debitAmount
+     * @return CustomerBalance once the debit was applied
+     */
+    public CompletableFuture<CustomerBalance> debitAsync(String customerId, DebitAmount debitAmount) {
         if (null == customerId || customerId.isEmpty() || null == debitAmount) {
             throw new Error("Invalid input parameters for debit");
         }
+        CreditStripes stripes = hotAccounts.get(customerId);
+        long sequence = null == stripes ? 0L : arrivals.incrementAndGet();
 
         // debit the customer account
-        Account account = customerIdToAccountMap.getOrDefault(customerId, new Account());
-        Callable<CustomerBalance> debitTask = () -> {
-            account.debit(customerId, debitAmount);
-            customerIdToAccountMap.put(customerId, account);
-            return account.getBalance();
+        Callable<CompletableFuture<CustomerBalance>> debitTask = () -> {
+            Account account = accountStore.computeIfAbsent(customerId, this::newAccount);
+            // credits of a hot account that arrived before the debit count towards it, later ones follow it
+            List<CreditStripes.PendingCredit> later = applyHotBefore(account, customerId, stripes, sequence);
+            try {
+                JournalRecord record = applyDebit(account, customerId, debitAmount);
+                CustomerBalance balance = account.getBalance();
+                return null == record ? CompletableFuture.completedFuture(balance)
+                        : journal(account, record).thenApply(lsn -> balance);
+            } finally {
+                applyHot(account, customerId, later);
+            }
+        };
+        // let the shard owning the customer apply it
+        return admitted(customerId, 1,
+                () -> accountExecutorService.submit(customerId, debitTask).thenCompose(balance -> balance));
+    }
+
+    /**
+     * Applies credits and debits to given customer's account in order, in a single pass on the shard owning it.
+     * Every operation follows the same dedupe and priority rules as when posted on its own; one that cannot be
+     * applied has no effect and does not stop the rest of the batch.
+     *
+     * @param customerId
+     * @param operations
+     * @return outcome of every operation and the balance after the batch, once all of it was applied
+     */
+    public CompletableFuture<BatchResult> batchAsync(String customerId, List<BatchOperation> operations) {
+        if (null == customerId || customerId.isEmpty() || null == operations) {
+            throw new Error("Invalid input parameters for batch");
+        }
+        CreditStripes stripes = hotAccounts.get(customerId);
+        long sequence = null == stripes ? 0L : arrivals.incrementAndGet();
+
+        Callable<CompletableFuture<BatchResult>> batchTask = () -> {
+            Account account = accountStore.computeIfAbsent(customerId, this::newAccount);
+            // later credits of a hot account follow the batch even when it fails, their senders wait for them
+            List<CreditStripes.PendingCredit> later = applyHotBefore(account, customerId, stripes, sequence);
+            try {
+                List<OperationOutcome> outcomes = new ArrayList<>(operations.size());
+                // appends become durable in LSN order, the last one covers the whole batch
+                CompletableFuture<Long> durable = CompletableFuture.completedFuture(0L);
+                for (BatchOperation operation : operations) {
+                    JournalRecord record;
+                    try {
+                        record = null != operation.getCredit()
+                                ? applyCredit(account, customerId, operation.getCredit())
+                                : applyDebit(account, customerId, operation.getDebit());
+                    } catch (Error e) {
+                        // the ledger refuses an operation with a plain Error, anything else (out of memory, a stack
+                        // overflow) or a failed journal append fails the whole batch
+                        if (Error.class != e.getClass() || null != journalFailure) {
+                            throw e;
+                        }
+                        // the account checks before it changes anything, a refused operation left no trace
+                        outcomes.add(INSUFFICIENT_BALANCE.equals(e.getMessage())
+                                ? OperationOutcome.INSUFFICIENT_BALANCE : OperationOutcome.REJECTED);
+                        continue;
+                    }
+                    if (null == record) {
+                        outcomes.add(OperationOutcome.DUPLICATE);
+                    } else {
+                        durable = journal(account, record);
+                        outcomes.add(OperationOutcome.APPLIED);
+                    }
+                }
+                BatchResult result = new BatchResult(outcomes, account.getBalance());
+                return durable.thenApply(lsn -> result);
+            } finally {
+                applyHot(account, customerId, later);
+            }
         };
-        // let executorService handle the execution
-        return accountExecutorService.execute(debitTask);
+        // let the shard owning the customer apply it
+        return admitted(customerId, operations.size(),
+                () -> accountExecutorService.submit(customerId, batchTask).thenCompose(result -> result));
     }
 
     /**
@@ -82,10 +462,65 @@ public class AccountManager {
      * @return
      */
     public CustomerBalance getBalance(String customerId) {
+        return accountExecutorService.await(getBalanceAsync(customerId));
+    }
+
+    /**
+     * Returns {@link CustomerBalance} for given customer Id without blocking the caller
+     *
+     * @param customerId
+     * @return CustomerBalance
+     */
+    public CompletableFuture<CustomerBalance> getBalanceAsync(String customerId) {
+        if (null == customerId || customerId.isEmpty()) {
+            throw new Error("Invalid customer Id");
+        }
+        checkJournal();
+        CreditStripes stripes = hotAccounts.get(customerId);
+        if (null != stripes) {
+            // credits buffered for a hot account are applied before its balance is read
+            return accountExecutorService.submit(customerId, () -> {
+                Account account = accountStore.getForUpdate(customerId);
+                if (null == account) {
+                    throw new Error("Invalid customer Id");
+                }
+                applyHot(account, customerId, stripes.drain());
+                return account.getBalance();
+            });
+        }
+        // the published balance is immutable, no need to queue behind the writes on the owning shard
+        return CompletableFuture.completedFuture(getAccountState(customerId).getBalanceView().getBalance());
+    }
+
+    /**
+     * Returns the last published {@link AccountState} for given customer Id, without queueing behind the writes on
+     * the owning shard
+     *
+     * @param customerId
+     * @return AccountState
+     */
+    public AccountState getAccountState(String customerId) {
         if (null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid customer Id");
         }
-        return customerIdToAccountMap.get(customerId).getBalance();
+        checkJournal();
+        AccountState state = accountStore.getState(customerId);
+        if (null == state) {
+            throw new Error("Invalid customer Id");
+        }
+        return state;
+    }
+
+    /**
+     * Returns the version of given customer's ledger, 0 for a customer without an account
+     *
+     * @param customerId
+     * @return number of ledger changes applied to the account
+     */
+    public long getVersion(String customerId) {
+        checkJournal();
+        AccountState state = accountStore.getState(customerId);
+        return null == state ? 0L : state.getVersion();
     }
 
     /**
@@ -98,7 +533,48 @@ public class AccountManager {
         if (null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid customer Id");
         }
-        return customerIdToAccountMap.get(customerId).getCreditHistory();
+        Account account = pinAccount(customerId);
+        try {
+            return account.getCreditHistory();
+        } finally {
+            account.unpin();
+        }
+    }
+
+    /**
+     * Writes the {@link CreditHistory} for given customer Id to out as newline delimited JSON, oldest first. Credits
+     * are serialized on the shard owning the account in small batches, so every line matches the ledger (credits
+     * are debited concurrently) while memory stays constant however long the history is. Credits added once the
+     * stream started are not included.
+     *
+     * @param customerId
+     * @param writer JSON writer for a single {@link CreditLineItem}
+     * @param out
+     */
+    public void streamCreditHistory(String customerId, ObjectWriter writer, OutputStream out) throws IOException {
+        if (null == customerId || customerId.isEmpty()) {
+            throw new Error("Invalid customer Id");
+        }
+        Account account = pinAccount(customerId);
+        try {
+            int size = account.getState().getCredits();
+            for (int from = 0; from < size; from += STREAM_BATCH_SIZE) {
+                int start = from;
+                int end = Math.min(from + STREAM_BATCH_SIZE, size);
+                byte[] lines = accountExecutorService.execute(customerId, () -> {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    for (int i = start; i < end; i++) {
+                        writer.writeValue(bytes, account.getCreditLineItem(i));
+                        bytes.write('\n');
+                    }
+                    return bytes.toByteArray();
+                });
+                out.write(lines);
+                out.flush(); // hand every batch to the client as its own chunk
+            }
+        } finally {
+            account.unpin();
+        }
     }
 
     /**
@@ -111,6 +587,387 @@ public class AccountManager {
         if (null == customerId || customerId.isEmpty()) {
             throw new Error("Invalid customer Id");
         }
-        return customerIdToAccountMap.get(customerId).getDebitHistory();
+        Account account = pinAccount(customerId);
+        try {
+            return account.getDebitHistory();
+        } finally {
+            account.unpin();
+        }
+    }
+
+    /**
+     * Returns one page of the {@link DebitHistory} for given customer Id. Pages cost the same however long the
+     * history is, and a cursor stays valid while debits are added.
+     *
+     * @param customerId
+     * @param limit maximum number of debits in the page
+     * @param cursor nextCursor of the previous page, null for the first page
+     * @param order
+     * @return DebitHistoryPage
+     */
+    public DebitHistoryPage getDebitHistoryPage(String customerId, int limit, String cursor, HistoryOrder order) {
+        if (null == customerId || customerId.isEmpty() || limit <= 0 || null == order) {
+            throw new Error("Invalid input parameters for debit history");
+        }
+        Account account = pinAccount(customerId);
+        try {
+            // the history only grows, positions read now never move; debits past the published state are still being
+            // applied and left for a later page
+            int size = account.getState().getDebits();
+            List<DebitLineItem> page = new ArrayList<>(Math.min(limit, size));
+            int next;
+            if (order == HistoryOrder.OLDEST_FIRST) {
+                int from = null == cursor ? 0 : decodeCursor(cursor, order);
+                int to = (int) Math.min(size, (long) from + limit);
+                for (int i = from; i < to; i++) {
+                    page.add(account.getDebitLineItem(i));
+                }
+                next = to < size ? to : -1;
+            } else {
+                // position just after the newest debit of the page
+                int to = null == cursor ? size : decodeCursor(cursor, order);
+                int from = Math.max(0, to - limit);
+                for (int i = to - 1; i >= from; i--) {
+                    page.add(account.getDebitLineItem(i));
+                }
+                next = from > 0 ? from : -1;
+            }
+            return new DebitHistoryPage(page, next < 0 ? null : encodeCursor(next, order));
+        } finally {
+            account.unpin();
+        }
+    }
+
+    /**
+     * Returns one page of the {@link DebitHistory} for given customer Id, read on the shard owning the account so
+     * the caller never waits for an evicted account to be loaded
+     *
+     * @param customerId
+     * @param limit maximum number of debits in the page
+     * @param cursor nextCursor of the previous page, null for the first page
+     * @param order
+     * @return DebitHistoryPage
+     */
+    public CompletableFuture<DebitHistoryPage> getDebitHistoryPageAsync(String customerId, int limit, String cursor,
+                                                                      HistoryOrder order) {
+        return accountExecutorService.submit(customerId,
+                () -> getDebitHistoryPage(customerId, limit, cursor, order));
+    }
+
+    // cursors are a position in the history, tagged with the order they were issued for
+    private static String encodeCursor(int position, HistoryOrder order) {
+        String cursor = order.name().charAt(0) + Integer.toString(position);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static int decodeCursor(String cursor, HistoryOrder order) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII);
+            if (decoded.isEmpty() || decoded.charAt(0) != order.name().charAt(0)) {
+                throw new Error("Invalid cursor");
+            }
+            int position = Integer.parseInt(decoded.substring(1));
+            if (position < 0) {
+                throw new Error("Invalid cursor");
+            }
+            return position;
+        } catch (IllegalArgumentException e) {
+            throw new Error("Invalid cursor");
+        }
+    }
+
+    private Account newAccount() {
+        return new Account(new IdempotencyIndex(idempotencyCapacity, idempotencyRetentionMillis),
+                null == ledgerListener ? LedgerListener.NONE : ledgerListener, accountStore.newLedger());
+    }
+
+    // offers operations to admission control first, the permit is held until they completed
+    private <T> CompletableFuture<T> admitted(String customerId, int operations,
+                                              Supplier<CompletableFuture<T>> submit) {
+        checkJournal();
+        if (null == admissionControl) {
+            return submit.get();
+        }
+        AdmissionControl.Permit permit = admissionControl.acquire(customerId, operations);
+        CompletableFuture<T> result;
+        try {
+            result = submit.get();
+        } catch (Throwable e) {
+            // refused before it ran, whatever refused it: the slot goes back without a latency sample
+            permit.drop();
+            throw e;
+        }
+        result.whenComplete((value, error) -> permit.release());
+        return result;
+    }
+
+    // buffers a credit of a hot account, the first one appended after a drain started schedules the next drain
+    private CompletableFuture<CustomerBalance> offerHot(String customerId, CreditStripes stripes,
+                                                        CreditAmount creditAmount) {
+        CreditStripes.PendingCredit credit = new CreditStripes.PendingCredit(arrivals.incrementAndGet(), creditAmount);
+        if (stripes.offer(credit)) {
+            try {
+                accountExecutorService.submit(customerId, () -> {
+                    stripes.drainStarted();
+                    Account account = accountStore.computeIfAbsent(customerId, this::newAccount);
+                    applyHot(account, customerId, stripes.drain());
+                    long rate = stripes.drainRate(HOT_WINDOW_NANOS);
+                    if (rate >= 0 && rate < hotAccountCreditRate / 2) {
+                        // cooled down, credits go through the mailbox again; credits still appended to these
+                        // stripes schedule their own drain
+                        hotAccounts.remove(customerId, stripes);
+                    }
+                    return null;
+                });
+            } catch (OverloadError e) {
+                stripes.refuse(e);
+                // a drain already running may have taken the credit, it is applied then
+                if (credit.result.isCompletedExceptionally()) {
+                    throw e;
+                }
+            }
+        }
+        return credit.result;
+    }
+
+    // counts a credit applied through the mailbox on the owning shard, and stripes the account's credits from now on
+    // once they arrive faster than the shard should take them one task each
+    private void detectHot(String customerId, Account account) {
+        if (hotAccountCreditRate <= 0) {
+            return;
+        }
+        account.getCreditRate().count(1);
+        if (account.getCreditRate().rate(HOT_WINDOW_NANOS) >= hotAccountCreditRate) {
+            hotAccounts.putIfAbsent(customerId, new CreditStripes(Runtime.getRuntime().availableProcessors()));
+        }
+    }
+
+    // applies the credits buffered for a hot account that arrived before sequence, returns the later ones
+    private List<CreditStripes.PendingCredit> applyHotBefore(Account account, String customerId,
+                                                             CreditStripes stripes, long sequence) {
+        if (null == stripes) {
+            return Collections.emptyList();
+        }
+        List<CreditStripes.PendingCredit> credits = stripes.drain();
+        int before = 0;
+        while (before < credits.size() && credits.get(before).sequence < sequence) {
+            before++;
+        }
+        applyHot(account, customerId, credits.subList(0, before));
+        return credits.subList(before, credits.size());
+    }
+
+    // applies buffered credits on the owning shard in arrival order, each completes with the balance right after it
+    private void applyHot(Account account, String customerId, List<CreditStripes.PendingCredit> credits) {
+        for (CreditStripes.PendingCredit credit : credits) {
+            JournalRecord record;
+            try {
+                record = applyCredit(account, customerId, credit.creditAmount);
+            } catch (Error e) {
+                credit.result.completeExceptionally(e);
+                continue;
+            }
+            CustomerBalance balance = account.getBalance();
+            credit.completeWith(null == record ? CompletableFuture.completedFuture(balance)
+                    : journal(account, record).thenApply(lsn -> balance));
+        }
+    }
+
+    private Account readAccount(byte[] image, int version) throws IOException {
+        Account account = newAccount();
+        account.readFrom(new DataInputStream(new ByteArrayInputStream(image)), version);
+        return account;
+    }
+
+    private Account getAccount(String customerId) {
+        checkJournal();
+        Account account = accountStore.get(customerId);
+        if (null == account) {
+            throw new Error("Invalid customer Id");
+        }
+        return account;
+    }
+
+    // looks the account up and pins its ledger for reading off the owning shard, unpin once done
+    private Account pinAccount(String customerId) {
+        while (true) {
+            Account account = getAccount(customerId);
+            if (account.pin()) {
+                return account;
+            }
+            // replaced or removed since the lookup, the store holds its successor if any
+        }
+    }
+
+    // applies credit on the owning shard, returns the record to journal or null for a duplicate
+    private JournalRecord applyCredit(Account account, String customerId, CreditAmount creditAmount) {
+        Instant now = Instant.now();
+        if (!account.credit(customerId, creditAmount, now)) {
+            return null;
+        }
+        Instant expiresAt = creditAmount.getExpiresAt();
+        if (null != expiresAt) {
+            scheduleExpiry(customerId, account);
+        }
+        return JournalRecord.credit(customerId, creditAmount.getCreditType(), creditAmount.getTransactionId(),
+                Amounts.toUnits(creditAmount.getMoney().getAmount()), creditAmount.getMoney().getCurrency(),
+                now.toEpochMilli(), null == expiresAt ? 0L : expiresAt.toEpochMilli());
+    }
+
+    // applies debit on the owning shard, returns the record to journal or null for a duplicate
+    private JournalRecord applyDebit(Account account, String customerId, DebitAmount debitAmount) {
+        Instant now = Instant.now();
+        // the debit would skip them anyway, expire them here so the expiries are journaled ahead of it
+        expireDue(account, customerId, now);
+        if (!account.debit(customerId, debitAmount, now)) {
+            return null;
+        }
+        return JournalRecord.debit(customerId, debitAmount.getInvoiceId(),
+                Amounts.toUnits(debitAmount.getMoney().getAmount()), debitAmount.getMoney().getCurrency(),
+                now.toEpochMilli());
+    }
+
+    // expires the credits of an account that are due on the owning shard, journals the expiries and schedules the
+    // account's next one
+    private void expireDue(Account account, String customerId, Instant now) {
+        LedgerLog ledger = account.getLedger();
+        for (OpenCredit credit : account.expire(now)) {
+            journal(account, JournalRecord.expiry(customerId, ledger.getCreditType(credit.getCredit()),
+                    ledger.getTransactionId(credit.getCredit()), credit.getRemaining(),
+                    ledger.getCreditCurrency(credit.getCredit()), credit.getExpiresAt()));
+        }
+        scheduleExpiry(customerId, account);
+    }
+
+    // schedules an expiry pass over the account at its next expiry, unless one is scheduled no later than that
+    private void scheduleExpiry(String customerId, Account account) {
+        long nextExpiry = account.getNextExpiry();
+        if (nextExpiry < account.getScheduledExpiry()) {
+            account.setScheduledExpiry(nextExpiry);
+            expiryWheel(accountExecutorService.shardFor(customerId)).schedule(nextExpiry, customerId);
+        }
+    }
+
+    private TimingWheel<String> expiryWheel(int shard) {
+        return expiryWheels.computeIfAbsent(shard,
+                index -> new TimingWheel<>(expiryTickMillis, System.currentTimeMillis()));
+    }
+
+    // journals an applied operation, responses are held back until the record is as durable as configured
+    private CompletableFuture<Long> journal(Account account, JournalRecord record) {
+        if (null == journal) {
+            return CompletableFuture.completedFuture(0L);
+        }
+        CompletableFuture<Long> durable;
+        try {
+            durable = journal.append(record);
+        } catch (RuntimeException | Error e) {
+            // the account already shows the operation, stop before anyone else sees or builds on it
+            journalFailure = e;
+            throw new Error("Journal append failed, the ledger stopped", e);
+        }
+        account.setLastLsn(record.getLsn());
+        return durable;
+    }
+
+    // refuses operations once the ledger stopped after a failed journal append
+    private void checkJournal() {
+        if (null != journalFailure) {
+            throw new Error("Ledger stopped after a journal append failed, restart to recover from the journal",
+                    journalFailure);
+        }
+    }
+
+    // images every account on its own shard in small batches, writes to the shard are served between batches
+    private void imageAll(ImageSink sink) throws IOException {
+        int numShards = accountExecutorService.getNumShards();
+        List<List<String>> customersByShard = new ArrayList<>(numShards);
+        for (int i = 0; i < numShards; i++) {
+            customersByShard.add(new ArrayList<>());
+        }
+        for (String customerId : accountStore.customerIds()) {
+            customersByShard.get(accountExecutorService.shardFor(customerId)).add(customerId);
+        }
+
+        for (int shard = 0; shard < numShards; shard++) {
+            List<String> customerIds = customersByShard.get(shard);
+            for (int from = 0; from < customerIds.size(); from += SNAPSHOT_BATCH_SIZE) {
+                List<String> batch = customerIds.subList(from,
+                        Math.min(from + SNAPSHOT_BATCH_SIZE, customerIds.size()));
+                List<byte[]> images = accountExecutorService.execute(batch.get(0), () -> image(batch));
+                for (int i = 0; i < batch.size(); i++) {
+                    sink.accept(shard, batch.get(i), images.get(i));
+                }
+            }
+        }
+    }
+
+    private interface ImageSink {
+        void accept(int shard, String customerId, byte[] image) throws IOException;
+    }
+
+    // images accounts owned by the current shard
+    private List<byte[]> image(List<String> customerIds) throws IOException {
+        List<byte[]> images = new ArrayList<>(customerIds.size());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String customerId : customerIds) {
+            byte[] stored = accountStore.getImage(customerId);
+            if (null != stored) {
+                images.add(stored);
+                continue;
+            }
+            bytes.reset();
+            DataOutputStream out = new DataOutputStream(bytes);
+            accountStore.get(customerId).writeTo(out);
+            out.flush();
+            images.add(bytes.toByteArray());
+        }
+        return images;
+    }
+
+    // re-applies a journaled operation to its account, unless the account was loaded from a snapshot including it
+    private void apply(JournalRecord record) {
+        if (record.getType() == JournalRecord.Type.ATTACH || record.getType() == JournalRecord.Type.DETACH) {
+            applyHandOver(record);
+            return;
+        }
+        Account account = accountStore.computeIfAbsent(record.getCustomerId(), this::newAccount);
+        if (record.getLsn() <= account.getLastLsn()) {
+            return;
+        }
+        account.setLastLsn(record.getLsn());
+        Money money = new Money(Amounts.toDecimal(record.getUnits()), record.getCurrency());
+        Instant transactionDate = Instant.ofEpochMilli(record.getTimestamp());
+        if (record.getType() == JournalRecord.Type.CREDIT) {
+            CreditAmount creditAmount = new CreditAmount(record.getCreditType(), money, record.getId());
+            if (record.getExpiresAt() > 0) {
+                creditAmount.setExpiresAt(Instant.ofEpochMilli(record.getExpiresAt()));
+            }
+            account.credit(record.getCustomerId(), creditAmount, transactionDate);
+        } else if (record.getType() == JournalRecord.Type.EXPIRY) {
+            account.expire(record.getCreditType(), record.getId());
+        } else {
+            account.debit(record.getCustomerId(), new DebitAmount(record.getId(), money), transactionDate);
+        }
+    }
+
+    // replaces or removes an account handed over to or from this node, unless it already reflects the hand-over
+    private void applyHandOver(JournalRecord record) {
+        Account existing = accountStore.get(record.getCustomerId());
+        if (null != existing && record.getLsn() <= existing.getLastLsn()) {
+            return;
+        }
+        if (record.getType() == JournalRecord.Type.DETACH) {
+            accountStore.remove(record.getCustomerId());
+            return;
+        }
+        Account account;
+        try {
+            account = readAccount(record.getImage(), (int) record.getUnits());
+        } catch (IOException e) {
+            throw new Error("Invalid account image in journal", e);
+        }
+        account.setLastLsn(record.getLsn());
+        accountStore.put(record.getCustomerId(), account);
     }
-}
\ No newline at end of file
+}
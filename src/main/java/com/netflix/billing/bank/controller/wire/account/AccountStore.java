@@ -0,0 +1,122 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.model.AccountState;
+import com.netflix.billing.bank.model.LedgerLog;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * The accounts a node holds, by customerId, and where their histories are kept. Accounts are added and removed by
+ * the shard owning their customer and looked up from any thread.
+ */
+public interface AccountStore {
+
+    /**
+     * Returns the account of given customer
+     *
+     * @param customerId
+     * @return null when the customer has no account
+     */
+    Account get(String customerId);
+
+    /**
+     * Returns the account of given customer for the shard owning it to change, an account the store moved out of
+     * memory is brought back
+     *
+     * @param customerId
+     * @return null when the customer has no account
+     */
+    default Account getForUpdate(String customerId) {
+        return get(customerId);
+    }
+
+    /**
+     * Returns the published state of given customer's account, without bringing back an account the store moved out
+     * of memory
+     *
+     * @param customerId
+     * @return null when the customer has no account
+     */
+    default AccountState getState(String customerId) {
+        Account account = get(customerId);
+        return null == account ? null : account.getState();
+    }
+
+    /**
+     * Returns the epoch millis no open credit of given customer's account expires before, without bringing back an
+     * account the store moved out of memory
+     *
+     * @param customerId
+     * @return Long.MAX_VALUE when none expires or the customer has no account
+     */
+    default long getNextExpiry(String customerId) {
+        Account account = get(customerId);
+        return null == account ? Long.MAX_VALUE : account.getNextExpiry();
+    }
+
+    /**
+     * Returns the image of given customer's account if the store keeps it serialized, so imaging the account need
+     * not read it back first
+     *
+     * @param customerId
+     * @return image in the current snapshot format, null when the account is in memory or absent
+     */
+    default byte[] getImage(String customerId) {
+        return null;
+    }
+
+    /**
+     * Returns the account of given customer, adding the one newAccount creates if it has none
+     *
+     * @param customerId
+     * @param newAccount
+     * @return Account
+     */
+    Account computeIfAbsent(String customerId, Supplier<Account> newAccount);
+
+    /**
+     * Adds or replaces the account of given customer, a replaced account is released
+     *
+     * @param customerId
+     * @param account
+     */
+    void put(String customerId, Account account);
+
+    /**
+     * Removes and releases the account of given customer
+     *
+     * @param customerId
+     */
+    void remove(String customerId);
+
+    /**
+     * Returns the customers holding an account
+     *
+     * @return customerIds, a copy
+     */
+    List<String> customerIds();
+
+    void forEach(BiConsumer<String, Account> action);
+
+    /**
+     * Returns an empty log for the history of a new account of this store
+     *
+     * @return LedgerLog
+     */
+    LedgerLog newLedger();
+
+    /**
+     * Sets how the store creates the empty accounts it reads serialized accounts back into, before it is used
+     *
+     * @param newAccount
+     */
+    default void setAccountFactory(Supplier<Account> newAccount) {
+    }
+
+    /**
+     * Removes and releases all accounts
+     */
+    void clear();
+}
@@ -1,14 +1,27 @@
 package com.netflix.billing.bank.controller.wire.account;
 
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
 import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.model.Amounts;
 import org.springframework.stereotype.Component;
 
 import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.Set;
 
 @Component
 public class AmountValidator {
 
+    // ISO 4217 codes the JDK knows of, currencies are dictionary encoded once for all accounts so the set is bounded
+    private static final Set<String> CURRENCY_CODES = new HashSet<>();
+
+    static {
+        for (java.util.Currency currency : java.util.Currency.getAvailableCurrencies()) {
+            CURRENCY_CODES.add(currency.getCurrencyCode());
+        }
+    }
+
     /**
      * Validate {@link CreditAmount}
      * @param amount
@@ -19,7 +32,8 @@ public class AmountValidator {
             return false;
         }
         if (null == amount.getCreditType() || null == amount.getMoney() ||
-                null == amount.getMoney().getAmount() || amount.getMoney().getAmount().compareTo(BigDecimal.ZERO) < 0) {
+                null == amount.getMoney().getAmount() || amount.getMoney().getAmount().compareTo(BigDecimal.ZERO) < 0 ||
+                !Amounts.fits(amount.getMoney().getAmount()) || !isKnownCurrency(amount.getMoney().getCurrency())) {
             return false;
         }
         return true;
@@ -35,9 +49,26 @@ public class AmountValidator {
             return false;
         }
         if (null == amount.getMoney() ||
-                null == amount.getMoney().getAmount() || amount.getMoney().getAmount().compareTo(BigDecimal.ZERO) < 0) {
+                null == amount.getMoney().getAmount() || amount.getMoney().getAmount().compareTo(BigDecimal.ZERO) < 0 ||
+                !Amounts.fits(amount.getMoney().getAmount()) || !isKnownCurrency(amount.getMoney().getCurrency())) {
             return false;
         }
         return true;
     }
+
+    /**
+     * Validate {@link BatchOperation}, exactly one of credit or debit must be set and valid
+     * @param operation
+     * @return boolean
+     */
+    public boolean validateOperation(BatchOperation operation) {
+        if (null == operation || (null == operation.getCredit()) == (null == operation.getDebit())) {
+            return false;
+        }
+        return null != operation.getCredit() ? validateCredit(operation.getCredit()) : validateDebit(operation.getDebit());
+    }
+
+    private static boolean isKnownCurrency(String currency) {
+        return null != currency && CURRENCY_CODES.contains(currency);
+    }
 }
@@ -0,0 +1,228 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Account images kept in local segment files, the cold tier of a {@link TieredAccountStore}.
+ *
+ * Images are appended to the newest segment as (customerId, image) records, and an in-memory index points every
+ * customer at its latest image. A segment is rolled once it reaches the configured size; one whose images were all
+ * replaced or removed is deleted, and once less than half of a full segment is still in use the live images are
+ * copied to the newest segment so it can be deleted too. The files are a cache of accounts the journal and
+ * snapshots hold anyway, any left over from an earlier run are deleted on start.
+ *
+ * Not thread-safe, the tiered store serializes access.
+ */
+class ColdSegments {
+
+    private static final String PREFIX = "cold-";
+    private static final String SUFFIX = ".seg";
+
+    private final File directory;
+    private final int segmentSize;
+    // latest image of every cold customer
+    private final Map<String, Location> index = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    private int nextSegment;
+
+    ColdSegments(File directory, int segmentSize) throws IOException {
+        if (null == directory || segmentSize <= 0) {
+            throw new Error("Invalid cold tier configuration");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cold tier directory " + directory);
+        }
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        for (File file : null == stale ? new File[0] : stale) {
+            if (!file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Stores the image of given customer, replacing the one it had
+     *
+     * @param customerId
+     * @param image
+     */
+    void put(String customerId, byte[] image) throws IOException {
+        byte[] key = customerId.getBytes(StandardCharsets.UTF_8);
+        int recordSize = 8 + key.length + image.length;
+        if (null == active || (active.size > 0 && active.size + recordSize > segmentSize)) {
+            roll();
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(key.length).put(key).putInt(image.length).put(image).flip();
+        long position = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, position + record.position());
+        }
+        active.size += recordSize;
+        active.live += recordSize;
+        drop(index.put(customerId, new Location(active, position + 8 + key.length, image.length, recordSize)));
+    }
+
+    /**
+     * Returns the image of given customer
+     *
+     * @param customerId
+     * @return null when the customer has none
+     */
+    byte[] get(String customerId) throws IOException {
+        Location location = index.get(customerId);
+        return null == location ? null : read(location.segment, location.offset, location.length);
+    }
+
+    /**
+     * Drops the image of given customer
+     *
+     * @param customerId
+     */
+    void remove(String customerId) throws IOException {
+        drop(index.remove(customerId));
+    }
+
+    boolean contains(String customerId) {
+        return index.containsKey(customerId);
+    }
+
+    Set<String> customerIds() {
+        return index.keySet();
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * Bytes of the segment files, in use or not
+     */
+    long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.size;
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops every image and deletes the segment files
+     */
+    void clear() throws IOException {
+        index.clear();
+        for (Segment segment : new ArrayList<>(segments)) {
+            delete(segment);
+        }
+        active = null;
+    }
+
+    // accounts for an image no longer in use, and frees its segment once that is worth it
+    private void drop(Location location) throws IOException {
+        if (null == location) {
+            return;
+        }
+        Segment segment = location.segment;
+        segment.live -= location.recordSize;
+        if (segment == active) {
+            return;
+        }
+        if (segment.live == 0) {
+            delete(segment);
+        } else if (2L * segment.live < segment.size && !segment.compacting) {
+            compact(segment);
+        }
+    }
+
+    // copies the images still in use in a sealed segment to the active one and deletes it
+    private void compact(Segment segment) throws IOException {
+        segment.compacting = true;
+        long position = 0;
+        while (position < segment.size) {
+            ByteBuffer header = ByteBuffer.wrap(read(segment, position, 4));
+            int keyLength = header.getInt();
+            String customerId = new String(read(segment, position + 4, keyLength), StandardCharsets.UTF_8);
+            int imageLength = ByteBuffer.wrap(read(segment, position + 4 + keyLength, 4)).getInt();
+            long offset = position + 8 + keyLength;
+            Location location = index.get(customerId);
+            if (null != location && location.segment == segment && location.offset == offset) {
+                // put drops the copy read here, which deletes the segment with the last live image
+                put(customerId, read(segment, offset, imageLength));
+            }
+            position = offset + imageLength;
+            if (!segments.contains(segment)) {
+                return;
+            }
+        }
+    }
+
+    private byte[] read(Segment segment, long position, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        while (bytes.hasRemaining()) {
+            if (segment.channel.read(bytes, position + bytes.position()) < 0) {
+                throw new IOException("Truncated cold segment " + segment.file);
+            }
+        }
+        return bytes.array();
+    }
+
+    private void roll() throws IOException {
+        if (null != active && active.live == 0) {
+            // every image in it was dropped while it was being appended to, no later drop would free it
+            delete(active);
+        }
+        File file = new File(directory, String.format(PREFIX + "%08d" + SUFFIX, nextSegment++));
+        active = new Segment(file, new RandomAccessFile(file, "rw").getChannel());
+        segments.add(active);
+    }
+
+    private void delete(Segment segment) throws IOException {
+        segments.remove(segment);
+        segment.channel.close();
+        if (!segment.file.delete()) {
+            throw new IOException("Cannot delete " + segment.file);
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final FileChannel channel;
+        // bytes written, and bytes of the records still in use
+        private long size;
+        private long live;
+        private boolean compacting;
+
+        Segment(File file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        // position and length of the image
+        private final long offset;
+        private final int length;
+        private final int recordSize;
+
+        Location(Segment segment, long offset, int length, int recordSize) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.recordSize = recordSize;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Credits offered to a hot account, waiting to be applied by the shard owning it. Callers append to one of several
+ * lock-free stripes, picked by thread, instead of each queueing a task in the shard's mailbox; the shard drains all
+ * of them in one task and applies the credits in the order of the sequence numbers they arrived with. Every credit
+ * is taken out of the stripes exactly once, by a drain or by {@link #refuse(Error)}.
+ */
+class CreditStripes {
+
+    private final ConcurrentLinkedQueue<PendingCredit>[] stripes;
+    // set while a drain is queued on the shard, appends schedule one only when it is clear
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    // credits drained, only touched by the shard
+    private final RateWindow drained = new RateWindow();
+
+    @SuppressWarnings("unchecked")
+    CreditStripes(int numStripes) {
+        stripes = (ConcurrentLinkedQueue<PendingCredit>[]) new ConcurrentLinkedQueue<?>[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Appends credit to the stripe of the current thread
+     *
+     * @param credit
+     * @return true when the caller has to schedule a drain on the shard
+     */
+    boolean offer(PendingCredit credit) {
+        stripes[(int) (Thread.currentThread().getId() % stripes.length)].add(credit);
+        return !drainScheduled.get() && drainScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * The scheduled drain started, credits appended from now on schedule the next one
+     */
+    void drainStarted() {
+        drainScheduled.set(false);
+    }
+
+    /**
+     * The drain could not be scheduled: fails the credits no drain took yet with given error, appends from now on
+     * try to schedule one again
+     *
+     * @param error
+     */
+    void refuse(Error error) {
+        drainScheduled.set(false);
+        for (ConcurrentLinkedQueue<PendingCredit> stripe : stripes) {
+            for (PendingCredit credit = stripe.poll(); null != credit; credit = stripe.poll()) {
+                credit.result.completeExceptionally(error);
+            }
+        }
+    }
+
+    /**
+     * Takes all credits appended so far, in arrival order. Must run on the owning shard.
+     *
+     * @return credits to apply
+     */
+    List<PendingCredit> drain() {
+        List<PendingCredit> credits = new ArrayList<>();
+        for (ConcurrentLinkedQueue<PendingCredit> stripe : stripes) {
+            for (PendingCredit credit = stripe.poll(); null != credit; credit = stripe.poll()) {
+                credits.add(credit);
+            }
+        }
+        credits.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+        drained.count(credits.size());
+        return credits;
+    }
+
+    /**
+     * Returns the rate credits were drained at, see {@link RateWindow#rate(long)}. Must run on the owning shard.
+     */
+    long drainRate(long windowNanos) {
+        return drained.rate(windowNanos);
+    }
+
+    static class PendingCredit {
+        // arrival order across credits and debits of hot accounts
+        final long sequence;
+        final CreditAmount creditAmount;
+        final CompletableFuture<CustomerBalance> result = new CompletableFuture<>();
+
+        PendingCredit(long sequence, CreditAmount creditAmount) {
+            this.sequence = sequence;
+            this.creditAmount = creditAmount;
+        }
+
+        // completes the credit with balance, once that is
+        void completeWith(CompletableFuture<CustomerBalance> balance) {
+            balance.whenComplete((value, error) -> {
+                if (null == error) {
+                    result.complete(value);
+                } else {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+    }
+}
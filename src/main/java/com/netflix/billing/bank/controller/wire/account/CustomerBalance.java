@@ -14,6 +14,12 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class CustomerBalance {
     private Map<CreditType, List<Money>> balanceAmounts;
+    // number of ledger changes the balance reflects, pass it as minVersion to read your own writes from a replica
+    private long version;
+    // set once the balance is published by an account and never changed again, its JSON is then encoded only once
+    private boolean frozen;
+    // UTF-8 JSON of a frozen balance, see LedgerJson
+    volatile byte[] json;
 
     public CustomerBalance() {
         this.balanceAmounts = new ConcurrentHashMap<>();
@@ -24,9 +30,40 @@ public class CustomerBalance {
     }
 
     public void setBalanceAmounts(Map<CreditType, List<Money>> balanceAmounts) {
+        checkNotFrozen();
         this.balanceAmounts = balanceAmounts;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        checkNotFrozen();
+        this.version = version;
+    }
+
+    /**
+     * Marks this balance as never changing again, so its JSON can be encoded once and reused by every response
+     *
+     * @return this
+     */
+    public CustomerBalance freeze() {
+        frozen = true;
+        return this;
+    }
+
+    boolean frozen() {
+        return frozen;
+    }
+
+    // a frozen balance is shared by every reader of its version and its JSON may be cached already
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new Error("Published balance cannot be changed");
+        }
+    }
+
     /**
      * Add given money for creditType
      * @param creditType
@@ -42,6 +79,7 @@ public class CustomerBalance {
      * @param moneyList
      */
     public void addAll(CreditType creditType, List<Money> moneyList) {
+        checkNotFrozen();
         List<Money> list = balanceAmounts.getOrDefault(creditType, new ArrayList<>());
         list.addAll(moneyList);
         balanceAmounts.put(creditType, list);
@@ -0,0 +1,60 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.model.HeapLedgerLog;
+import com.netflix.billing.bank.model.LedgerLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link AccountStore} keeping everything on the heap, the default
+ */
+public class HeapAccountStore implements AccountStore {
+
+    // CustomerId to their Accounts map
+    private final Map<String, Account> customerIdToAccountMap = new ConcurrentHashMap<>();
+
+    @Override
+    public Account get(String customerId) {
+        return customerIdToAccountMap.get(customerId);
+    }
+
+    @Override
+    public Account computeIfAbsent(String customerId, Supplier<Account> newAccount) {
+        return customerIdToAccountMap.computeIfAbsent(customerId, id -> newAccount.get());
+    }
+
+    @Override
+    public void put(String customerId, Account account) {
+        customerIdToAccountMap.put(customerId, account);
+    }
+
+    @Override
+    public void remove(String customerId) {
+        customerIdToAccountMap.remove(customerId);
+    }
+
+    @Override
+    public List<String> customerIds() {
+        return new ArrayList<>(customerIdToAccountMap.keySet());
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Account> action) {
+        customerIdToAccountMap.forEach(action);
+    }
+
+    @Override
+    public LedgerLog newLedger() {
+        return new HeapLedgerLog();
+    }
+
+    @Override
+    public void clear() {
+        customerIdToAccountMap.clear();
+    }
+}
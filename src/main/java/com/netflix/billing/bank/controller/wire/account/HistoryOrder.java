@@ -0,0 +1,9 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+/**
+ * Order history pages are returned in
+ */
+public enum HistoryOrder {
+    OLDEST_FIRST,
+    NEWEST_FIRST
+}
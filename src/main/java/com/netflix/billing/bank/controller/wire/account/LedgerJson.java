@@ -0,0 +1,128 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.debit.DebitLineItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-written JSON encoding of the balance and debit history responses, straight onto a {@link JsonGenerator}
+ * instead of through Jackson's reflective bean serializers. The output is the same as Jackson's for these classes:
+ * properties in declaration order, nulls included, BigDecimals as numbers and Instants as ISO-8601 strings.
+ *
+ * The JSON of a frozen {@link CustomerBalance}, the one an account publishes with every version of its balance, is
+ * encoded once and kept on it; every later response for that version writes the same bytes. A new version is a new
+ * balance, so nothing has to be invalidated.
+ */
+public final class LedgerJson {
+
+    private LedgerJson() {
+    }
+
+    /**
+     * Returns the UTF-8 JSON of given balance, encoded once per frozen balance
+     *
+     * @param balance
+     * @param factory
+     * @return JSON, not to be modified
+     */
+    public static byte[] balance(CustomerBalance balance, JsonFactory factory) throws IOException {
+        byte[] json = balance.json;
+        if (null != json) {
+            return json;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (JsonGenerator generator = factory.createGenerator(bytes)) {
+            writeBalance(generator, balance);
+        }
+        json = bytes.toByteArray();
+        if (balance.frozen()) {
+            // racing encoders store equal bytes
+            balance.json = json;
+        }
+        return json;
+    }
+
+    public static void writeBalance(JsonGenerator generator, CustomerBalance balance) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName("balanceAmounts");
+        Map<CreditType, List<Money>> balanceAmounts = balance.getBalanceAmounts();
+        if (null == balanceAmounts) {
+            generator.writeNull();
+        } else {
+            generator.writeStartObject();
+            for (Map.Entry<CreditType, List<Money>> amounts : balanceAmounts.entrySet()) {
+                generator.writeFieldName(amounts.getKey().name());
+                writeMoneyList(generator, amounts.getValue());
+            }
+            generator.writeEndObject();
+        }
+        generator.writeNumberField("version", balance.getVersion());
+        generator.writeEndObject();
+    }
+
+    public static void writeDebitHistoryPage(JsonGenerator generator, DebitHistoryPage page) throws IOException {
+        generator.writeStartObject();
+        generator.writeFieldName("debits");
+        if (null == page.getDebits()) {
+            generator.writeNull();
+        } else {
+            generator.writeStartArray();
+            for (DebitLineItem debit : page.getDebits()) {
+                writeDebitLineItem(generator, debit);
+            }
+            generator.writeEndArray();
+        }
+        generator.writeStringField("nextCursor", page.getNextCursor());
+        generator.writeEndObject();
+    }
+
+    private static void writeDebitLineItem(JsonGenerator generator, DebitLineItem debit) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("invoiceId", debit.getInvoiceId());
+        generator.writeFieldName("money");
+        writeMoney(generator, debit.getMoney());
+        generator.writeStringField("transactionId", debit.getTransactionId());
+        generator.writeStringField("creditType", null == debit.getCreditType() ? null : debit.getCreditType().name());
+        Instant transactionDate = debit.getTransactionDate();
+        generator.writeStringField("transactionDate",
+                null == transactionDate ? null : DateTimeFormatter.ISO_INSTANT.format(transactionDate));
+        generator.writeEndObject();
+    }
+
+    private static void writeMoneyList(JsonGenerator generator, List<Money> moneyList) throws IOException {
+        if (null == moneyList) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartArray();
+        for (Money money : moneyList) {
+            writeMoney(generator, money);
+        }
+        generator.writeEndArray();
+    }
+
+    private static void writeMoney(JsonGenerator generator, Money money) throws IOException {
+        if (null == money) {
+            generator.writeNull();
+            return;
+        }
+        generator.writeStartObject();
+        generator.writeFieldName("amount");
+        if (null == money.getAmount()) {
+            generator.writeNull();
+        } else {
+            generator.writeNumber(money.getAmount());
+        }
+        generator.writeStringField("currency", money.getCurrency());
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,39 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+/**
+ * Observes what accounts do, e.g. for metrics. Called on the shard owning the account, in the middle of the operation,
+ * so implementations must be cheap and must not allocate.
+ */
+public interface LedgerListener {
+
+    // listener ignoring everything
+    LedgerListener NONE = new LedgerListener() {
+    };
+
+    /**
+     * A credit was ignored because its transactionId was already applied for its creditType
+     */
+    default void creditDeduplicated() {
+    }
+
+    /**
+     * A debit was ignored because its invoiceId was already applied
+     */
+    default void debitDeduplicated() {
+    }
+
+    /**
+     * A debit was refused because it exceeds the balance
+     */
+    default void insufficientBalance() {
+    }
+
+    /**
+     * A debit was applied
+     *
+     * @param creditsConsumed number of credits the debit was charged against
+     * @param consumeNanos time spent consuming those credits
+     */
+    default void debitApplied(int creditsConsumed, long consumeNanos) {
+    }
+}
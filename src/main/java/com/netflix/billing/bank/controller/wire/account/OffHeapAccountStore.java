@@ -0,0 +1,244 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.model.LedgerLog;
+import com.netflix.billing.bank.model.OffHeapArena;
+import com.netflix.billing.bank.model.OffHeapLedgerLog;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link AccountStore} keeping the accounts' histories, the part of an account that grows without bound, in an
+ * {@link OffHeapArena}; what stays on the heap per account is its open credits, dedupe window and published balance.
+ * Accounts are found through an open-addressing index: a customerId is hashed to a slot and the following slots are
+ * probed, customerIds are kept as UTF-8 in the arena and compared there, so the index holds a few arrays instead of
+ * a map entry and a String per customer.
+ *
+ * Lookups take no lock. Adding and removing take the store's lock; a slot's customerId is written before its
+ * account, which is read first, and a table that fills up is replaced by a larger copy, so a lookup always sees a
+ * slot whole. Removed customers leave a marker behind, reused if the customer comes back and dropped when the table
+ * is copied; their customerIds are only handed back to the arena by {@link #clear()}, as a lookup may still compare
+ * against them. Accounts replaced or removed are retired, their ledger goes back to the arena once the readers that
+ * pinned it are done (see {@link Account#pin()}).
+ */
+public class OffHeapAccountStore implements AccountStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // account of a slot whose customer was removed
+    private static final Object REMOVED = new Object();
+
+    private final OffHeapArena arena;
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+    // slots in use, including removed ones; only touched under the lock
+    private int used;
+    // customerIds dropped from the table, freed by clear
+    private long[] retiredKeys = new long[16];
+    private int numRetiredKeys;
+
+    public OffHeapAccountStore(OffHeapArena arena) {
+        this.arena = arena;
+    }
+
+    @Override
+    public Account get(String customerId) {
+        byte[] key = customerId.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(customerId);
+        Table current = table;
+        for (int slot = hash & current.mask; ; slot = (slot + 1) & current.mask) {
+            Object account = current.accounts.get(slot);
+            if (null == account) {
+                return null;
+            }
+            if (REMOVED != account && current.hashes[slot] == hash && arena.stringEquals(current.keys[slot], key)) {
+                return (Account) account;
+            }
+        }
+    }
+
+    @Override
+    public Account computeIfAbsent(String customerId, Supplier<Account> newAccount) {
+        Account account = get(customerId);
+        if (null != account) {
+            return account;
+        }
+        synchronized (this) {
+            account = get(customerId);
+            if (null == account) {
+                account = newAccount.get();
+                insert(customerId, account);
+            }
+            return account;
+        }
+    }
+
+    @Override
+    public synchronized void put(String customerId, Account account) {
+        Account replaced = insert(customerId, account);
+        if (null != replaced && replaced != account) {
+            replaced.retire();
+        }
+    }
+
+    @Override
+    public synchronized void remove(String customerId) {
+        int slot = find(table, customerId.getBytes(StandardCharsets.UTF_8), hash(customerId));
+        if (slot < 0) {
+            return;
+        }
+        Object account = table.accounts.get(slot);
+        if (REMOVED != account) {
+            table.accounts.set(slot, REMOVED);
+            ((Account) account).retire();
+        }
+    }
+
+    @Override
+    public List<String> customerIds() {
+        List<String> customerIds = new ArrayList<>();
+        forEach((customerId, account) -> customerIds.add(customerId));
+        return customerIds;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Account> action) {
+        Table current = table;
+        for (int slot = 0; slot <= current.mask; slot++) {
+            Object account = current.accounts.get(slot);
+            if (null != account && REMOVED != account) {
+                action.accept(arena.getString(current.keys[slot]), (Account) account);
+            }
+        }
+    }
+
+    @Override
+    public LedgerLog newLedger() {
+        return new OffHeapLedgerLog(arena);
+    }
+
+    @Override
+    public synchronized void clear() {
+        Table current = table;
+        table = new Table(INITIAL_CAPACITY);
+        used = 0;
+        for (int slot = 0; slot <= current.mask; slot++) {
+            Object account = current.accounts.get(slot);
+            if (null == account) {
+                continue;
+            }
+            if (REMOVED != account) {
+                ((Account) account).retire();
+            }
+            freeKey(current.keys[slot]);
+        }
+        for (int i = 0; i < numRetiredKeys; i++) {
+            freeKey(retiredKeys[i]);
+        }
+        numRetiredKeys = 0;
+    }
+
+    // adds or replaces the account of customerId, returns the one replaced; under the lock
+    private Account insert(String customerId, Account account) {
+        byte[] key = customerId.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(customerId);
+        int slot = find(table, key, hash);
+        if (slot >= 0) {
+            Object replaced = table.accounts.get(slot);
+            table.accounts.set(slot, account);
+            return REMOVED == replaced ? null : (Account) replaced;
+        }
+        if (2 * (used + 1) > table.mask + 1) {
+            rebuild();
+        }
+        long address = arena.allocate(4 + key.length);
+        arena.putString(address, key);
+        Table current = table;
+        slot = hash & current.mask;
+        while (null != current.accounts.get(slot)) {
+            slot = (slot + 1) & current.mask;
+        }
+        current.keys[slot] = address;
+        current.hashes[slot] = hash;
+        // published last, a lookup finding the account finds its customerId too
+        current.accounts.set(slot, account);
+        used++;
+        return null;
+    }
+
+    // slot holding customerId, removed or not, -1 if there is none
+    private int find(Table current, byte[] key, int hash) {
+        for (int slot = hash & current.mask; ; slot = (slot + 1) & current.mask) {
+            if (null == current.accounts.get(slot)) {
+                return -1;
+            }
+            if (current.hashes[slot] == hash && arena.stringEquals(current.keys[slot], key)) {
+                return slot;
+            }
+        }
+    }
+
+    // copies the live slots to a new table, twice as large unless removed slots made most of the old one full
+    private void rebuild() {
+        Table current = table;
+        int live = 0;
+        for (int slot = 0; slot <= current.mask; slot++) {
+            Object account = current.accounts.get(slot);
+            if (null != account && REMOVED != account) {
+                live++;
+            }
+        }
+        int capacity = current.mask + 1;
+        Table rebuilt = new Table(4 * (live + 1) > capacity ? 2 * capacity : capacity);
+        for (int slot = 0; slot <= current.mask; slot++) {
+            Object account = current.accounts.get(slot);
+            if (null == account) {
+                continue;
+            }
+            if (REMOVED == account) {
+                if (numRetiredKeys == retiredKeys.length) {
+                    retiredKeys = Arrays.copyOf(retiredKeys, 2 * numRetiredKeys);
+                }
+                retiredKeys[numRetiredKeys++] = current.keys[slot];
+                continue;
+            }
+            int target = current.hashes[slot] & rebuilt.mask;
+            while (null != rebuilt.accounts.get(target)) {
+                target = (target + 1) & rebuilt.mask;
+            }
+            rebuilt.keys[target] = current.keys[slot];
+            rebuilt.hashes[target] = current.hashes[slot];
+            rebuilt.accounts.set(target, account);
+        }
+        used = live;
+        table = rebuilt;
+    }
+
+    private void freeKey(long address) {
+        arena.free(address, 4 + arena.getInt(address));
+    }
+
+    private static int hash(String customerId) {
+        int hash = customerId.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Table {
+        private final int mask;
+        private final int[] hashes;
+        // arena address of each slot's customerId
+        private final long[] keys;
+        // Account, REMOVED or null for a free slot
+        private final AtomicReferenceArray<Object> accounts;
+
+        Table(int capacity) {
+            mask = capacity - 1;
+            hashes = new int[capacity];
+            keys = new long[capacity];
+            accounts = new AtomicReferenceArray<>(capacity);
+        }
+    }
+}
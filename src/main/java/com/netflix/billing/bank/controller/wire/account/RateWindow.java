@@ -0,0 +1,31 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+/**
+ * Counts events over consecutive windows of time, for a single thread (the shard owning an account).
+ */
+class RateWindow {
+
+    private long windowStart = System.nanoTime();
+    private long count;
+
+    void count(int events) {
+        count += events;
+    }
+
+    /**
+     * Returns the rate events were counted at over the window that just ended, and starts the next one
+     *
+     * @param windowNanos
+     * @return events per second, -1 while the window is still running
+     */
+    long rate(long windowNanos) {
+        long now = System.nanoTime();
+        if (now - windowStart < windowNanos) {
+            return -1L;
+        }
+        long rate = count * 1_000_000_000L / (now - windowStart);
+        windowStart = now;
+        count = 0;
+        return rate;
+    }
+}
@@ -0,0 +1,540 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import com.netflix.billing.bank.journal.SnapshotStore;
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+import com.netflix.billing.bank.model.AccountState;
+import com.netflix.billing.bank.model.Amounts;
+import com.netflix.billing.bank.model.BalanceView;
+import com.netflix.billing.bank.model.HeapLedgerLog;
+import com.netflix.billing.bank.model.LedgerLog;
+import com.netflix.billing.bank.model.WindowTinyLfu;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * {@link AccountStore} holding a bounded number of accounts in memory and the others serialized to local disk, for
+ * customers that only transact now and then.
+ *
+ * The hot tier holds at most capacity accounts, picked by a {@link WindowTinyLfu} policy, so customers coming back
+ * often stay in memory while a burst of one-off customers passes through. Accounts the policy evicts are imaged into
+ * {@link ColdSegments} and read back into the hot tier by their next credit, debit or expiry. Reads of a cold account
+ * decode its image without bringing it back, so scanning the ledger does not flush the hot tier, and snapshots copy
+ * the images as they are. The version, next expiry and encoded balance of every cold account stay in memory, so
+ * balances, versions and expiry scheduling need no image at all.
+ *
+ * An account is only imaged by the shard owning it, between two of its operations: a shard evicting another shard's
+ * customer queues it for that shard and schedules a drain there, its own customers are drained before its next update
+ * through the store. Outside of shards, as on recovery, the caller is the only writer and evicts right away. Hot
+ * lookups take no lock and record the use only if the policy is free; moving accounts between the tiers, the policy
+ * and the cold tier are guarded by the store's lock.
+ */
+public class TieredAccountStore implements AccountStore {
+
+    private final AccountExecutorService accountExecutorService;
+    private final WindowTinyLfu<String> policy;
+    private final ColdSegments cold;
+    // accounts in memory, the ones the policy holds and those waiting for their shard to evict them
+    private final Map<String, Account> hot = new ConcurrentHashMap<>();
+    // version, next expiry and encoded balance of the accounts in the cold tier, changed along with it under the lock
+    private final Map<String, ColdAccount> coldAccounts = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    // customers evicted by the policy, by shard
+    private final PendingEvictions[] pending;
+    private volatile Supplier<Account> newAccount;
+    // lookups served from memory, loads from the cold tier and the time they took, accounts moved to the cold tier
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param accountExecutorService shards owning the accounts
+     * @param capacity accounts held in memory
+     * @param directory where the cold tier's segment files are kept, files of an earlier run are deleted
+     * @param segmentSize bytes a segment file grows to before the next is started
+     */
+    public TieredAccountStore(AccountExecutorService accountExecutorService, int capacity, File directory,
+                              int segmentSize) throws IOException {
+        this.accountExecutorService = accountExecutorService;
+        this.policy = new WindowTinyLfu<>(capacity);
+        this.cold = new ColdSegments(directory, segmentSize);
+        this.pending = new PendingEvictions[accountExecutorService.getNumShards()];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new PendingEvictions();
+        }
+    }
+
+    @Override
+    public Account get(String customerId) {
+        Account account = hot.get(customerId);
+        if (null != account) {
+            hits.increment();
+            touch(customerId);
+            return account;
+        }
+        long start = System.nanoTime();
+        byte[] image;
+        lock.lock();
+        try {
+            account = hot.get(customerId);
+            if (null != account) {
+                hits.increment();
+                policy.access(customerId);
+                return account;
+            }
+            // counted, so that a cold account read over and over is admitted once it is written
+            policy.access(customerId);
+            image = cold.get(customerId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+        // the image is a copy, decoding it does not hold up the other shards
+        return null == image ? null : decode(image, start);
+    }
+
+    @Override
+    public AccountState getState(String customerId) {
+        Account account = hot.get(customerId);
+        if (null != account) {
+            hits.increment();
+            touch(customerId);
+            return account.getState();
+        }
+        ColdAccount coldAccount = coldAccounts.get(customerId);
+        if (null != coldAccount) {
+            touch(customerId);
+            return coldAccount.getState();
+        }
+        lock.lock();
+        try {
+            // the account may have moved between the tiers in between the lookups
+            account = hot.get(customerId);
+            coldAccount = coldAccounts.get(customerId);
+            return null != account ? account.getState() : null == coldAccount ? null : coldAccount.getState();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getNextExpiry(String customerId) {
+        lock.lock();
+        try {
+            Account account = hot.get(customerId);
+            ColdAccount coldAccount = coldAccounts.get(customerId);
+            return null != account ? account.getNextExpiry()
+                    : null == coldAccount ? Long.MAX_VALUE : coldAccount.nextExpiry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Account getForUpdate(String customerId) {
+        return promote(customerId, null);
+    }
+
+    @Override
+    public Account computeIfAbsent(String customerId, Supplier<Account> newAccount) {
+        return promote(customerId, newAccount);
+    }
+
+    @Override
+    public byte[] getImage(String customerId) {
+        lock.lock();
+        try {
+            return hot.containsKey(customerId) ? null : cold.get(customerId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(String customerId, Account account) {
+        String victim;
+        lock.lock();
+        try {
+            hot.put(customerId, account);
+            cold.remove(customerId);
+            coldAccounts.remove(customerId);
+            victim = admit(customerId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+        evictLater(victim);
+    }
+
+    @Override
+    public void remove(String customerId) {
+        lock.lock();
+        try {
+            hot.remove(customerId);
+            policy.remove(customerId);
+            cold.remove(customerId);
+            coldAccounts.remove(customerId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> customerIds() {
+        lock.lock();
+        try {
+            // the tiers only exchange accounts under the lock, no customer is in both or neither
+            List<String> customerIds = new ArrayList<>(hot.size() + cold.size());
+            customerIds.addAll(hot.keySet());
+            customerIds.addAll(cold.customerIds());
+            return customerIds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, Account> action) {
+        for (String customerId : customerIds()) {
+            Account account = get(customerId);
+            if (null != account) {
+                action.accept(customerId, account);
+            }
+        }
+    }
+
+    @Override
+    public LedgerLog newLedger() {
+        // evicted accounts are dropped, not released, a reader may still hold one
+        return new HeapLedgerLog();
+    }
+
+    @Override
+    public void setAccountFactory(Supplier<Account> newAccount) {
+        this.newAccount = newAccount;
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            hot.clear();
+            policy.clear();
+            cold.clear();
+            coldAccounts.clear();
+            for (PendingEvictions shard : pending) {
+                shard.customerIds.clear();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lookups served from memory
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Lookups that read an account back from the cold tier
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * Time spent reading accounts back from the cold tier, in nanoseconds
+     */
+    public long getLoadNanos() {
+        return loadNanos.sum();
+    }
+
+    /**
+     * Share of the lookups of existing accounts served from memory, 1 before any lookup
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getLoads();
+        return 0 == lookups ? 1.0 : (double) hits / lookups;
+    }
+
+    /**
+     * Accounts moved to the cold tier
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getHotSize() {
+        return hot.size();
+    }
+
+    public int getColdSize() {
+        lock.lock();
+        try {
+            return cold.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Bytes of the cold tier's segment files
+     */
+    public long getColdBytes() {
+        lock.lock();
+        try {
+            return cold.getBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // returns the account of customerId in the hot tier, reading it back from the cold tier or adding the one
+    // newAccount creates if it is not there, null when there is none and no newAccount
+    private Account promote(String customerId, Supplier<Account> newAccount) {
+        drainOwnShard();
+        Account account = hot.get(customerId);
+        String victim = null;
+        if (null != account) {
+            hits.increment();
+            if (lock.tryLock()) {
+                try {
+                    victim = admit(customerId);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            evictLater(victim);
+            return account;
+        }
+        lock.lock();
+        try {
+            account = hot.get(customerId);
+            if (null != account) {
+                hits.increment();
+            } else {
+                account = load(customerId);
+                if (null != account) {
+                    cold.remove(customerId);
+                } else if (null != newAccount) {
+                    account = newAccount.get();
+                } else {
+                    return null;
+                }
+                hot.put(customerId, account);
+                coldAccounts.remove(customerId);
+            }
+            victim = admit(customerId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+        evictLater(victim);
+        return account;
+    }
+
+    // records a use of a customer if the policy is free
+    private void touch(String customerId) {
+        if (lock.tryLock()) {
+            try {
+                policy.access(customerId);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // records a use of a hot customer, adding it back to the policy if it was evicted since; returns the customer
+    // evicted to make room for it, if any. Under the lock
+    private String admit(String customerId) {
+        return policy.access(customerId) ? null : policy.add(customerId);
+    }
+
+    // reads the cold image of customerId back into a new account, null when there is none; under the lock
+    private Account load(String customerId) throws IOException {
+        long start = System.nanoTime();
+        byte[] image = cold.get(customerId);
+        return null == image ? null : decode(image, start);
+    }
+
+    // reads a cold image into a new account, counted as a load which started at given nanoTime
+    private Account decode(byte[] image, long start) {
+        try {
+            Account account = newAccount.get();
+            account.readFrom(new DataInputStream(new ByteArrayInputStream(image)), SnapshotStore.VERSION);
+            loads.increment();
+            loadNanos.add(System.nanoTime() - start);
+            return account;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // hands an evicted customer to the shard owning it, or evicts it right away outside of shards
+    private void evictLater(String customerId) {
+        if (null == customerId) {
+            return;
+        }
+        int current = accountExecutorService.currentShard();
+        if (current < 0) {
+            evict(customerId);
+            return;
+        }
+        int shard = accountExecutorService.shardFor(customerId);
+        PendingEvictions evictions = pending[shard];
+        evictions.customerIds.add(customerId);
+        // the current shard may be in the middle of an operation, it drains its own before its next update
+        if (shard != current && evictions.scheduled.compareAndSet(false, true)) {
+            try {
+                accountExecutorService.submit(shard, () -> {
+                    drain(shard);
+                    return null;
+                });
+            } catch (OverloadError e) {
+                // drained before the shard's next update instead
+                evictions.scheduled.set(false);
+            }
+        }
+    }
+
+    private void drainOwnShard() {
+        int current = accountExecutorService.currentShard();
+        if (current >= 0 && !pending[current].customerIds.isEmpty()) {
+            drain(current);
+        }
+    }
+
+    // evicts the customers queued for a shard, on that shard
+    private void drain(int shard) {
+        PendingEvictions evictions = pending[shard];
+        evictions.scheduled.set(false);
+        for (String customerId = evictions.customerIds.poll(); null != customerId;
+             customerId = evictions.customerIds.poll()) {
+            evict(customerId);
+        }
+    }
+
+    // moves the account of customerId to the cold tier, unless it was used and admitted again since it was evicted;
+    // on the shard owning it, or by the only writer
+    private void evict(String customerId) {
+        lock.lock();
+        try {
+            Account account = hot.get(customerId);
+            if (null == account || policy.contains(customerId)) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            account.writeTo(out);
+            out.flush();
+            cold.put(customerId, bytes.toByteArray());
+            // before it leaves the hot tier, lock-free readers find it in either
+            coldAccounts.put(customerId, new ColdAccount(account.getState(), account.getNextExpiry()));
+            hot.remove(customerId);
+            evictions.increment();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // what a cold account needs to answer reads without its image; the published state is rebuilt on demand, keeping
+    // it would hold on to its balance, balance JSON and the arrays of its open credit amounts
+    private static final class ColdAccount {
+        private final long version;
+        // epoch millis no open credit expires before, Long.MAX_VALUE when none expires
+        private final long nextExpiry;
+        // history lengths, then by CreditType the number of open credits (-1 when not listed) and their amounts
+        private final byte[] balance;
+
+        ColdAccount(AccountState state, long nextExpiry) {
+            this.version = state.getVersion();
+            this.nextExpiry = nextExpiry;
+            this.balance = encode(state);
+        }
+
+        AccountState getState() {
+            try {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(balance));
+                int credits = in.readInt();
+                int debits = in.readInt();
+                BalanceView.Builder view = BalanceView.EMPTY.edit();
+                for (CreditType creditType : CreditType.values()) {
+                    int numOpenCredits = in.readInt();
+                    if (numOpenCredits < 0) {
+                        continue;
+                    }
+                    view.track(creditType);
+                    for (int i = 0; i < numOpenCredits; i++) {
+                        long units = in.readLong();
+                        view.append(creditType, new Money(Amounts.toDecimal(units), in.readUTF()));
+                    }
+                }
+                return new AccountState(view.build(version), credits, debits);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static byte[] encode(AccountState state) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(state.getCredits());
+                out.writeInt(state.getDebits());
+                Map<CreditType, List<Money>> balanceAmounts = state.getBalanceView().getBalance().getBalanceAmounts();
+                for (CreditType creditType : CreditType.values()) {
+                    List<Money> openCredits = balanceAmounts.get(creditType);
+                    out.writeInt(null == openCredits ? -1 : openCredits.size());
+                    if (null != openCredits) {
+                        for (Money money : openCredits) {
+                            out.writeLong(Amounts.toUnits(money.getAmount()));
+                            out.writeUTF(money.getCurrency());
+                        }
+                    }
+                }
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private static final class PendingEvictions {
+        private final Queue<String> customerIds = new ConcurrentLinkedQueue<>();
+        // a drain is queued on the shard
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+    }
+}
@@ -0,0 +1,43 @@
+package com.netflix.billing.bank.controller.wire.batch;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+
+/**
+ * Wire object representing one operation of a batch, either a credit or a debit. Exactly one of them is set.
+ */
+public class BatchOperation {
+    private CreditAmount credit;
+    private DebitAmount debit;
+
+    public BatchOperation() {
+    }
+
+    public static BatchOperation credit(CreditAmount credit) {
+        BatchOperation operation = new BatchOperation();
+        operation.setCredit(credit);
+        return operation;
+    }
+
+    public static BatchOperation debit(DebitAmount debit) {
+        BatchOperation operation = new BatchOperation();
+        operation.setDebit(debit);
+        return operation;
+    }
+
+    public CreditAmount getCredit() {
+        return credit;
+    }
+
+    public void setCredit(CreditAmount credit) {
+        this.credit = credit;
+    }
+
+    public DebitAmount getDebit() {
+        return debit;
+    }
+
+    public void setDebit(DebitAmount debit) {
+        this.debit = debit;
+    }
+}
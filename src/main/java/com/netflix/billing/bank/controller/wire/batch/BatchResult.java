@@ -0,0 +1,34 @@
+package com.netflix.billing.bank.controller.wire.batch;
+
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+
+import java.util.List;
+
+/**
+ * Outcome of every operation of a batch, in request order, and the customer's balance after the whole batch.
+ */
+public class BatchResult {
+    private List<OperationOutcome> outcomes;
+    private CustomerBalance balance;
+
+    public BatchResult(List<OperationOutcome> outcomes, CustomerBalance balance) {
+        this.outcomes = outcomes;
+        this.balance = balance;
+    }
+
+    public List<OperationOutcome> getOutcomes() {
+        return outcomes;
+    }
+
+    public void setOutcomes(List<OperationOutcome> outcomes) {
+        this.outcomes = outcomes;
+    }
+
+    public CustomerBalance getBalance() {
+        return balance;
+    }
+
+    public void setBalance(CustomerBalance balance) {
+        this.balance = balance;
+    }
+}
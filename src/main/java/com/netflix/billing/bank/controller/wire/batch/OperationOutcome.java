@@ -0,0 +1,11 @@
+package com.netflix.billing.bank.controller.wire.batch;
+
+/**
+ * What happened to one operation of a batch
+ */
+public enum OperationOutcome {
+    APPLIED,
+    DUPLICATE, // already processed, had no effect
+    INSUFFICIENT_BALANCE, // debit exceeding the balance left at that point of the batch, had no effect
+    REJECTED // refused by the ledger for any other reason, had no effect
+}
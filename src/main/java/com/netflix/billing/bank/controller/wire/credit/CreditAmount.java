@@ -18,6 +18,9 @@ public class CreditAmount {
     //Type of credit. Different types of credits cannot be merged with each other.
     private CreditType creditType;
 
+    //Optional instant the credit expires at, whatever is left on it then is removed from the balance. Never expires when null.
+    private Instant expiresAt;
+
     public String getTransactionId() {
         return transactionId;
     }
@@ -42,6 +45,14 @@ public class CreditAmount {
         this.creditType = creditType;
     }
 
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
     public CreditAmount(CreditType creditType, Money money, String transactionId) {
         this.creditType = creditType;
         this.money = money;
@@ -49,6 +60,13 @@ public class CreditAmount {
     }
 
     public CreditLineItem toCreditLineItem() {
-        return new CreditLineItem(this.transactionId, this.creditType, this.money, Instant.now());
+        return toCreditLineItem(Instant.now());
+    }
+
+    public CreditLineItem toCreditLineItem(Instant transactionDate) {
+        CreditLineItem creditLineItem = new CreditLineItem(this.transactionId, this.creditType, this.money,
+                transactionDate);
+        creditLineItem.setExpiresAt(this.expiresAt);
+        return creditLineItem;
     }
 }
@@ -3,6 +3,10 @@ package com.netflix.billing.bank.controller.wire.credit;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * List of all the credits applied to the customer's account, oldest first. Built from the account's ledger for the
+ * caller, later credits are not added to it.
+ */
 public class CreditHistory {
 
     public CreditHistory() {
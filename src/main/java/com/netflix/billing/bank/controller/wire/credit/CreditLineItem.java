@@ -14,6 +14,8 @@ public class CreditLineItem implements LineItem {
     private Money money;
     private Instant transactionDate;
     private List<String> invoiceIdList; // list of invoieIds credit is debited to
+    private Instant expiresAt; // null if the credit never expires
+    private Money expired; // amount left on the credit when it expired, null while it has not
 
     public CreditLineItem(String transactionId, CreditType creditType, Money money, Instant transactionDate) {
         this.transactionId = transactionId;
@@ -62,6 +64,22 @@ public class CreditLineItem implements LineItem {
         this.transactionDate = transactionDate;
     }
 
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public Money getExpired() {
+        return expired;
+    }
+
+    public void setExpired(Money expired) {
+        this.expired = expired;
+    }
+
     public List<String> getInvoiceIdList() {
         return invoiceIdList;
     }
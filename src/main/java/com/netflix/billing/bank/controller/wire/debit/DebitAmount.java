@@ -34,6 +34,10 @@ public class DebitAmount {
     }
 
     public DebitLineItem toDebitLineItem() {
-        return new DebitLineItem(this.invoiceId, this.money, Instant.now());
+        return toDebitLineItem(Instant.now());
+    }
+
+    public DebitLineItem toDebitLineItem(Instant transactionDate) {
+        return new DebitLineItem(this.invoiceId, this.money, transactionDate);
     }
 }
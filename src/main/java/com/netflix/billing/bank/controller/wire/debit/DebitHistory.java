@@ -4,7 +4,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * List of all the debit transactions applied to the customer's account.
+ * List of all the debit transactions applied to the customer's account, oldest first. Built from the account's
+ * ledger for the caller, later debits are not added to it.
  */
 public class DebitHistory {
     private List<DebitLineItem> debits;
@@ -0,0 +1,32 @@
+package com.netflix.billing.bank.controller.wire.debit;
+
+import java.util.List;
+
+/**
+ * One page of a customer's debit history along with the cursor to the next page.
+ */
+public class DebitHistoryPage {
+    private List<DebitLineItem> debits;
+    private String nextCursor; // opaque, null on the last page
+
+    public DebitHistoryPage(List<DebitLineItem> debits, String nextCursor) {
+        this.debits = debits;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<DebitLineItem> getDebits() {
+        return debits;
+    }
+
+    public void setDebits(List<DebitLineItem> debits) {
+        this.debits = debits;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
@@ -0,0 +1,13 @@
+package com.netflix.billing.bank.journal;
+
+/**
+ * When journal writes are forced to disk, trading request latency against how much can be lost on a crash.
+ */
+public enum FsyncPolicy {
+    // every write is durable before it is acknowledged, concurrent writes share a single fsync (group commit)
+    ALWAYS,
+    // writes are acknowledged immediately and forced to disk every fsync interval
+    INTERVAL,
+    // writes are acknowledged immediately and the OS decides when dirty pages reach disk
+    OS
+}
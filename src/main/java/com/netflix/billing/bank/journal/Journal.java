@@ -0,0 +1,492 @@
+package com.netflix.billing.bank.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of every credit and debit accepted by the ledger, so accounts survive a restart.
+ *
+ * The journal is a directory of memory-mapped segment files of a fixed size, named after the first log sequence
+ * number (LSN) they hold. A record is written as its body length, a CRC32 of the body and the body; a zero length
+ * marks the end of a segment, and a record whose checksum does not match (a torn write) ends the journal on replay,
+ * as does one whose LSN does not follow on from the record before it (left over beyond a torn write). Once a record
+ * does not fit the current segment a new one is started.
+ *
+ * Durability follows the {@link FsyncPolicy}. With {@link FsyncPolicy#ALWAYS} appends return a future that completes
+ * once the record is on disk; a single flusher thread forces the segment for every append that queued up while the
+ * previous force was running, so concurrent requests share the cost of one fsync.
+ */
+public class Journal {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // body length and checksum
+    private static final int HEADER_SIZE = 8;
+    // a record body starts with its type, then its LSN
+    private static final int LSN_OFFSET = HEADER_SIZE + 1;
+    // records between two positions a segment reader remembers
+    private static final int INDEX_INTERVAL = 256;
+
+    private final File directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+
+    // guarded by this
+    private MappedByteBuffer segment;
+    private long nextLsn;
+    private long durableLsn;
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    // segments mapped read-only for shipping records to replicas, by first LSN
+    private final Map<Long, SegmentReader> readers = new HashMap<>();
+    private volatile boolean closed;
+
+    private final Thread flusher;
+
+    /**
+     * Opens (or creates) the journal in given directory, positioning appends after the last intact record.
+     *
+     * @param directory
+     * @param segmentSize size of each segment file in bytes
+     * @param fsyncPolicy
+     * @param fsyncIntervalMillis how often {@link FsyncPolicy#INTERVAL} forces writes to disk
+     */
+    public Journal(File directory, int segmentSize, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis)
+            throws IOException {
+        if (null == directory || segmentSize <= HEADER_SIZE || null == fsyncPolicy) {
+            throw new Error("Invalid journal configuration");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = Math.max(1, fsyncIntervalMillis);
+
+        // find where the last run stopped
+        long lastLsn = 0;
+        List<File> segments = segments();
+        if (!segments.isEmpty()) {
+            File last = segments.get(segments.size() - 1);
+            MappedByteBuffer buffer = map(last);
+            lastLsn = firstLsn(last) - 1;
+            // appends go after the last record in sequence, anything beyond it is overwritten
+            while (null != next(buffer, lastLsn + 1)) {
+                lastLsn++;
+            }
+            segment = buffer;
+        }
+        nextLsn = lastLsn + 1;
+        durableLsn = lastLsn;
+
+        flusher = new Thread(this::flushLoop, "journal-flusher");
+        flusher.setDaemon(true);
+        if (fsyncPolicy != FsyncPolicy.OS) {
+            flusher.start();
+        }
+    }
+
+    /**
+     * Replays every intact record in LSN order
+     *
+     * @param consumer
+     * @return LSN of the last record replayed, 0 for an empty journal
+     */
+    public long replay(Consumer<JournalRecord> consumer) throws IOException {
+        return replay(0L, consumer);
+    }
+
+    /**
+     * Replays every intact record with an LSN greater than fromLsn, in LSN order, stopping at the first record that
+     * does not follow on from the one before it
+     *
+     * @param fromLsn
+     * @param consumer
+     * @return LSN of the last record replayed
+     */
+    public long replay(long fromLsn, Consumer<JournalRecord> consumer) throws IOException {
+        long lastLsn = fromLsn;
+        // LSN the next record must have, known once the first segment is read
+        long expected = -1L;
+        List<File> segments = segments();
+        for (int i = 0; i < segments.size(); i++) {
+            // skip segments that only hold records at or before fromLsn
+            if (i + 1 < segments.size() && firstLsn(segments.get(i + 1)) <= fromLsn + 1) {
+                continue;
+            }
+            if (expected < 0) {
+                expected = firstLsn(segments.get(i));
+            } else if (firstLsn(segments.get(i)) != expected) {
+                // the previous segment ended early
+                return lastLsn;
+            }
+            ByteBuffer buffer = mapReadOnly(segments.get(i));
+            for (JournalRecord record = next(buffer, expected); null != record; record = next(buffer, expected)) {
+                expected++;
+                if (record.getLsn() > fromLsn) {
+                    consumer.accept(record);
+                    lastLsn = record.getLsn();
+                }
+            }
+        }
+        return lastLsn;
+    }
+
+    /**
+     * Reads up to max durable records with an LSN greater than fromLsn, in LSN order, for shipping to replicas.
+     * Records not yet as durable as the {@link FsyncPolicy} promises are left for a later read, so a replica never
+     * applies an operation the primary could lose. Reads under the lock, so no truncation runs in between. Segments
+     * stay mapped between reads and remember where every {@value #INDEX_INTERVAL}th record starts, so a read only
+     * decodes the records it returns.
+     *
+     * @param fromLsn
+     * @param max
+     * @return records, empty once the reader is caught up, null when the records after fromLsn were truncated
+     */
+    public synchronized List<JournalRecord> read(long fromLsn, int max) throws IOException {
+        if (fromLsn + 1 < getFirstLsn()) {
+            return null;
+        }
+        long toLsn = getDurableLsn();
+        List<JournalRecord> records = new ArrayList<>();
+        long lsn = fromLsn + 1;
+        List<File> segments = segments();
+        for (int i = 0; i < segments.size() && records.size() < max && lsn <= toLsn; i++) {
+            if (i + 1 < segments.size() && firstLsn(segments.get(i + 1)) <= lsn) {
+                continue;
+            }
+            SegmentReader reader = readers.get(firstLsn(segments.get(i)));
+            if (null == reader) {
+                reader = new SegmentReader(segments.get(i));
+                readers.put(reader.firstLsn, reader);
+            }
+            ByteBuffer buffer = reader.seek(lsn);
+            if (null == buffer) {
+                // the segment does not hold the next record, no later one follows on from it
+                return records;
+            }
+            for (JournalRecord record = next(buffer, lsn); null != record && records.size() < max && lsn <= toLsn;
+                 record = next(buffer, lsn)) {
+                records.add(record);
+                lsn++;
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns whether record fits a segment, {@link #append(JournalRecord)} refuses it otherwise
+     *
+     * @param record
+     */
+    public boolean fits(JournalRecord record) {
+        return HEADER_SIZE + record.encodedSize() <= segmentSize;
+    }
+
+    /**
+     * Appends record, assigning it the next LSN.
+     *
+     * @param record
+     * @return future completed once the record is as durable as the {@link FsyncPolicy} promises
+     */
+    public CompletableFuture<Long> append(JournalRecord record) {
+        int size = record.encodedSize();
+        if (!fits(record)) {
+            throw new Error("Journal record exceeds segment size");
+        }
+
+        long lsn;
+        synchronized (this) {
+            if (closed) {
+                throw new Error("Journal is closed");
+            }
+            lsn = nextLsn++;
+            record.setLsn(lsn);
+            // keep room for the zero length end marker
+            if (null == segment || segment.remaining() < HEADER_SIZE + size + 4) {
+                roll(lsn);
+            }
+            int start = segment.position();
+            segment.position(start + HEADER_SIZE);
+            record.writeTo(segment);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = segment.duplicate();
+            body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + size);
+            crc.update(body);
+            segment.putInt(start + 4, (int) crc.getValue());
+            // length last, a record becomes visible to replay only once it is complete
+            segment.putInt(start, size);
+
+            if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                CompletableFuture<Long> durable = new CompletableFuture<>();
+                waiters.add(new Waiter(lsn, durable));
+                notifyAll();
+                return durable;
+            }
+        }
+        return CompletableFuture.completedFuture(lsn);
+    }
+
+    /**
+     * Deletes segments that only hold records at or before given LSN, e.g. once a snapshot covers them.
+     *
+     * @param lsn
+     */
+    public synchronized void truncate(long lsn) {
+        List<File> segments = segments();
+        // the newest segment is always kept, it is the one being appended to
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsn(segments.get(i + 1)) <= lsn + 1) {
+                readers.remove(firstLsn(segments.get(i)));
+                segments.get(i).delete();
+            }
+        }
+    }
+
+    public synchronized long getLastLsn() {
+        return nextLsn - 1;
+    }
+
+    /**
+     * LSN up to which records are as durable as the {@link FsyncPolicy} promises
+     */
+    public synchronized long getDurableLsn() {
+        // the OS policy promises nothing beyond the append itself
+        return fsyncPolicy == FsyncPolicy.OS ? nextLsn - 1 : durableLsn;
+    }
+
+    /**
+     * Oldest LSN still in the journal, records before it were truncated
+     */
+    public synchronized long getFirstLsn() {
+        List<File> segments = segments();
+        return segments.isEmpty() ? nextLsn : firstLsn(segments.get(0));
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Waiter> due;
+        synchronized (this) {
+            if (null != segment) {
+                segment.force();
+            }
+            due = dueWaiters(nextLsn - 1);
+            readers.clear();
+        }
+        complete(due);
+    }
+
+    // starts a new segment whose first record is firstLsn, callers hold the lock
+    private void roll(long firstLsn) {
+        try {
+            if (null != segment && fsyncPolicy != FsyncPolicy.OS) {
+                segment.force();
+            }
+            String name = String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX);
+            segment = map(new File(directory, name));
+        } catch (IOException e) {
+            throw new Error("Cannot create journal segment", e);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            MappedByteBuffer toForce;
+            long lsn;
+            synchronized (this) {
+                try {
+                    if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+                        while (!closed && waiters.isEmpty()) {
+                            wait();
+                        }
+                    } else if (!closed) {
+                        wait(fsyncIntervalMillis);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                // everything appended so far is either in an already forced segment or in this one
+                toForce = segment;
+                lsn = nextLsn - 1;
+            }
+            if (null != toForce) {
+                toForce.force(); // appends carry on while the force is in flight
+            }
+            List<Waiter> due;
+            synchronized (this) {
+                due = dueWaiters(lsn);
+            }
+            complete(due);
+        }
+    }
+
+    // marks records up to lsn durable and takes their waiters, callers hold the lock
+    private List<Waiter> dueWaiters(long lsn) {
+        durableLsn = Math.max(durableLsn, lsn);
+        List<Waiter> due = new ArrayList<>();
+        while (!waiters.isEmpty() && waiters.peek().lsn <= durableLsn) {
+            due.add(waiters.poll());
+        }
+        return due;
+    }
+
+    // completes waiters outside the lock, the responses they run would otherwise hold up every append
+    private static void complete(List<Waiter> due) {
+        for (Waiter waiter : due) {
+            waiter.future.complete(waiter.lsn);
+        }
+    }
+
+    private List<File> segments() {
+        File[] files = directory.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<File> segments = new ArrayList<>(Arrays.asList(null == files ? new File[0] : files));
+        // zero padded names sort in LSN order
+        segments.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return segments;
+    }
+
+    private static long firstLsn(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    // maps a segment for reading only, never creating or growing the file
+    private static MappedByteBuffer mapReadOnly(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+    }
+
+    // reads the record at the buffer's position, null at the end of the segment, at a torn record or at one that
+    // does not have the given LSN
+    private static JournalRecord next(ByteBuffer buffer, long lsn) {
+        int size = intactSize(buffer, lsn);
+        if (size < 0) {
+            return null;
+        }
+        int start = buffer.position();
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + size);
+        buffer.position(start + HEADER_SIZE + size);
+        return JournalRecord.readFrom(body);
+    }
+
+    // returns the body length of the record at the buffer's position without decoding it, -1 where next returns null
+    private static int intactSize(ByteBuffer buffer, long lsn) {
+        if (buffer.remaining() < LSN_OFFSET + 8) {
+            return -1;
+        }
+        int start = buffer.position();
+        int size = buffer.getInt(start);
+        if (size < LSN_OFFSET + 8 - HEADER_SIZE || size > buffer.remaining() - HEADER_SIZE
+                || buffer.getLong(start + LSN_OFFSET) != lsn) {
+            return -1;
+        }
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + size);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(start + 4) ? size : -1;
+    }
+
+    // a segment mapped read-only, with the position of every INDEX_INTERVAL-th record of it found so far; records
+    // appended to it later are found by the next seek. Guarded by the journal's lock
+    private static final class SegmentReader {
+        private final long firstLsn;
+        private final ByteBuffer buffer;
+        // positions[k] is where record firstLsn + k * INDEX_INTERVAL starts
+        private int[] positions = new int[16];
+        private int indexed;
+        // position after the last record found so far, and the LSN of the record expected there
+        private int end;
+        private long endLsn;
+
+        SegmentReader(File file) throws IOException {
+            firstLsn = firstLsn(file);
+            buffer = mapReadOnly(file);
+            endLsn = firstLsn;
+        }
+
+        // returns a view positioned at record lsn, null when the segment does not hold it
+        ByteBuffer seek(long lsn) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(end);
+            while (endLsn <= lsn) {
+                int size = intactSize(view, endLsn);
+                if (size < 0) {
+                    break;
+                }
+                if ((endLsn - firstLsn) % INDEX_INTERVAL == 0) {
+                    if (indexed == positions.length) {
+                        positions = Arrays.copyOf(positions, 2 * indexed);
+                    }
+                    positions[indexed++] = end;
+                }
+                end += HEADER_SIZE + size;
+                view.position(end);
+                endLsn++;
+            }
+            if (lsn < firstLsn || lsn >= endLsn) {
+                return null;
+            }
+            int k = (int) ((lsn - firstLsn) / INDEX_INTERVAL);
+            view.position(positions[k]);
+            for (long at = firstLsn + (long) k * INDEX_INTERVAL; at < lsn; at++) {
+                view.position(view.position() + HEADER_SIZE + view.getInt(view.position()));
+            }
+            return view;
+        }
+    }
+
+    private static class Waiter {
+        private final long lsn;
+        private final CompletableFuture<Long> future;
+
+        Waiter(long lsn, CompletableFuture<Long> future) {
+            this.lsn = lsn;
+            this.future = future;
+        }
+    }
+}
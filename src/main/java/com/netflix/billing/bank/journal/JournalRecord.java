@@ -0,0 +1,229 @@
+package com.netflix.billing.bank.journal;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A credit or debit that was accepted by an account, a credit that expired, or an account handed over to or from this
+ * node, as written to the {@link Journal}. Amounts are in minor units.
+ */
+public class JournalRecord {
+
+    public enum Type {
+        CREDIT, DEBIT, EXPIRY, ATTACH, DETACH
+    }
+
+    private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+    private final Type type;
+    private final String customerId;
+    private final CreditType creditType; // null for debits
+    private final String id; // transactionId for credits and expiries, invoiceId for debits
+    private final long units; // amount left on the credit for expiries, image format version for attaches
+    private final String currency;
+    private final long timestamp; // epoch millis the operation was applied at, the credit expired at for expiries
+    private final long expiresAt; // epoch millis a credit expires at, 0 if it never does
+    private final byte[] image; // account taken over, in the snapshot format, null unless attached
+    private long lsn; // log sequence number, assigned by the journal on append
+
+    private JournalRecord(Type type, String customerId, CreditType creditType, String id, long units,
+                          String currency, long timestamp, long expiresAt, byte[] image, long lsn) {
+        this.type = type;
+        this.customerId = customerId;
+        this.creditType = creditType;
+        this.id = id;
+        this.units = units;
+        this.currency = currency;
+        this.timestamp = timestamp;
+        this.expiresAt = expiresAt;
+        this.image = image;
+        this.lsn = lsn;
+    }
+
+    public static JournalRecord credit(String customerId, CreditType creditType, String transactionId, long units,
+                                       String currency, long timestamp) {
+        return credit(customerId, creditType, transactionId, units, currency, timestamp, 0L);
+    }
+
+    /**
+     * @param expiresAt epoch millis the credit expires at, 0 if it never does
+     */
+    public static JournalRecord credit(String customerId, CreditType creditType, String transactionId, long units,
+                                       String currency, long timestamp, long expiresAt) {
+        return new JournalRecord(Type.CREDIT, customerId, creditType, transactionId, units, currency, timestamp,
+                expiresAt, null, 0L);
+    }
+
+    public static JournalRecord debit(String customerId, String invoiceId, long units, String currency,
+                                      long timestamp) {
+        return new JournalRecord(Type.DEBIT, customerId, null, invoiceId, units, currency, timestamp, 0L, null, 0L);
+    }
+
+    /**
+     * @param units left on the credit when it expired
+     * @param expiredAt epoch millis the credit expired at
+     */
+    public static JournalRecord expiry(String customerId, CreditType creditType, String transactionId, long units,
+                                       String currency, long expiredAt) {
+        return new JournalRecord(Type.EXPIRY, customerId, creditType, transactionId, units, currency, expiredAt,
+                0L, null, 0L);
+    }
+
+    /**
+     * @param image account taken over from another node, in the snapshot format
+     * @param version snapshot format version image was written with
+     * @param timestamp epoch millis the account was taken over at
+     */
+    public static JournalRecord attach(String customerId, byte[] image, int version, long timestamp) {
+        return new JournalRecord(Type.ATTACH, customerId, null, null, version, null, timestamp, 0L, image, 0L);
+    }
+
+    /**
+     * @param timestamp epoch millis the account was handed over at
+     */
+    public static JournalRecord detach(String customerId, long timestamp) {
+        return new JournalRecord(Type.DETACH, customerId, null, null, 0L, null, timestamp, 0L, null, 0L);
+    }
+
+    /**
+     * Returns the number of bytes {@link #writeTo(ByteBuffer)} needs
+     */
+    int encodedSize() {
+        return 1 + 8 + 8 + 8 + 1 + sizeOf(customerId) + sizeOf(id) + sizeOf(currency) +
+                (null == image ? 0 : 4 + image.length) + (expiresAt > 0 ? 8 : 0);
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(lsn);
+        buffer.putLong(timestamp);
+        buffer.putLong(units);
+        buffer.put((byte) (null == creditType ? -1 : creditType.ordinal()));
+        putString(buffer, customerId);
+        putString(buffer, id);
+        putString(buffer, currency);
+        if (type == Type.ATTACH) {
+            buffer.putInt(image.length);
+            buffer.put(image);
+        }
+        // optional trailer, records of credits that never expire (and of older versions) end before it
+        if (expiresAt > 0) {
+            buffer.putLong(expiresAt);
+        }
+    }
+
+    static JournalRecord readFrom(ByteBuffer buffer) {
+        Type type = Type.values()[buffer.get()];
+        long lsn = buffer.getLong();
+        long timestamp = buffer.getLong();
+        long units = buffer.getLong();
+        byte creditType = buffer.get();
+        String customerId = getString(buffer);
+        String id = getString(buffer);
+        String currency = getString(buffer);
+        byte[] image = null;
+        if (type == Type.ATTACH) {
+            image = new byte[buffer.getInt()];
+            buffer.get(image);
+        }
+        long expiresAt = buffer.remaining() >= 8 ? buffer.getLong() : 0L;
+        return new JournalRecord(type, customerId, creditType < 0 ? null : CREDIT_TYPES[creditType], id, units,
+                currency, timestamp, expiresAt, image, lsn);
+    }
+
+    /**
+     * Writes the record, LSN included, for shipping to a replica
+     *
+     * @param out
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        ByteBuffer body = ByteBuffer.allocate(encodedSize());
+        writeTo(body);
+        out.writeInt(body.capacity());
+        out.write(body.array());
+    }
+
+    /**
+     * Reads a record written by {@link #writeTo(DataOutput)}
+     *
+     * @param in
+     */
+    public static JournalRecord readFrom(DataInput in) throws IOException {
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return readFrom(ByteBuffer.wrap(body));
+    }
+
+    private static int sizeOf(String value) {
+        return 4 + (null == value ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        if (null == value) {
+            buffer.putInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getCustomerId() {
+        return customerId;
+    }
+
+    public CreditType getCreditType() {
+        return creditType;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getUnits() {
+        return units;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public byte[] getImage() {
+        return image;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+}
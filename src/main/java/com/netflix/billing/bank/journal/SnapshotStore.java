@@ -0,0 +1,208 @@
+package com.netflix.billing.bank.journal;
+
+import com.netflix.billing.bank.controller.wire.account.Account;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Point-in-time images of every account, so a restart only replays the journal written after the newest snapshot.
+ *
+ * A snapshot is a directory named after the journal LSN it covers, holding one part file per shard so it can be
+ * written shard by shard and loaded in parallel. Part files start with a magic number, the format version and the
+ * LSN, followed by (customerId, account image) entries and a terminator. The directory is written under a temporary
+ * name and renamed once complete, so a crash mid-snapshot never leaves a partial snapshot behind.
+ */
+public class SnapshotStore {
+
+    private static final int MAGIC = 0x42534e50; // "BSNP"
+    // bump whenever the account image layout changes, Account.readFrom reads every older version
+    public static final int VERSION = 5;
+
+    private static final String PREFIX = "snapshot-";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PART_FORMAT = "part-%04d.bin";
+
+    private final File directory;
+    // number of complete snapshots kept on disk
+    private final int retained;
+
+    public SnapshotStore(File directory, int retained) throws IOException {
+        if (null == directory || retained < 1) {
+            throw new Error("Invalid snapshot configuration");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + directory);
+        }
+        this.directory = directory;
+        this.retained = retained;
+    }
+
+    /**
+     * Starts writing a snapshot covering every journal record up to given LSN
+     *
+     * @param lsn
+     * @param numParts
+     * @return Writer, nothing is visible until {@link Writer#commit()}
+     */
+    public Writer create(long lsn, int numParts) throws IOException {
+        File tmp = new File(directory, name(lsn) + TMP_SUFFIX);
+        deleteRecursively(tmp);
+        if (!tmp.mkdirs()) {
+            throw new IOException("Cannot create snapshot " + tmp);
+        }
+        return new Writer(tmp, new File(directory, name(lsn)), lsn, numParts);
+    }
+
+    /**
+     * Loads the newest complete snapshot, decoding its parts in parallel
+     *
+     * @param accounts creates the empty accounts images are read into
+     * @param consumer receives every customerId and its account, from several threads at once
+     * @return LSN the snapshot covers, 0 when there is none
+     */
+    public long loadLatest(Supplier<Account> accounts, BiConsumer<String, Account> consumer) throws IOException {
+        List<File> snapshots = snapshots();
+        if (snapshots.isEmpty()) {
+            return 0L;
+        }
+        File snapshot = snapshots.get(snapshots.size() - 1);
+        long lsn = lsn(snapshot);
+        File[] parts = snapshot.listFiles((dir, name) -> name.startsWith("part-"));
+        try {
+            IntStream.range(0, null == parts ? 0 : parts.length).parallel().forEach(i -> {
+                try {
+                    readPart(parts[i], lsn, accounts, consumer);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return lsn;
+    }
+
+    private void readPart(File part, long lsn, Supplier<Account> accounts, BiConsumer<String, Account> consumer)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot part " + part);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + part);
+            }
+            if (in.readLong() != lsn) {
+                throw new IOException("Snapshot part " + part + " belongs to another snapshot");
+            }
+            while (in.readBoolean()) {
+                String customerId = in.readUTF();
+                Account account = accounts.get();
+                account.readFrom(in, version);
+                consumer.accept(customerId, account);
+            }
+        }
+    }
+
+    // complete snapshots, oldest first
+    private List<File> snapshots() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && !name.endsWith(TMP_SUFFIX));
+        List<File> snapshots = new ArrayList<>(Arrays.asList(null == files ? new File[0] : files));
+        snapshots.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return snapshots;
+    }
+
+    private static String name(long lsn) {
+        return String.format("%s%020d", PREFIX, lsn);
+    }
+
+    private static long lsn(File snapshot) {
+        return Long.parseLong(snapshot.getName().substring(PREFIX.length()));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Writes the parts of one snapshot
+     */
+    public class Writer implements Closeable {
+        private final File tmp;
+        private final File target;
+        private final FileOutputStream[] files;
+        private final DataOutputStream[] parts;
+        private boolean committed;
+
+        private Writer(File tmp, File target, long lsn, int numParts) throws IOException {
+            this.tmp = tmp;
+            this.target = target;
+            this.files = new FileOutputStream[numParts];
+            this.parts = new DataOutputStream[numParts];
+            for (int i = 0; i < numParts; i++) {
+                files[i] = new FileOutputStream(new File(tmp, String.format(PART_FORMAT, i)));
+                parts[i] = new DataOutputStream(new BufferedOutputStream(files[i], 1 << 16));
+                parts[i].writeInt(MAGIC);
+                parts[i].writeInt(VERSION);
+                parts[i].writeLong(lsn);
+            }
+        }
+
+        /**
+         * Appends an account image written by {@link Account#writeTo(DataOutput)} to given part
+         *
+         * @param part
+         * @param customerId
+         * @param image
+         */
+        public void write(int part, String customerId, byte[] image) throws IOException {
+            parts[part].writeBoolean(true);
+            parts[part].writeUTF(customerId);
+            parts[part].write(image);
+        }
+
+        /**
+         * Makes the snapshot visible and removes snapshots beyond the retained count
+         */
+        public void commit() throws IOException {
+            for (int i = 0; i < parts.length; i++) {
+                parts[i].writeBoolean(false);
+                parts[i].flush();
+                files[i].getFD().sync();
+                parts[i].close();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Cannot commit snapshot " + target);
+            }
+            committed = true;
+
+            List<File> snapshots = snapshots();
+            for (int i = 0; i < snapshots.size() - retained; i++) {
+                deleteRecursively(snapshots.get(i));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (committed) {
+                return;
+            }
+            for (DataOutputStream part : parts) {
+                part.close();
+            }
+            deleteRecursively(tmp);
+        }
+    }
+}
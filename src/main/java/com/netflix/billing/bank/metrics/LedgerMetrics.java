@@ -0,0 +1,87 @@
+package com.netflix.billing.bank.metrics;
+
+import com.netflix.billing.bank.admission.AdaptiveConcurrencyLimit;
+import com.netflix.billing.bank.admission.AdmissionControl;
+import com.netflix.billing.bank.controller.wire.account.AccountExecutorService;
+import com.netflix.billing.bank.controller.wire.account.LedgerListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records what the accounts and their executor do as Micrometer meters, scraped through the actuator's prometheus
+ * endpoint. Every meter is registered up front, so recording is a plain update of an existing meter and does not
+ * allocate on the shards.
+ */
+public class LedgerMetrics implements LedgerListener {
+
+    private final Counter creditDuplicates;
+    private final Counter debitDuplicates;
+    private final Counter insufficientBalance;
+    private final DistributionSummary creditsPerDebit;
+    private final Timer consumeTime;
+
+    public LedgerMetrics(MeterRegistry registry, AccountExecutorService accountExecutorService,
+                         AdmissionControl admissionControl) {
+        creditDuplicates = Counter.builder("ledger.dedupe.hits")
+                .description("Operations ignored as already applied")
+                .tag("operation", "credit")
+                .register(registry);
+        debitDuplicates = Counter.builder("ledger.dedupe.hits")
+                .description("Operations ignored as already applied")
+                .tag("operation", "debit")
+                .register(registry);
+        insufficientBalance = Counter.builder("ledger.debit.insufficient.balance")
+                .description("Debits refused because they exceed the balance")
+                .register(registry);
+        creditsPerDebit = DistributionSummary.builder("ledger.debit.credits.consumed")
+                .description("Credits a debit was charged against")
+                .publishPercentileHistogram()
+                .register(registry);
+        consumeTime = Timer.builder("ledger.debit.consume")
+                .description("Time a debit spends consuming credits")
+                .publishPercentileHistogram()
+                .register(registry);
+
+        Gauge.builder("ledger.executor.queue.depth", accountExecutorService, AccountExecutorService::getQueueDepth)
+                .description("Tasks waiting in the shard mailboxes and the un-keyed executor")
+                .register(registry);
+        Gauge.builder("ledger.executor.active.threads", accountExecutorService,
+                AccountExecutorService::getActiveThreads)
+                .description("Shard and un-keyed threads running a task")
+                .register(registry);
+        Gauge.builder("ledger.admission.limit", admissionControl.getConcurrencyLimit(),
+                AdaptiveConcurrencyLimit::getLimit)
+                .description("Credits, debits and batches admitted in flight at once, adapted to their latency")
+                .register(registry);
+        Gauge.builder("ledger.admission.in.flight", admissionControl.getConcurrencyLimit(),
+                AdaptiveConcurrencyLimit::getInFlight)
+                .description("Credits, debits and batches admitted and not completed yet")
+                .register(registry);
+    }
+
+    @Override
+    public void creditDeduplicated() {
+        creditDuplicates.increment();
+    }
+
+    @Override
+    public void debitDeduplicated() {
+        debitDuplicates.increment();
+    }
+
+    @Override
+    public void insufficientBalance() {
+        insufficientBalance.increment();
+    }
+
+    @Override
+    public void debitApplied(int creditsConsumed, long consumeNanos) {
+        creditsPerDebit.record(creditsConsumed);
+        consumeTime.record(consumeNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,43 @@
+package com.netflix.billing.bank.model;
+
+/**
+ * Immutable point in the life of an account: its balance together with how far its append-only credit and debit
+ * histories had grown when that balance was published. The account replaces it once an operation is fully applied,
+ * so a reader holding a state sees every operation up to it whole and none after it, without taking a lock; history
+ * items past the recorded lengths belong to an operation still being applied and are ignored.
+ */
+public final class AccountState {
+
+    public static final AccountState EMPTY = new AccountState(BalanceView.EMPTY, 0, 0);
+
+    private final BalanceView balanceView;
+    // length of the credit history this state covers
+    private final int credits;
+    // length of the debit history this state covers
+    private final int debits;
+
+    public AccountState(BalanceView balanceView, int credits, int debits) {
+        this.balanceView = balanceView;
+        this.credits = credits;
+        this.debits = debits;
+    }
+
+    /**
+     * Number of ledger changes this state reflects
+     */
+    public long getVersion() {
+        return balanceView.getVersion();
+    }
+
+    public BalanceView getBalanceView() {
+        return balanceView;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
+
+    public int getDebits() {
+        return debits;
+    }
+}
@@ -0,0 +1,62 @@
+package com.netflix.billing.bank.model;
+
+import java.math.BigDecimal;
+
+/**
+ * Fixed-point money used inside the ledger. Amounts are held as a long count of minor units, ten-thousandths of the
+ * currency unit, so ledger arithmetic is plain (overflow checked) long math. Wire {@link BigDecimal} amounts are only
+ * converted on the way in and out of the ledger.
+ */
+public final class Amounts {
+
+    // number of decimal places a minor unit represents
+    public static final int SCALE = 4;
+    // minor units in one currency unit
+    private static final long UNIT = 10_000L;
+
+    private Amounts() {
+    }
+
+    /**
+     * Returns whether given amount can be represented in minor units without rounding or overflow
+     *
+     * @param amount
+     * @return boolean
+     */
+    public static boolean fits(BigDecimal amount) {
+        if (null == amount) {
+            return false;
+        }
+        try {
+            toUnits(amount);
+            return true;
+        } catch (ArithmeticException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Converts a wire amount to minor units
+     *
+     * @param amount
+     * @return minor units
+     * @throws ArithmeticException if amount has more than {@link #SCALE} decimals or does not fit a long
+     */
+    public static long toUnits(BigDecimal amount) {
+        return amount.movePointRight(SCALE).longValueExact();
+    }
+
+    /**
+     * Converts minor units back to a wire amount with the smallest scale that represents it, so whole amounts come
+     * back as integers the way clients sent them.
+     *
+     * @param units
+     * @return BigDecimal
+     */
+    public static BigDecimal toDecimal(long units) {
+        if (units % UNIT == 0) {
+            return BigDecimal.valueOf(units / UNIT);
+        }
+        return BigDecimal.valueOf(units, SCALE).stripTrailingZeros();
+    }
+}
@@ -0,0 +1,124 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.Money;
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, versioned balance of an account. The account derives a new view from the current one whenever a credit
+ * or debit changes its ledger, touching only the CreditTypes involved, and publishes it for readers; reading the
+ * balance then costs neither allocation nor iteration, and its JSON is encoded once per version.
+ */
+public final class BalanceView {
+
+    private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+    public static final BalanceView EMPTY = new BalanceView(0L, new MoneyRun[CREDIT_TYPES.length]);
+
+    private final long version;
+    // by CreditType ordinal, null until the first credit of that type
+    private final MoneyRun[] runs;
+    private final CustomerBalance balance;
+
+    private BalanceView(long version, MoneyRun[] runs) {
+        this.version = version;
+        this.runs = runs;
+
+        Map<CreditType, List<Money>> balanceAmounts = new EnumMap<>(CreditType.class);
+        for (CreditType creditType : CREDIT_TYPES) {
+            if (null != runs[creditType.ordinal()]) {
+                balanceAmounts.put(creditType, runs[creditType.ordinal()]);
+            }
+        }
+        this.balance = new CustomerBalance();
+        this.balance.setBalanceAmounts(Collections.unmodifiableMap(balanceAmounts));
+        this.balance.setVersion(version);
+        this.balance.freeze();
+    }
+
+    /**
+     * Number of ledger changes this view reflects
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Immutable balance, shared by every reader of this version
+     */
+    public CustomerBalance getBalance() {
+        return balance;
+    }
+
+    /**
+     * Starts deriving the next version
+     */
+    public Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * Collects the changes of one ledger operation
+     */
+    public static final class Builder {
+        private final BalanceView base;
+        private final MoneyRun[] runs;
+
+        private Builder(BalanceView base) {
+            this.base = base;
+            this.runs = base.runs.clone();
+        }
+
+        public Builder append(CreditType creditType, Money money) {
+            runs[creditType.ordinal()] = run(creditType).append(money);
+            return this;
+        }
+
+        public Builder dropHead(CreditType creditType, int count) {
+            runs[creditType.ordinal()] = run(creditType).dropHead(count);
+            return this;
+        }
+
+        public Builder withHead(CreditType creditType, Money money) {
+            runs[creditType.ordinal()] = run(creditType).withHead(money);
+            return this;
+        }
+
+        /**
+         * Replaces all open credits of creditType, for credits removed from anywhere in the queue
+         */
+        public Builder replace(CreditType creditType, List<Money> money) {
+            runs[creditType.ordinal()] = MoneyRun.of(money);
+            return this;
+        }
+
+        /**
+         * Lists creditType in the balance even while it has no open credits
+         */
+        public Builder track(CreditType creditType) {
+            runs[creditType.ordinal()] = run(creditType);
+            return this;
+        }
+
+        public BalanceView build() {
+            return build(base.version + 1);
+        }
+
+        /**
+         * Builds the view at an explicit version, for accounts restored from a snapshot
+         */
+        public BalanceView build(long version) {
+            return new BalanceView(version, runs);
+        }
+
+        private MoneyRun run(CreditType creditType) {
+            MoneyRun run = runs[creditType.ordinal()];
+            return null == run ? MoneyRun.EMPTY : run;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.netflix.billing.bank.model;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+
+/**
+ * FIFO queue of the open credits of one CreditType, oldest first, along with the minor units left on all of them.
+ *
+ * Credits are kept in fixed size chunks linked oldest to newest. Debits consume from the head in O(1) regardless of
+ * how many credits are queued, and a chunk is released as a whole once its last credit is consumed. Like the
+ * account it belongs to, a queue is only used by the shard owning the account.
+ */
+public class CreditQueue implements Iterable<OpenCredit> {
+
+    private static final int CHUNK_SIZE = 64;
+
+    private Chunk head;
+    private Chunk tail;
+    // index of the oldest credit in head
+    private int headIndex;
+    // index of the next free slot in tail
+    private int tailIndex;
+    private int size;
+    // minor units left on all queued credits - running total
+    private long total;
+
+    public CreditQueue() {
+        head = tail = new Chunk();
+    }
+
+    /**
+     * Adds credit as the newest one
+     *
+     * @param credit
+     */
+    public void add(OpenCredit credit) {
+        if (tailIndex == CHUNK_SIZE) {
+            tail.next = new Chunk();
+            tail = tail.next;
+            tailIndex = 0;
+        }
+        tail.credits[tailIndex++] = credit;
+        total += credit.getRemaining();
+        size++;
+    }
+
+    /**
+     * Returns the oldest credit, null if the queue is empty
+     *
+     * @return OpenCredit
+     */
+    public OpenCredit peek() {
+        return size == 0 ? null : head.credits[headIndex];
+    }
+
+    /**
+     * Consumes up to given amount from the oldest credit, removing it once nothing is left on it
+     *
+     * @param units minor units still to be debited
+     * @return minor units actually consumed
+     */
+    public long consumeHead(long units) {
+        OpenCredit credit = peek();
+        if (null == credit) {
+            throw new NoSuchElementException();
+        }
+        long consumed = credit.consume(units);
+        total -= consumed;
+        if (credit.isConsumed()) {
+            removeHead();
+        }
+        return consumed;
+    }
+
+    /**
+     * Removes the credits matching filter, wherever they are queued, keeping the order of the others. Costs a pass
+     * over the whole queue, meant for removing many credits at once.
+     *
+     * @param filter
+     * @return removed credits, oldest first
+     */
+    public List<OpenCredit> removeIf(Predicate<OpenCredit> filter) {
+        List<OpenCredit> removed = new ArrayList<>();
+        CreditQueue kept = new CreditQueue();
+        for (OpenCredit credit : this) {
+            if (filter.test(credit)) {
+                removed.add(credit);
+            } else {
+                kept.add(credit);
+            }
+        }
+        if (!removed.isEmpty()) {
+            head = kept.head;
+            tail = kept.tail;
+            headIndex = kept.headIndex;
+            tailIndex = kept.tailIndex;
+            size = kept.size;
+            total = kept.total;
+        }
+        return removed;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    @Override
+    public Iterator<OpenCredit> iterator() {
+        return new Iterator<OpenCredit>() {
+            private Chunk chunk = head;
+            private int index = headIndex;
+            private int remaining = size;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public OpenCredit next() {
+                if (remaining == 0) {
+                    throw new NoSuchElementException();
+                }
+                if (index == CHUNK_SIZE) {
+                    chunk = chunk.next;
+                    index = 0;
+                }
+                remaining--;
+                return chunk.credits[index++];
+            }
+        };
+    }
+
+    private void removeHead() {
+        head.credits[headIndex++] = null;
+        size--;
+        if (size == 0) {
+            // start over in the current chunk rather than allocating a new one
+            head = tail;
+            headIndex = tailIndex = 0;
+        } else if (headIndex == CHUNK_SIZE) {
+            head = head.next; // the consumed chunk becomes garbage as a whole
+            headIndex = 0;
+        }
+    }
+
+    private static class Chunk {
+        private final OpenCredit[] credits = new OpenCredit[CHUNK_SIZE];
+        private Chunk next;
+    }
+}
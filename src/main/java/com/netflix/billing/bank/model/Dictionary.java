@@ -0,0 +1,69 @@
+package com.netflix.billing.bank.model;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dictionary encoding of strings that recur across all accounts, such as currencies: every distinct value is kept
+ * once and referred to by a small code. Codes are never reused, so a dictionary suits small sets of values only.
+ * Encoding takes no lock once a value is known, decoding never does.
+ */
+public class Dictionary {
+
+    // the currencies of all credits and debits, codes fit a short
+    public static final Dictionary CURRENCIES = new Dictionary(Short.MAX_VALUE);
+
+    private final int capacity;
+    private final Map<String, Integer> codes = new ConcurrentHashMap<>();
+    // by code, replaced (never mutated in place) when a value is added
+    private volatile String[] values = new String[0];
+
+    /**
+     * @param capacity number of distinct values the dictionary takes
+     */
+    public Dictionary(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the code of given value, adding it if it is new
+     *
+     * @param value
+     * @return code, -1 for null
+     */
+    public int encode(String value) {
+        if (null == value) {
+            return -1;
+        }
+        Integer code = codes.get(value);
+        if (null != code) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (null != code) {
+                return code;
+            }
+            if (values.length == capacity) {
+                throw new Error("Too many distinct values");
+            }
+            String[] grown = Arrays.copyOf(values, values.length + 1);
+            grown[values.length] = value;
+            // published before the code, so whoever finds the code can decode it
+            values = grown;
+            codes.put(value, values.length - 1);
+            return values.length - 1;
+        }
+    }
+
+    /**
+     * Returns the value of given code
+     *
+     * @param code
+     * @return value, null for -1
+     */
+    public String decode(int code) {
+        return code < 0 ? null : values[code];
+    }
+}
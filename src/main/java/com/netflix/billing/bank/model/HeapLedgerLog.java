@@ -0,0 +1,279 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link LedgerLog} on the heap: a column of primitives per field, cut into fixed size chunks, instead of an object
+ * (plus Money, BigDecimal, Instant and list) per line item. The line items of one debit refer to the same invoiceId.
+ */
+public class HeapLedgerLog implements LedgerLog {
+
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // slots of a new chunk, doubled until CHUNK_SIZE as it fills so small accounts stay small
+    private static final int INITIAL_CAPACITY = 8;
+    private static final CreditType[] CREDIT_TYPES = CreditType.values();
+
+    // published before the states covering their entries, so readers always find the chunks they can see
+    private volatile CreditChunk[] creditChunks = new CreditChunk[0];
+    private volatile DebitChunk[] debitChunks = new DebitChunk[0];
+    // only used by the writer, readers go by the published state
+    private int credits;
+    private int debits;
+
+    @Override
+    public int addCredit(String transactionId, CreditType creditType, long units, String currency, long dateMillis,
+                         long expiresAt) {
+        int index = credits;
+        int i = index & CHUNK_MASK;
+        if (index >>> CHUNK_SHIFT == creditChunks.length) {
+            CreditChunk[] grown = Arrays.copyOf(creditChunks, creditChunks.length + 1);
+            grown[creditChunks.length] = new CreditChunk(INITIAL_CAPACITY);
+            creditChunks = grown;
+        } else if (i == creditChunk(index).transactionIds.length) {
+            CreditChunk[] grown = creditChunks.clone();
+            grown[grown.length - 1] = new CreditChunk(creditChunk(index), 2 * i);
+            creditChunks = grown;
+        }
+        CreditChunk chunk = creditChunk(index);
+        chunk.transactionIds[i] = transactionId;
+        chunk.creditTypes[i] = (byte) creditType.ordinal();
+        chunk.currencies[i] = (short) Dictionary.CURRENCIES.encode(currency);
+        chunk.units[i] = units;
+        chunk.dates[i] = dateMillis;
+        if (expiresAt > 0) {
+            chunk.expiry()[i] = expiresAt;
+        }
+        credits = index + 1;
+        return index;
+    }
+
+    @Override
+    public int addDebit(String invoiceId, long units, String currency, int credit, long dateMillis) {
+        int index = debits;
+        int i = index & CHUNK_MASK;
+        if (index >>> CHUNK_SHIFT == debitChunks.length) {
+            DebitChunk[] grown = Arrays.copyOf(debitChunks, debitChunks.length + 1);
+            grown[debitChunks.length] = new DebitChunk(INITIAL_CAPACITY);
+            debitChunks = grown;
+        } else if (i == debitChunk(index).invoiceIds.length) {
+            DebitChunk[] grown = debitChunks.clone();
+            grown[grown.length - 1] = new DebitChunk(debitChunk(index), 2 * i);
+            debitChunks = grown;
+        }
+        DebitChunk chunk = debitChunk(index);
+        chunk.invoiceIds[i] = invoiceId;
+        chunk.currencies[i] = (short) Dictionary.CURRENCIES.encode(currency);
+        chunk.units[i] = units;
+        chunk.credits[i] = credit;
+        chunk.dates[i] = dateMillis;
+        debits = index + 1;
+
+        // thread it behind the last line that consumed the same credit
+        if (credit >= 0) {
+            CreditChunk creditChunk = creditChunk(credit);
+            int last = creditChunk.lastDebits[credit & CHUNK_MASK];
+            if (last < 0) {
+                creditChunk.firstDebits[credit & CHUNK_MASK] = index;
+            } else {
+                debitChunk(last).nextForCredit[last & CHUNK_MASK] = index;
+            }
+            creditChunk.lastDebits[credit & CHUNK_MASK] = index;
+        }
+        return index;
+    }
+
+    @Override
+    public void setExpired(int credit, long units) {
+        creditChunk(credit).expired()[credit & CHUNK_MASK] = units;
+    }
+
+    @Override
+    public int getCredits() {
+        return credits;
+    }
+
+    @Override
+    public int getDebits() {
+        return debits;
+    }
+
+    @Override
+    public String getTransactionId(int credit) {
+        return creditChunk(credit).transactionIds[credit & CHUNK_MASK];
+    }
+
+    @Override
+    public CreditType getCreditType(int credit) {
+        return CREDIT_TYPES[creditChunk(credit).creditTypes[credit & CHUNK_MASK]];
+    }
+
+    @Override
+    public long getCreditUnits(int credit) {
+        return creditChunk(credit).units[credit & CHUNK_MASK];
+    }
+
+    @Override
+    public String getCreditCurrency(int credit) {
+        return Dictionary.CURRENCIES.decode(creditChunk(credit).currencies[credit & CHUNK_MASK]);
+    }
+
+    @Override
+    public long getCreditDate(int credit) {
+        return creditChunk(credit).dates[credit & CHUNK_MASK];
+    }
+
+    @Override
+    public long getExpiresAt(int credit) {
+        long[] expiry = creditChunk(credit).expiry;
+        return null == expiry ? 0L : expiry[credit & CHUNK_MASK];
+    }
+
+    @Override
+    public long getExpired(int credit) {
+        long[] expired = creditChunk(credit).expired;
+        return null == expired ? -1L : expired[credit & CHUNK_MASK];
+    }
+
+    @Override
+    public List<String> getInvoiceIds(int credit, int debitLimit) {
+        List<String> invoiceIds = new ArrayList<>();
+        for (int debit = creditChunk(credit).firstDebits[credit & CHUNK_MASK]; debit >= 0 && debit < debitLimit;
+             debit = debitChunk(debit).nextForCredit[debit & CHUNK_MASK]) {
+            invoiceIds.add(getInvoiceId(debit));
+        }
+        return invoiceIds;
+    }
+
+    @Override
+    public String getInvoiceId(int debit) {
+        return debitChunk(debit).invoiceIds[debit & CHUNK_MASK];
+    }
+
+    @Override
+    public long getDebitUnits(int debit) {
+        return debitChunk(debit).units[debit & CHUNK_MASK];
+    }
+
+    @Override
+    public String getDebitCurrency(int debit) {
+        return Dictionary.CURRENCIES.decode(debitChunk(debit).currencies[debit & CHUNK_MASK]);
+    }
+
+    @Override
+    public int getDebitCredit(int debit) {
+        return debitChunk(debit).credits[debit & CHUNK_MASK];
+    }
+
+    @Override
+    public long getDebitDate(int debit) {
+        return debitChunk(debit).dates[debit & CHUNK_MASK];
+    }
+
+    private CreditChunk creditChunk(int credit) {
+        return creditChunks[credit >>> CHUNK_SHIFT];
+    }
+
+    private DebitChunk debitChunk(int debit) {
+        return debitChunks[debit >>> CHUNK_SHIFT];
+    }
+
+    // the last chunk of a column is replaced by a larger copy while it fills, the writer only updates the copy; a
+    // reader still holding the old one read the directory before a state that would need the update
+    private static final class CreditChunk {
+        private final String[] transactionIds;
+        private final byte[] creditTypes;
+        private final short[] currencies;
+        private final long[] units;
+        private final long[] dates;
+        // first and last debit line that consumed each credit, -1 for none
+        private final int[] firstDebits;
+        private final int[] lastDebits;
+        // only allocated once a credit of the chunk expires, or can
+        private volatile long[] expiry;
+        private volatile long[] expired;
+
+        CreditChunk(int capacity) {
+            transactionIds = new String[capacity];
+            creditTypes = new byte[capacity];
+            currencies = new short[capacity];
+            units = new long[capacity];
+            dates = new long[capacity];
+            firstDebits = new int[capacity];
+            lastDebits = new int[capacity];
+            Arrays.fill(firstDebits, -1);
+            Arrays.fill(lastDebits, -1);
+        }
+
+        CreditChunk(CreditChunk chunk, int capacity) {
+            transactionIds = Arrays.copyOf(chunk.transactionIds, capacity);
+            creditTypes = Arrays.copyOf(chunk.creditTypes, capacity);
+            currencies = Arrays.copyOf(chunk.currencies, capacity);
+            units = Arrays.copyOf(chunk.units, capacity);
+            dates = Arrays.copyOf(chunk.dates, capacity);
+            firstDebits = Arrays.copyOf(chunk.firstDebits, capacity);
+            lastDebits = Arrays.copyOf(chunk.lastDebits, capacity);
+            Arrays.fill(firstDebits, chunk.firstDebits.length, capacity, -1);
+            Arrays.fill(lastDebits, chunk.lastDebits.length, capacity, -1);
+            if (null != chunk.expiry) {
+                expiry = Arrays.copyOf(chunk.expiry, capacity);
+            }
+            if (null != chunk.expired) {
+                long[] columns = Arrays.copyOf(chunk.expired, capacity);
+                Arrays.fill(columns, chunk.expired.length, capacity, -1L);
+                expired = columns;
+            }
+        }
+
+        long[] expiry() {
+            if (null == expiry) {
+                expiry = new long[transactionIds.length];
+            }
+            return expiry;
+        }
+
+        long[] expired() {
+            if (null == expired) {
+                long[] columns = new long[transactionIds.length];
+                Arrays.fill(columns, -1L);
+                expired = columns;
+            }
+            return expired;
+        }
+    }
+
+    private static final class DebitChunk {
+        private final String[] invoiceIds;
+        private final short[] currencies;
+        private final long[] units;
+        private final int[] credits;
+        private final long[] dates;
+        // next debit line that consumed the same credit, -1 for none
+        private final int[] nextForCredit;
+
+        DebitChunk(int capacity) {
+            invoiceIds = new String[capacity];
+            currencies = new short[capacity];
+            units = new long[capacity];
+            credits = new int[capacity];
+            dates = new long[capacity];
+            nextForCredit = new int[capacity];
+            Arrays.fill(nextForCredit, -1);
+        }
+
+        DebitChunk(DebitChunk chunk, int capacity) {
+            invoiceIds = Arrays.copyOf(chunk.invoiceIds, capacity);
+            currencies = Arrays.copyOf(chunk.currencies, capacity);
+            units = Arrays.copyOf(chunk.units, capacity);
+            credits = Arrays.copyOf(chunk.credits, capacity);
+            dates = Arrays.copyOf(chunk.dates, capacity);
+            nextForCredit = Arrays.copyOf(chunk.nextForCredit, capacity);
+            Arrays.fill(nextForCredit, chunk.nextForCredit.length, capacity, -1);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.netflix.billing.bank.model;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Remembers the transaction and invoice ids an account already processed, so retried credits and debits are applied
+ * only once, in memory that stays flat however long the account lives.
+ *
+ * Ids are kept in two generations. New ids go into the current one; once it holds capacity ids, or its first id is
+ * older than the retention period, it becomes the previous generation and the one before it is dropped. Every id
+ * recorded within the last capacity ids and within the retention period is remembered exactly, older ones may be
+ * forgotten.
+ *
+ * A generation packs its ids back to back into one byte array, one byte per char for Latin-1 ids, and indexes them
+ * with an open addressing table of hashes and offsets. A Bloom filter in front of the table answers most lookups of
+ * ids never seen before without probing the table or comparing ids. Ids are namespaced, so credits of different
+ * CreditTypes and invoices can share one index. Like the account it belongs to, an index is only used by the shard
+ * owning the account.
+ */
+public class IdempotencyIndex {
+
+    public static final int DEFAULT_CAPACITY = 100_000;
+    public static final long DEFAULT_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    // highest namespace, the header byte of an id keeps two flag bits
+    public static final int MAX_NAMESPACE = 63;
+
+    private final int capacity;
+    // 0 keeps ids until capacity is reached
+    private final long retentionMillis;
+    private Generation current;
+    private Generation previous;
+
+    public IdempotencyIndex() {
+        this(DEFAULT_CAPACITY, DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * @param capacity number of ids a generation holds before a new one is started
+     * @param retentionMillis age of its first id at which a new generation is started, 0 for no time bound
+     */
+    public IdempotencyIndex(int capacity, long retentionMillis) {
+        if (capacity <= 0 || retentionMillis < 0) {
+            throw new Error("Invalid idempotency configuration");
+        }
+        this.capacity = capacity;
+        this.retentionMillis = retentionMillis;
+        this.current = new Generation();
+    }
+
+    /**
+     * Checks whether id was recorded in given namespace
+     *
+     * @param namespace
+     * @param id
+     * @return true if id was recorded and not forgotten yet
+     */
+    public boolean contains(int namespace, String id) {
+        int hash = hash(namespace, id);
+        return current.contains(hash, namespace, id) || (null != previous && previous.contains(hash, namespace, id));
+    }
+
+    /**
+     * Records id in given namespace, callers check {@link #contains(int, String)} first
+     *
+     * @param namespace
+     * @param id
+     * @param timestampMillis time the operation carrying id was applied
+     */
+    public void add(int namespace, String id, long timestampMillis) {
+        if (namespace < 0 || namespace > MAX_NAMESPACE) {
+            throw new Error("Invalid idempotency namespace");
+        }
+        if (current.count >= capacity
+                || (retentionMillis > 0 && current.count > 0 && timestampMillis - current.startMillis >= retentionMillis)) {
+            previous = current;
+            current = new Generation();
+        }
+        if (current.count == 0) {
+            current.startMillis = timestampMillis;
+        }
+        current.add(hash(namespace, id), namespace, id);
+    }
+
+    /**
+     * Number of ids currently remembered
+     */
+    public int size() {
+        return current.count + (null == previous ? 0 : previous.count);
+    }
+
+    /**
+     * Writes both generations in the snapshot format
+     *
+     * @param out
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(null != previous);
+        if (null != previous) {
+            previous.writeTo(out);
+        }
+        current.writeTo(out);
+    }
+
+    /**
+     * Replaces the content of this index with the generations written by {@link #writeTo(DataOutput)}
+     *
+     * @param in
+     */
+    public void readFrom(DataInput in) throws IOException {
+        previous = in.readBoolean() ? Generation.readFrom(in) : null;
+        current = Generation.readFrom(in);
+    }
+
+    // FNV-1a over the namespace and chars, finished with the murmur3 mixer
+    private static int hash(int namespace, String id) {
+        int h = hashStart(namespace, null == id);
+        if (null != id) {
+            for (int i = 0; i < id.length(); i++) {
+                h = hashStep(h, id.charAt(i));
+            }
+        }
+        return hashFinish(h);
+    }
+
+    private static int hashStart(int namespace, boolean isNull) {
+        return hashStep(0x811c9dc5, (namespace << 1) | (isNull ? 1 : 0));
+    }
+
+    private static int hashStep(int h, int c) {
+        return (h ^ c) * 0x01000193;
+    }
+
+    private static int hashFinish(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Generation {
+
+        private static final int MIN_SLOTS = 16;
+        // table is grown once it is half full
+        private static final int MAX_LOAD_DIVISOR = 2;
+        // Bloom filter bits per table slot, at least 8 per id at the maximum load
+        private static final int BLOOM_BITS_PER_SLOT = 4;
+        private static final int BLOOM_HASHES = 3;
+
+        // header byte flags
+        private static final int WIDE = 1;
+        private static final int NULL = 2;
+
+        private static final long[] NO_SLOTS = new long[0];
+        private static final byte[] NO_IDS = new byte[0];
+
+        private long startMillis;
+        private int count;
+        // hash in the high half, offset of the id in ids plus one in the low half, 0 for a free slot
+        private long[] slots = NO_SLOTS;
+        private long[] bloom = NO_SLOTS;
+        // ids back to back: header byte (namespace and flags), varint length in chars, chars
+        private byte[] ids = NO_IDS;
+        private int idsSize;
+
+        boolean contains(int hash, int namespace, String id) {
+            if (count == 0 || !mightContain(hash)) {
+                return false;
+            }
+            int mask = slots.length - 1;
+            for (int i = spread(hash) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                if ((int) (slots[i] >>> 32) == hash && matches((int) slots[i] - 1, namespace, id)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(int hash, int namespace, String id) {
+            if ((count + 1) * MAX_LOAD_DIVISOR > slots.length) {
+                resize(Math.max(MIN_SLOTS, slots.length * 2));
+            }
+            int offset = idsSize;
+            append(namespace, id);
+            insert(hash, offset);
+            count++;
+        }
+
+        // packs id after the ids appended so far
+        private void append(int namespace, String id) {
+            boolean wide = false;
+            int length = null == id ? 0 : id.length();
+            for (int i = 0; i < length && !wide; i++) {
+                wide = id.charAt(i) > 0xff;
+            }
+            ensureIds(1 + 5 + length * (wide ? 2 : 1));
+            ids[idsSize++] = (byte) ((namespace << 2) | (null == id ? NULL : 0) | (wide ? WIDE : 0));
+            for (int v = length; ; v >>>= 7) {
+                if (v < 0x80) {
+                    ids[idsSize++] = (byte) v;
+                    break;
+                }
+                ids[idsSize++] = (byte) ((v & 0x7f) | 0x80);
+            }
+            for (int i = 0; i < length; i++) {
+                char c = id.charAt(i);
+                if (wide) {
+                    ids[idsSize++] = (byte) (c >>> 8);
+                }
+                ids[idsSize++] = (byte) c;
+            }
+        }
+
+        private boolean matches(int offset, int namespace, String id) {
+            int header = ids[offset++] & 0xff;
+            if (header >>> 2 != namespace || ((header & NULL) != 0) != (null == id)) {
+                return false;
+            }
+            if (null == id) {
+                return true;
+            }
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = ids[offset++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (length != id.length()) {
+                return false;
+            }
+            boolean wide = (header & WIDE) != 0;
+            for (int i = 0; i < length; i++) {
+                char c = wide
+                        ? (char) (((ids[offset++] & 0xff) << 8) | (ids[offset++] & 0xff))
+                        : (char) (ids[offset++] & 0xff);
+                if (c != id.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // hashes the id at offset the same way hash(namespace, id) does, returns the offset of the next id
+        private long hashAt(int offset) {
+            int header = ids[offset++] & 0xff;
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = ids[offset++];
+                length |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            boolean wide = (header & WIDE) != 0;
+            int h = hashStart(header >>> 2, (header & NULL) != 0);
+            for (int i = 0; i < length; i++) {
+                int c = wide ? ((ids[offset++] & 0xff) << 8) | (ids[offset++] & 0xff) : ids[offset++] & 0xff;
+                h = hashStep(h, c);
+            }
+            return ((long) offset << 32) | (hashFinish(h) & 0xffffffffL);
+        }
+
+        private void insert(int hash, int offset) {
+            int mask = slots.length - 1;
+            int i = spread(hash) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = ((long) hash << 32) | (offset + 1);
+            int h2 = secondHash(hash);
+            long bits = (long) bloom.length * 64;
+            for (int k = 0; k < BLOOM_HASHES; k++) {
+                long bit = (hash + k * h2) & (bits - 1);
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        private boolean mightContain(int hash) {
+            int h2 = secondHash(hash);
+            long bits = (long) bloom.length * 64;
+            for (int k = 0; k < BLOOM_HASHES; k++) {
+                long bit = (hash + k * h2) & (bits - 1);
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize(int numSlots) {
+            long[] old = slots;
+            slots = new long[numSlots];
+            bloom = new long[numSlots * BLOOM_BITS_PER_SLOT / 64];
+            for (long slot : old) {
+                if (slot != 0) {
+                    insert((int) (slot >>> 32), (int) slot - 1);
+                }
+            }
+        }
+
+        private void ensureIds(int extra) {
+            if (idsSize + extra > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(idsSize + extra, Math.max(64, ids.length * 2)));
+            }
+        }
+
+        void writeTo(DataOutput out) throws IOException {
+            out.writeLong(startMillis);
+            out.writeInt(count);
+            out.writeInt(idsSize);
+            out.write(ids, 0, idsSize);
+        }
+
+        static Generation readFrom(DataInput in) throws IOException {
+            Generation generation = new Generation();
+            generation.startMillis = in.readLong();
+            int count = in.readInt();
+            generation.idsSize = in.readInt();
+            generation.ids = new byte[generation.idsSize];
+            in.readFully(generation.ids);
+            int numSlots = MIN_SLOTS;
+            while (count * MAX_LOAD_DIVISOR > numSlots) {
+                numSlots *= 2;
+            }
+            generation.resize(numSlots);
+            for (int offset = 0; offset < generation.idsSize; generation.count++) {
+                long next = generation.hashAt(offset);
+                generation.insert((int) next, offset);
+                offset = (int) (next >>> 32);
+            }
+            return generation;
+        }
+
+        // the Bloom filter uses the low bits of the hash, probe the table starting from the high ones
+        private static int spread(int hash) {
+            return Integer.rotateLeft(hash, 16);
+        }
+
+        private static int secondHash(int hash) {
+            return Integer.rotateLeft(hash * 0x9e3779b9, 11) | 1;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+
+import java.util.List;
+
+/**
+ * Credit and debit history of an account, kept as columns rather than line item objects: amounts are minor units,
+ * times are epoch millis and currencies are {@link Dictionary#CURRENCIES} codes. Which debits consumed a credit is
+ * not stored with the credit but threaded through the debit lines, each pointing to the next line that consumed the
+ * same credit.
+ *
+ * Entries are appended and updated by the shard owning the account only, and keep their index forever. Readers take
+ * no lock: they read up to the lengths of a published {@link AccountState}, everything below them was written before
+ * it was published. Wire line items are built from the columns on demand.
+ */
+public interface LedgerLog {
+
+    /**
+     * Appends a credit
+     *
+     * @param transactionId
+     * @param creditType
+     * @param units applied
+     * @param currency
+     * @param dateMillis epoch millis it was applied at
+     * @param expiresAt epoch millis it expires at, 0 if it never does
+     * @return index of the credit
+     */
+    int addCredit(String transactionId, CreditType creditType, long units, String currency, long dateMillis,
+                  long expiresAt);
+
+    /**
+     * Appends a debit line item charged against given credit
+     *
+     * @param invoiceId
+     * @param units of the whole debit
+     * @param currency
+     * @param credit index of the credit it consumed, -1 if unknown
+     * @param dateMillis epoch millis it was applied at
+     * @return index of the debit line item
+     */
+    int addDebit(String invoiceId, long units, String currency, int credit, long dateMillis);
+
+    /**
+     * Records what was left on a credit when it expired
+     *
+     * @param credit
+     * @param units
+     */
+    void setExpired(int credit, long units);
+
+    int getCredits();
+
+    int getDebits();
+
+    String getTransactionId(int credit);
+
+    CreditType getCreditType(int credit);
+
+    long getCreditUnits(int credit);
+
+    String getCreditCurrency(int credit);
+
+    long getCreditDate(int credit);
+
+    /**
+     * Returns the epoch millis given credit expires at, 0 if it never does
+     */
+    long getExpiresAt(int credit);
+
+    /**
+     * Returns the units left on given credit when it expired, -1 while it has not
+     */
+    long getExpired(int credit);
+
+    /**
+     * Returns the invoiceIds of the debits that consumed given credit, oldest first
+     *
+     * @param credit
+     * @param debitLimit debit lines to consider, the length of the published state
+     * @return invoiceIds
+     */
+    List<String> getInvoiceIds(int credit, int debitLimit);
+
+    String getInvoiceId(int debit);
+
+    long getDebitUnits(int debit);
+
+    String getDebitCurrency(int debit);
+
+    /**
+     * Returns the index of the credit given debit line consumed, -1 if unknown
+     */
+    int getDebitCredit(int debit);
+
+    long getDebitDate(int debit);
+
+    /**
+     * Hands back the memory of a log no longer used, nothing to do for logs on the heap
+     */
+    default void release() {
+    }
+}
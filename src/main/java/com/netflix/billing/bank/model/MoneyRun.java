@@ -0,0 +1,100 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.account.Money;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of the open credit amounts of one CreditType, oldest first, as exposed in a balance.
+ *
+ * Successive versions share one backing array: a version sees the slots [from, to), appending writes the slot right
+ * after the newest version and consuming credits only moves from, so both are O(1). A partially consumed head is
+ * overlaid with its own Money rather than written into the shared array. Only the account's single writer derives
+ * new versions, and always from the newest one, so a slot is never written once any version can see it.
+ */
+public final class MoneyRun extends AbstractList<Money> implements RandomAccess {
+
+    static final MoneyRun EMPTY = new MoneyRun(new Money[0], 0, 0, null);
+
+    private static final int MIN_CAPACITY = 4;
+
+    private final Money[] items;
+    private final int from;
+    private final int to;
+    // replaces items[from] when the oldest credit was partially consumed
+    private final Money head;
+
+    private MoneyRun(Money[] items, int from, int to, Money head) {
+        this.items = items;
+        this.from = from;
+        this.to = to;
+        this.head = head;
+    }
+
+    /**
+     * Returns a run of given money, oldest first
+     *
+     * @param money
+     * @return MoneyRun
+     */
+    static MoneyRun of(List<Money> money) {
+        return money.isEmpty() ? EMPTY : new MoneyRun(money.toArray(new Money[0]), 0, money.size(), null);
+    }
+
+    @Override
+    public Money get(int index) {
+        if (index < 0 || index >= to - from) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+        return index == 0 && null != head ? head : items[from + index];
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    /**
+     * Returns a run with money appended as the newest credit
+     *
+     * @param money
+     * @return MoneyRun
+     */
+    MoneyRun append(Money money) {
+        if (to < items.length && null == items[to]) {
+            items[to] = money;
+            return new MoneyRun(items, from, to + 1, head);
+        }
+        // out of room, move the live slots to a new array and leave consumed ones behind
+        int size = to - from;
+        Money[] grown = new Money[Math.max(MIN_CAPACITY, size * 2)];
+        System.arraycopy(items, from, grown, 0, size);
+        if (null != head) {
+            grown[0] = head;
+        }
+        grown[size] = money;
+        return new MoneyRun(grown, 0, size + 1, null);
+    }
+
+    /**
+     * Returns a run without its oldest count credits
+     *
+     * @param count
+     * @return MoneyRun
+     */
+    MoneyRun dropHead(int count) {
+        return count == 0 ? this : new MoneyRun(items, from + count, to, null);
+    }
+
+    /**
+     * Returns a run whose oldest credit shows given money
+     *
+     * @param money
+     * @return MoneyRun
+     */
+    MoneyRun withHead(Money money) {
+        return new MoneyRun(items, from, to, money);
+    }
+}
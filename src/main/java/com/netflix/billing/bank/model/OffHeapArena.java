@@ -0,0 +1,194 @@
+package com.netflix.billing.bank.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of off-heap memory, outside of what the garbage collector traces. Memory is reserved in direct
+ * {@link ByteBuffer} slabs and handed out in blocks of power of two sizes; freed blocks are kept on a list per size
+ * and handed out again, slabs are never given back. Blocks are addressed by a long, 0 is never a valid address.
+ *
+ * Allocating and freeing take a lock and are meant to be rare next to reads and writes, which do not: a block is
+ * written by one thread at a time and the writer publishes what it wrote through a volatile write of its own, like
+ * the accounts do with their state.
+ */
+public class OffHeapArena {
+
+    // smallest block handed out, in bytes
+    private static final int MIN_BLOCK = 16;
+
+    private final int slabSize;
+    // slabs reserved so far, replaced (never mutated in place) when one is added
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    // offset the next block is cut from in the last slab
+    private int top;
+    // freed blocks by size class (log2 of their size), a stack of addresses each
+    private final long[][] free = new long[32][];
+    private final int[] freeCounts = new int[32];
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * @param slabSize bytes reserved at once, a power of two; blocks are at most this large
+     */
+    public OffHeapArena(int slabSize) {
+        if (slabSize < MIN_BLOCK || Integer.bitCount(slabSize) != 1) {
+            throw new Error("Invalid off-heap slab size");
+        }
+        this.slabSize = slabSize;
+    }
+
+    /**
+     * Allocates a block of at least given size, its content is undefined
+     *
+     * @param bytes
+     * @return address of the block
+     */
+    public synchronized long allocate(int bytes) {
+        int sizeClass = sizeClass(bytes);
+        int size = 1 << sizeClass;
+        allocated.addAndGet(size);
+        if (freeCounts[sizeClass] > 0) {
+            return free[sizeClass][--freeCounts[sizeClass]];
+        }
+        if (slabs.length == 0 || top + size > slabSize) {
+            ByteBuffer[] grown = Arrays.copyOf(slabs, slabs.length + 1);
+            grown[slabs.length] = ByteBuffer.allocateDirect(slabSize);
+            slabs = grown;
+            top = 0;
+        }
+        long address = ((long) slabs.length << 32) | top;
+        top += size;
+        return address;
+    }
+
+    /**
+     * Hands a block back for reuse
+     *
+     * @param address as returned by {@link #allocate(int)}
+     * @param bytes size it was allocated with
+     */
+    public synchronized void free(long address, int bytes) {
+        int sizeClass = sizeClass(bytes);
+        if (null == free[sizeClass]) {
+            free[sizeClass] = new long[16];
+        } else if (freeCounts[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], 2 * freeCounts[sizeClass]);
+        }
+        free[sizeClass][freeCounts[sizeClass]++] = address;
+        allocated.addAndGet(-(1L << sizeClass));
+    }
+
+    /**
+     * Returns the bytes held by blocks in use
+     */
+    public long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the bytes reserved in slabs, in use or not
+     */
+    public long getReservedBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    public byte getByte(long address) {
+        return slab(address).get(offset(address));
+    }
+
+    public void putByte(long address, byte value) {
+        slab(address).put(offset(address), value);
+    }
+
+    public short getShort(long address) {
+        return slab(address).getShort(offset(address));
+    }
+
+    public void putShort(long address, short value) {
+        slab(address).putShort(offset(address), value);
+    }
+
+    public int getInt(long address) {
+        return slab(address).getInt(offset(address));
+    }
+
+    public void putInt(long address, int value) {
+        slab(address).putInt(offset(address), value);
+    }
+
+    public long getLong(long address) {
+        return slab(address).getLong(offset(address));
+    }
+
+    public void putLong(long address, long value) {
+        slab(address).putLong(offset(address), value);
+    }
+
+    /**
+     * Writes value as its length followed by its UTF-8 bytes
+     *
+     * @param address
+     * @param utf8 bytes of the value
+     */
+    public void putString(long address, byte[] utf8) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        slab.putInt(offset, utf8.length);
+        for (int i = 0; i < utf8.length; i++) {
+            slab.put(offset + 4 + i, utf8[i]);
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #putString(long, byte[])}
+     *
+     * @param address
+     * @return value
+     */
+    public String getString(long address) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        byte[] utf8 = new byte[slab.getInt(offset)];
+        for (int i = 0; i < utf8.length; i++) {
+            utf8[i] = slab.get(offset + 4 + i);
+        }
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Whether the value written by {@link #putString(long, byte[])} at address has given UTF-8 bytes
+     *
+     * @param address
+     * @param utf8
+     */
+    public boolean stringEquals(long address, byte[] utf8) {
+        ByteBuffer slab = slab(address);
+        int offset = offset(address);
+        if (slab.getInt(offset) != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < utf8.length; i++) {
+            if (slab.get(offset + 4 + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int sizeClass(int bytes) {
+        if (bytes <= 0 || bytes > slabSize) {
+            throw new Error("Invalid off-heap block size");
+        }
+        return 32 - Integer.numberOfLeadingZeros(Math.max(bytes, MIN_BLOCK) - 1);
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32) - 1];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
@@ -0,0 +1,294 @@
+package com.netflix.billing.bank.model;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link LedgerLog} in off-heap memory of an {@link OffHeapArena}, so however long the histories grow the garbage
+ * collector has nothing of them to trace. Credits and debit lines are fixed size records in chunks of 8, 16, ... up
+ * to 256 records; a chunk is never moved once allocated, so readers never see one being copied. transactionIds and
+ * invoiceIds are appended as UTF-8 to blocks of their own, the lines of one debit refer to the same bytes. Strings
+ * are decoded when read, they only live as long as the request reading them.
+ *
+ * Blocks are handed back to the arena by {@link #release()}, once the account is no longer in use.
+ */
+public class OffHeapLedgerLog implements LedgerLog {
+
+    private static final CreditType[] CREDIT_TYPES = CreditType.values();
+    // records of the first chunk, each chunk doubles the previous one until MAX_CHUNK
+    private static final int MIN_CHUNK = 8;
+    private static final int MAX_CHUNK = 256;
+    // records held by the chunks smaller than MAX_CHUNK (8 + 16 + ... + 128) and the first MAX_CHUNK one
+    private static final int GROWING = 2 * MAX_CHUNK - MIN_CHUNK;
+    private static final int GROWING_CHUNKS = 32 - Integer.numberOfLeadingZeros(MAX_CHUNK / MIN_CHUNK);
+    // smallest block transactionIds and invoiceIds are appended to, doubled for each further one
+    private static final int MIN_ID_BLOCK = 256;
+    private static final int MAX_ID_BLOCK = 4096;
+
+    // credit record: transactionId, units, date, expiresAt, expired, first and last debit line, currency, type
+    private static final int CREDIT_SIZE = 56;
+    private static final int C_TRANSACTION_ID = 0;
+    private static final int C_UNITS = 8;
+    private static final int C_DATE = 16;
+    private static final int C_EXPIRES_AT = 24;
+    private static final int C_EXPIRED = 32;
+    private static final int C_FIRST_DEBIT = 40;
+    private static final int C_LAST_DEBIT = 44;
+    private static final int C_CURRENCY = 48;
+    private static final int C_TYPE = 50;
+    // debit line record: invoiceId, units, date, credit, next line of the same credit, currency
+    private static final int DEBIT_SIZE = 40;
+    private static final int D_INVOICE_ID = 0;
+    private static final int D_UNITS = 8;
+    private static final int D_DATE = 16;
+    private static final int D_CREDIT = 24;
+    private static final int D_NEXT_FOR_CREDIT = 28;
+    private static final int D_CURRENCY = 32;
+
+    private final OffHeapArena arena;
+    // chunk addresses, published before the states covering their records
+    private volatile long[] creditChunks = new long[0];
+    private volatile long[] debitChunks = new long[0];
+    // only used by the writer, readers go by the published state
+    private int credits;
+    private int debits;
+    // block ids are appended to, with the free space left in it
+    private long idBlock;
+    private int idBlockSize;
+    private int idBlockUsed;
+    // invoiceId of the last debit line and where its bytes are, the next line of the same debit shares them
+    private String lastInvoiceId;
+    private long lastInvoiceAddress;
+    // every block allocated (address, size), for release
+    private long[] blocks = new long[16];
+    private int numBlocks;
+
+    public OffHeapLedgerLog(OffHeapArena arena) {
+        this.arena = arena;
+    }
+
+    @Override
+    public int addCredit(String transactionId, CreditType creditType, long units, String currency, long dateMillis,
+                         long expiresAt) {
+        int index = credits;
+        if (chunkOf(index) == creditChunks.length) {
+            creditChunks = grow(creditChunks, CREDIT_SIZE);
+        }
+        long record = credit(index);
+        arena.putLong(record + C_TRANSACTION_ID, putId(transactionId));
+        arena.putLong(record + C_UNITS, units);
+        arena.putLong(record + C_DATE, dateMillis);
+        arena.putLong(record + C_EXPIRES_AT, expiresAt);
+        arena.putLong(record + C_EXPIRED, -1L);
+        arena.putInt(record + C_FIRST_DEBIT, -1);
+        arena.putInt(record + C_LAST_DEBIT, -1);
+        arena.putShort(record + C_CURRENCY, (short) Dictionary.CURRENCIES.encode(currency));
+        arena.putByte(record + C_TYPE, (byte) creditType.ordinal());
+        credits = index + 1;
+        return index;
+    }
+
+    @Override
+    public int addDebit(String invoiceId, long units, String currency, int credit, long dateMillis) {
+        int index = debits;
+        if (chunkOf(index) == debitChunks.length) {
+            debitChunks = grow(debitChunks, DEBIT_SIZE);
+        }
+        if (null == lastInvoiceId || !lastInvoiceId.equals(invoiceId)) {
+            lastInvoiceAddress = putId(invoiceId);
+            lastInvoiceId = invoiceId;
+        }
+        long record = debit(index);
+        arena.putLong(record + D_INVOICE_ID, lastInvoiceAddress);
+        arena.putLong(record + D_UNITS, units);
+        arena.putLong(record + D_DATE, dateMillis);
+        arena.putInt(record + D_CREDIT, credit);
+        arena.putInt(record + D_NEXT_FOR_CREDIT, -1);
+        arena.putShort(record + D_CURRENCY, (short) Dictionary.CURRENCIES.encode(currency));
+        debits = index + 1;
+
+        // thread it behind the last line that consumed the same credit
+        if (credit >= 0) {
+            long creditRecord = credit(credit);
+            int last = arena.getInt(creditRecord + C_LAST_DEBIT);
+            if (last < 0) {
+                arena.putInt(creditRecord + C_FIRST_DEBIT, index);
+            } else {
+                arena.putInt(debit(last) + D_NEXT_FOR_CREDIT, index);
+            }
+            arena.putInt(creditRecord + C_LAST_DEBIT, index);
+        }
+        return index;
+    }
+
+    @Override
+    public void setExpired(int credit, long units) {
+        arena.putLong(credit(credit) + C_EXPIRED, units);
+    }
+
+    @Override
+    public int getCredits() {
+        return credits;
+    }
+
+    @Override
+    public int getDebits() {
+        return debits;
+    }
+
+    @Override
+    public String getTransactionId(int credit) {
+        return getId(arena.getLong(credit(credit) + C_TRANSACTION_ID));
+    }
+
+    @Override
+    public CreditType getCreditType(int credit) {
+        return CREDIT_TYPES[arena.getByte(credit(credit) + C_TYPE)];
+    }
+
+    @Override
+    public long getCreditUnits(int credit) {
+        return arena.getLong(credit(credit) + C_UNITS);
+    }
+
+    @Override
+    public String getCreditCurrency(int credit) {
+        return Dictionary.CURRENCIES.decode(arena.getShort(credit(credit) + C_CURRENCY));
+    }
+
+    @Override
+    public long getCreditDate(int credit) {
+        return arena.getLong(credit(credit) + C_DATE);
+    }
+
+    @Override
+    public long getExpiresAt(int credit) {
+        return arena.getLong(credit(credit) + C_EXPIRES_AT);
+    }
+
+    @Override
+    public long getExpired(int credit) {
+        return arena.getLong(credit(credit) + C_EXPIRED);
+    }
+
+    @Override
+    public List<String> getInvoiceIds(int credit, int debitLimit) {
+        List<String> invoiceIds = new ArrayList<>();
+        for (int debit = arena.getInt(credit(credit) + C_FIRST_DEBIT); debit >= 0 && debit < debitLimit;
+             debit = arena.getInt(debit(debit) + D_NEXT_FOR_CREDIT)) {
+            invoiceIds.add(getInvoiceId(debit));
+        }
+        return invoiceIds;
+    }
+
+    @Override
+    public String getInvoiceId(int debit) {
+        return getId(arena.getLong(debit(debit) + D_INVOICE_ID));
+    }
+
+    @Override
+    public long getDebitUnits(int debit) {
+        return arena.getLong(debit(debit) + D_UNITS);
+    }
+
+    @Override
+    public String getDebitCurrency(int debit) {
+        return Dictionary.CURRENCIES.decode(arena.getShort(debit(debit) + D_CURRENCY));
+    }
+
+    @Override
+    public int getDebitCredit(int debit) {
+        return arena.getInt(debit(debit) + D_CREDIT);
+    }
+
+    @Override
+    public long getDebitDate(int debit) {
+        return arena.getLong(debit(debit) + D_DATE);
+    }
+
+    @Override
+    public void release() {
+        for (int i = 0; i < numBlocks; i += 2) {
+            arena.free(blocks[i], (int) blocks[i + 1]);
+        }
+        numBlocks = 0;
+        creditChunks = new long[0];
+        debitChunks = new long[0];
+        credits = 0;
+        debits = 0;
+        idBlockSize = 0;
+        idBlockUsed = 0;
+        lastInvoiceId = null;
+    }
+
+    // address of a credit record
+    private long credit(int index) {
+        return creditChunks[chunkOf(index)] + (long) offsetOf(index) * CREDIT_SIZE;
+    }
+
+    // address of a debit line record
+    private long debit(int index) {
+        return debitChunks[chunkOf(index)] + (long) offsetOf(index) * DEBIT_SIZE;
+    }
+
+    // chunk holding the record at index
+    private static int chunkOf(int index) {
+        if (index < GROWING) {
+            return 31 - Integer.numberOfLeadingZeros(index / MIN_CHUNK + 1);
+        }
+        return GROWING_CHUNKS + (index - GROWING) / MAX_CHUNK;
+    }
+
+    // position of the record at index in its chunk
+    private static int offsetOf(int index) {
+        if (index < GROWING) {
+            return index - MIN_CHUNK * ((1 << chunkOf(index)) - 1);
+        }
+        return (index - GROWING) % MAX_CHUNK;
+    }
+
+    // appends the next chunk to a chunk directory
+    private long[] grow(long[] chunks, int recordSize) {
+        int records = chunks.length < GROWING_CHUNKS ? MIN_CHUNK << chunks.length : MAX_CHUNK;
+        long[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+        grown[chunks.length] = allocate(records * recordSize);
+        return grown;
+    }
+
+    // appends an id to the current id block, 0 for null
+    private long putId(String id) {
+        if (null == id) {
+            return 0L;
+        }
+        byte[] utf8 = id.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + utf8.length;
+        if (idBlockSize - idBlockUsed < size) {
+            idBlockSize = Math.max(Math.min(Math.max(2 * idBlockSize, MIN_ID_BLOCK), MAX_ID_BLOCK),
+                    Integer.highestOneBit(size - 1) << 1);
+            idBlock = allocate(idBlockSize);
+            idBlockUsed = 0;
+        }
+        long address = idBlock + idBlockUsed;
+        arena.putString(address, utf8);
+        idBlockUsed += size;
+        return address;
+    }
+
+    private String getId(long address) {
+        return 0L == address ? null : arena.getString(address);
+    }
+
+    private long allocate(int bytes) {
+        long address = arena.allocate(bytes);
+        if (numBlocks == blocks.length) {
+            blocks = Arrays.copyOf(blocks, 2 * numBlocks);
+        }
+        blocks[numBlocks++] = address;
+        blocks[numBlocks++] = bytes;
+        return address;
+    }
+}
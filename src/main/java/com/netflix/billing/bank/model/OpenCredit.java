@@ -0,0 +1,61 @@
+package com.netflix.billing.bank.model;
+
+/**
+ * A credit that still has money left to be consumed by debits. The remaining amount is tracked in minor units, the
+ * credit as it was applied is kept in the account's {@link LedgerLog} and referred to by its index there.
+ */
+public class OpenCredit {
+
+    // index of the credit in the account's LedgerLog
+    private final int credit;
+    // epoch millis the credit expires at, Long.MAX_VALUE if it never does
+    private final long expiresAt;
+    // minor units left on this credit
+    private long remaining;
+
+    public OpenCredit(int credit, long expiresAt, long remaining) {
+        this.credit = credit;
+        this.expiresAt = expiresAt;
+        this.remaining = remaining;
+    }
+
+    /**
+     * Consume up to given amount from this credit
+     *
+     * @param units minor units still to be debited
+     * @return minor units actually consumed
+     */
+    public long consume(long units) {
+        long consumed = Math.min(remaining, units);
+        remaining -= consumed;
+        return consumed;
+    }
+
+    /**
+     * Whether this credit expired by given time
+     *
+     * @param nowMillis epoch millis
+     */
+    public boolean isExpired(long nowMillis) {
+        return expiresAt <= nowMillis;
+    }
+
+    /**
+     * Returns the epoch millis this credit expires at, Long.MAX_VALUE if it never does
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isConsumed() {
+        return remaining == 0;
+    }
+
+    public int getCredit() {
+        return credit;
+    }
+
+    public long getRemaining() {
+        return remaining;
+    }
+}
@@ -0,0 +1,51 @@
+package com.netflix.billing.bank.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a task in the background on its own daemon thread, intervalMillis after the previous run ended. A run that
+ * fails is logged and the task carries on on schedule.
+ */
+public class PeriodicTask {
+
+    private static final Logger log = LoggerFactory.getLogger(PeriodicTask.class);
+
+    private final String name;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param name of the thread, and of the task in logs
+     * @param intervalMillis
+     * @param task its result, if any, is ignored
+     */
+    public PeriodicTask(String name, long intervalMillis, Callable<?> task) {
+        if (null == name || intervalMillis <= 0 || null == task) {
+            throw new Error("Invalid " + name + " configuration");
+        }
+        this.name = name;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> run(task), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void run(Callable<?> task) {
+        try {
+            task.call();
+        } catch (Exception | Error e) {
+            log.error("Run of {} failed", name, e);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,157 @@
+package com.netflix.billing.bank.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: items are scheduled for a deadline and handed back once it passed.
+ *
+ * Time is cut into ticks. Level 0 has a slot per tick for the next 64 ticks, every level above has a slot per 64
+ * slots of the level below, so six levels span 64^6 ticks. Scheduling picks the level from how far away the deadline
+ * is and appends to one slot, O(1) however many items are pending; whenever level 0 wraps around, the slot of the
+ * next level that just came due is cascaded down, and the items in level 0's current slot are due. Ticks on which
+ * nothing can come due are skipped in one step, so advancing over a long idle stretch is not one step per tick. Like
+ * the accounts whose expirations it tracks, a wheel is only used by the shard owning them.
+ *
+ * @param <T> scheduled item
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 6;
+
+    private final long tickMillis;
+    // [level][slot], null until something is scheduled in it
+    private final List<Entry<T>>[][] wheels;
+    // entries on each level
+    private final int[] counts = new int[LEVELS];
+    // last tick advanced to, everything scheduled up to it has been handed back
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis resolution of the wheel, deadlines are rounded up to it
+     * @param startMillis epoch millis to start from
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis, long startMillis) {
+        if (tickMillis <= 0) {
+            throw new Error("Invalid timing wheel configuration");
+        }
+        this.tickMillis = tickMillis;
+        this.wheels = (List<Entry<T>>[][]) new List<?>[LEVELS][SLOTS];
+        this.currentTick = startMillis / tickMillis;
+    }
+
+    /**
+     * Schedules item for given deadline, an item whose deadline passed already is due with the next tick
+     *
+     * @param deadlineMillis epoch millis
+     * @param item
+     */
+    public void schedule(long deadlineMillis, T item) {
+        // round up, so an item is never handed back before its deadline
+        long tick = deadlineMillis / tickMillis + (deadlineMillis % tickMillis == 0 ? 0 : 1);
+        insert(new Entry<>(Math.max(tick, currentTick + 1), item));
+        size++;
+    }
+
+    /**
+     * Advances the wheel to given time
+     *
+     * @param nowMillis epoch millis
+     * @return items whose deadline passed, in no particular order
+     */
+    public List<T> advance(long nowMillis) {
+        long targetTick = nowMillis / tickMillis;
+        List<T> due = new ArrayList<>();
+        while (currentTick < targetTick && size > 0) {
+            int lowest = 0;
+            while (counts[lowest] == 0) {
+                lowest++;
+            }
+            if (lowest > 0) {
+                // nothing on the levels below, skip to the tick before the lowest occupied one cascades next
+                long span = 1L << (SLOT_BITS * lowest);
+                long skipTo = (currentTick / span + 1) * span - 1;
+                if (skipTo >= targetTick) {
+                    break;
+                }
+                currentTick = skipTo;
+            }
+            currentTick++;
+            // level 0 wrapped around, bring down the slots of the levels above that came due
+            for (int level = 1; level < LEVELS && slotAt(currentTick, level - 1) == 0; level++) {
+                List<Entry<T>> entries = take(level, slotAt(currentTick, level));
+                if (null != entries) {
+                    for (Entry<T> entry : entries) {
+                        insert(entry);
+                    }
+                }
+            }
+            List<Entry<T>> entries = take(0, slotAt(currentTick, 0));
+            if (null == entries) {
+                continue;
+            }
+            for (Entry<T> entry : entries) {
+                if (entry.tick > currentTick) {
+                    // beyond the span of the wheel when scheduled, it went round once more
+                    insert(entry);
+                } else {
+                    due.add(entry.item);
+                    size--;
+                }
+            }
+        }
+        // nothing pending before the target, skip the empty ticks in one go
+        currentTick = Math.max(currentTick, targetTick);
+        return due;
+    }
+
+    /**
+     * Returns the number of items scheduled and not handed back yet
+     */
+    public int size() {
+        return size;
+    }
+
+    private void insert(Entry<T> entry) {
+        long delta = entry.tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        // past the last level, park in its farthest slot and place it again when that comes round
+        long tick = delta >= 1L << (SLOT_BITS * LEVELS) ? currentTick - 1 : entry.tick;
+        int slot = slotAt(tick, level);
+        if (null == wheels[level][slot]) {
+            wheels[level][slot] = new ArrayList<>();
+        }
+        wheels[level][slot].add(entry);
+        counts[level]++;
+    }
+
+    private List<Entry<T>> take(int level, int slot) {
+        List<Entry<T>> entries = wheels[level][slot];
+        wheels[level][slot] = null;
+        if (null != entries) {
+            counts[level] -= entries.size();
+        }
+        return entries;
+    }
+
+    private static int slotAt(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    private static class Entry<T> {
+        private final long tick;
+        private final T item;
+
+        Entry(long tick, T item) {
+            this.tick = tick;
+            this.item = item;
+        }
+    }
+}
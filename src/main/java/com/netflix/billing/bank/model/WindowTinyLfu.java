@@ -0,0 +1,240 @@
+package com.netflix.billing.bank.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU admission and eviction policy over a bounded set of keys; it tracks keys only, whoever holds the values
+ * follows what it evicts.
+ *
+ * New keys enter a small LRU window (1% of the capacity). The key pushed out of the window is a candidate for the
+ * main space, a segmented LRU of a probation and a protected (80%) segment: it is admitted only if it has been used
+ * more often than the probation segment's least recently used key, otherwise it is evicted itself. Keys used again
+ * while on probation move to the protected segment, whose least recently used key falls back to probation. How often
+ * a key has been used is estimated by a count-min sketch of 4-bit counters covering keys that are not held too,
+ * halved every 10 times capacity uses so that old popularity fades. A burst of one-off keys therefore passes through
+ * the window without flushing the keys used over and over, while a key that keeps coming back gets in.
+ *
+ * Not thread-safe, callers serialize access.
+ *
+ * @param <K> key
+ */
+public class WindowTinyLfu<K> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private final int capacity;
+    private final int windowCapacity;
+    private final int protectedCapacity;
+    private final FrequencySketch sketch;
+    private final Map<K, Node<K>> nodes = new HashMap<>();
+    // sentinel of each segment's list, least recently used first
+    private final Node<K>[] segments;
+    private final int[] sizes = new int[3];
+
+    /**
+     * @param capacity keys held at most
+     */
+    @SuppressWarnings("unchecked")
+    public WindowTinyLfu(int capacity) {
+        if (capacity <= 0) {
+            throw new Error("Invalid cache capacity");
+        }
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (int) ((capacity - windowCapacity) * 0.8);
+        this.sketch = new FrequencySketch(capacity);
+        this.segments = (Node<K>[]) new Node<?>[3];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Node<>(null, i);
+            segments[i].prev = segments[i];
+            segments[i].next = segments[i];
+        }
+    }
+
+    /**
+     * Records a use of key
+     *
+     * @param key
+     * @return whether key is held
+     */
+    public boolean access(K key) {
+        sketch.increment(key.hashCode());
+        Node<K> node = nodes.get(key);
+        if (null == node) {
+            return false;
+        }
+        if (node.segment == PROBATION) {
+            move(node, PROTECTED);
+            if (sizes[PROTECTED] > protectedCapacity) {
+                move(segments[PROTECTED].next, PROBATION);
+            }
+        } else {
+            move(node, node.segment);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a key which is not held, counting as a use of it
+     *
+     * @param key
+     * @return key evicted to make room, possibly the one pushed out of the window, null if there was room
+     */
+    public K add(K key) {
+        sketch.increment(key.hashCode());
+        Node<K> node = new Node<>(key, WINDOW);
+        nodes.put(key, node);
+        link(node);
+        if (sizes[WINDOW] <= windowCapacity) {
+            return null;
+        }
+        Node<K> candidate = segments[WINDOW].next;
+        move(candidate, PROBATION);
+        if (nodes.size() <= capacity) {
+            return null;
+        }
+        // the candidate is only the probation's least recently used when it is the only key on probation
+        Node<K> victim = segments[PROBATION].next;
+        Node<K> evicted = victim != candidate
+                && sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())
+                ? victim : candidate;
+        remove(evicted.key);
+        return evicted.key;
+    }
+
+    public boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    /**
+     * Stops holding key, its use counts are kept
+     *
+     * @param key
+     */
+    public void remove(K key) {
+        Node<K> node = nodes.remove(key);
+        if (null != node) {
+            unlink(node);
+        }
+    }
+
+    public void clear() {
+        nodes.clear();
+        for (int i = 0; i < segments.length; i++) {
+            segments[i].prev = segments[i];
+            segments[i].next = segments[i];
+            sizes[i] = 0;
+        }
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Estimated number of recent uses of key, at most 15
+     *
+     * @param key
+     * @return frequency
+     */
+    public int frequency(K key) {
+        return sketch.frequency(key.hashCode());
+    }
+
+    // moves node to the most recently used end of segment
+    private void move(Node<K> node, int segment) {
+        unlink(node);
+        node.segment = segment;
+        link(node);
+    }
+
+    private void link(Node<K> node) {
+        Node<K> sentinel = segments[node.segment];
+        node.prev = sentinel.prev;
+        node.next = sentinel;
+        sentinel.prev.next = node;
+        sentinel.prev = node;
+        sizes[node.segment]++;
+    }
+
+    private void unlink(Node<K> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        sizes[node.segment]--;
+    }
+
+    private static final class Node<K> {
+        private final K key;
+        private int segment;
+        private Node<K> prev;
+        private Node<K> next;
+
+        Node(K key, int segment) {
+            this.key = key;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, 16 to a long. A key's counters are picked by 4 hashes of its hash code,
+     * its frequency is the smallest of them.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {0x97cb3127L, 0xab7ac36fL, 0xf3ffeb9dL, 0x8b6b6f4dL};
+        private static final long HALF_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int counterMask;
+        // uses counted before all counters are halved
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int length = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26)) - 1) << 1;
+            table = new long[length];
+            counterMask = 16 * length - 1;
+            sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterOf(hash, i);
+                int shift = (counter & 15) << 2;
+                long mask = 0xfL << shift;
+                if ((table[counter >>> 4] & mask) != mask) {
+                    table[counter >>> 4] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & HALF_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                int counter = counterOf(hash, i);
+                frequency = Math.min(frequency, (int) (table[counter >>> 4] >>> ((counter & 15) << 2)) & 15);
+            }
+            return frequency;
+        }
+
+        private int counterOf(int hash, int i) {
+            long h = (hash ^ SEEDS[i]) * 0x9e3779b97f4a7c15L;
+            h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+            return (int) (h ^ (h >>> 31)) & counterMask;
+        }
+    }
+}
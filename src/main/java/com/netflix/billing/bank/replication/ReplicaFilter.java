@@ -0,0 +1,52 @@
+package com.netflix.billing.bank.replication;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves customer reads on a replica only while it is fresh enough, and reports how fresh it is on every answer.
+ * Credits, debits and batches have to go to the primary.
+ */
+public class ReplicaFilter extends OncePerRequestFilter {
+
+    // primary LSN of the last operation the replica applied
+    public static final String LSN_HEADER = "X-Replica-Lsn";
+    // milliseconds since the replica last held everything the primary had made durable
+    public static final String STALENESS_HEADER = "X-Replica-Staleness-Ms";
+
+    private final Replicator replicator;
+    private final long maxStalenessMillis;
+
+    public ReplicaFilter(Replicator replicator, long maxStalenessMillis) {
+        this.replicator = replicator;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        if (!path.startsWith("/customer/")) {
+            chain.doFilter(request, response);
+            return;
+        }
+        if (!"GET".equals(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Read-only replica");
+            return;
+        }
+        long staleness = replicator.getStalenessMillis();
+        if (staleness > maxStalenessMillis) {
+            response.setHeader("Retry-After", "1");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Replica is behind the primary");
+            return;
+        }
+        response.setHeader(LSN_HEADER, Long.toString(replicator.getAppliedLsn()));
+        response.setHeader(STALENESS_HEADER, Long.toString(staleness));
+        chain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,85 @@
+package com.netflix.billing.bank.replication;
+
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.journal.Journal;
+import com.netflix.billing.bank.journal.JournalRecord;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Endpoints replicas pull the ledger from, mapped on a primary keeping a journal. A replica starts from an export of
+ * every account and then follows the journal written after it.
+ */
+@RestController
+@ConditionalOnProperty("JOURNAL_DIR")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@RequestMapping("replication")
+public class ReplicationController {
+
+    // records shipped in one response
+    private static final int MAX_RECORDS = 4096;
+
+    @Autowired
+    public AccountManager accountManager;
+
+    @Autowired
+    public Journal journal;
+
+    /**
+     *
+     * @return Every account, see {@link AccountManager#exportAccounts}.
+     */
+    @GetMapping("accounts")
+    public ResponseEntity<StreamingResponseBody> exportAccounts() {
+        StreamingResponseBody body = out -> {
+            DataOutputStream data = new DataOutputStream(out);
+            accountManager.exportAccounts(data);
+            data.flush();
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(body);
+    }
+
+    /**
+     *
+     * @param after LSN of the last record the replica applied.
+     * @param max How many records to return at most.
+     * @return The primary's durable LSN, the number of records and the records after the given LSN, in LSN order.
+     * 410 when the journal was truncated past them and the replica has to start over from an export, also when the
+     * first record is not the one right after the given LSN.
+     */
+    @GetMapping("journal")
+    public ResponseEntity<byte[]> readJournal(@RequestParam long after,
+                                              @RequestParam(defaultValue = "" + MAX_RECORDS) int max)
+            throws IOException {
+        if (after < 0 || max <= 0) {
+            throw new Error("Invalid input parameters.");
+        }
+        // read before the records, so the replica is at least this far once it applied them
+        long durableLsn = journal.getDurableLsn();
+        List<JournalRecord> records = journal.read(after, Math.min(max, MAX_RECORDS));
+        if (null == records || (!records.isEmpty() && records.get(0).getLsn() != after + 1)) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(durableLsn);
+        out.writeInt(records.size());
+        for (JournalRecord record : records) {
+            record.writeTo(out);
+        }
+        out.flush();
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_OCTET_STREAM).body(bytes.toByteArray());
+    }
+}
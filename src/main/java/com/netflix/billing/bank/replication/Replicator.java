@@ -0,0 +1,249 @@
+package com.netflix.billing.bank.replication;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.journal.JournalRecord;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the accounts of a read replica in step with the primary. The replica starts from an export of every account
+ * and then pulls the operations the primary journaled after it, applying them in LSN order. Should the primary have
+ * truncated its journal past what the replica applied, the replica starts over from a new export.
+ *
+ * Staleness is the time since the replica last held everything the primary had made durable; reads are refused once
+ * it exceeds the configured bound.
+ */
+public class Replicator {
+
+    private static final Logger log = LoggerFactory.getLogger(Replicator.class);
+    // seconds a client is asked to wait before retrying a read whose version was not reached in time, as ReplicaFilter
+    private static final long RETRY_AFTER_SECONDS = 1L;
+
+    // address of the primary, host:port
+    private final String primary;
+    private final AccountManager accountManager;
+    // pause between pulls once caught up
+    private final long pollMillis;
+    // connect and read timeout of calls to the primary
+    private final int timeoutMillis;
+    // how long a read asking for a version the replica has not reached yet waits for it
+    private final long readTimeoutMillis;
+    private final Thread puller;
+
+    // primary LSN of the last operation applied here, -1 until the accounts were exported from the primary
+    private volatile long appliedLsn = -1L;
+    // primary's durable LSN as of the last pull
+    private volatile long primaryLsn;
+    // when the replica last held everything the primary had made durable, 0 before the first time
+    private volatile long caughtUpAtMillis;
+    private volatile boolean running = true;
+    // reads waiting for their customer to reach a version
+    private final ConcurrentLinkedQueue<VersionWaiter> waiters = new ConcurrentLinkedQueue<>();
+
+    public Replicator(String primary, AccountManager accountManager, MeterRegistry meterRegistry, long pollMillis,
+                      int timeoutMillis, long readTimeoutMillis) {
+        if (null == primary || primary.isEmpty() || pollMillis <= 0 || timeoutMillis <= 0) {
+            throw new Error("Invalid replica configuration");
+        }
+        this.primary = primary;
+        this.accountManager = accountManager;
+        this.pollMillis = pollMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+
+        Gauge.builder("ledger.replica.lag", this, Replicator::getLag)
+                .description("Operations the primary made durable that the replica has not applied yet")
+                .register(meterRegistry);
+        TimeGauge.builder("ledger.replica.staleness", this, TimeUnit.MILLISECONDS, Replicator::getStalenessMillis)
+                .description("Time since the replica last held everything the primary made durable")
+                .register(meterRegistry);
+
+        puller = new Thread(this::pullLoop, "replicator");
+        puller.setDaemon(true);
+        puller.start();
+    }
+
+    /**
+     * Completes once given customer's ledger reached minVersion here, fails with a retryable {@link OverloadError}
+     * if it does not within the read timeout, answered 503 like a replica too far behind
+     *
+     * @param customerId
+     * @param minVersion version of a balance returned by the primary
+     * @return future completed on the caller's thread or the replicator's
+     */
+    public CompletableFuture<Void> awaitVersion(String customerId, long minVersion) {
+        if (accountManager.getVersion(customerId) >= minVersion) {
+            return CompletableFuture.completedFuture(null);
+        }
+        VersionWaiter waiter = new VersionWaiter(customerId, minVersion,
+                System.currentTimeMillis() + readTimeoutMillis);
+        waiters.add(waiter);
+        return waiter.future;
+    }
+
+    public long getAppliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Operations the primary made durable that were not applied here, as of the last pull
+     */
+    public long getLag() {
+        return Math.max(0L, primaryLsn - appliedLsn);
+    }
+
+    /**
+     * Milliseconds since the replica last held everything the primary had made durable, Long.MAX_VALUE before it
+     * ever did
+     */
+    public long getStalenessMillis() {
+        long caughtUpAt = caughtUpAtMillis;
+        return 0L == caughtUpAt ? Long.MAX_VALUE : System.currentTimeMillis() - caughtUpAt;
+    }
+
+    public void shutdown() {
+        running = false;
+        puller.interrupt();
+    }
+
+    private void pullLoop() {
+        while (running) {
+            boolean caughtUp = false;
+            try {
+                if (appliedLsn < 0) {
+                    importAccounts();
+                }
+                caughtUp = pull();
+            } catch (IOException | Error e) {
+                log.warn("Replicating from {} failed, retrying", primary, e);
+            }
+            completeWaiters();
+            if (caughtUp || appliedLsn < 0) {
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // replaces every account with the primary's
+    private void importAccounts() throws IOException {
+        HttpURLConnection connection = open("/replication/accounts");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+            int version = in.readInt();
+            long lsn = in.readLong();
+            int accounts = 0;
+            while (in.readBoolean()) {
+                String customerId = in.readUTF();
+                byte[] image = new byte[in.readInt()];
+                in.readFully(image);
+                accountManager.restoreAccount(customerId, image, version);
+                accounts++;
+            }
+            appliedLsn = lsn;
+            log.info("Imported {} accounts from {} as of LSN {}", accounts, primary, lsn);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // applies the next operations journaled by the primary, returns whether the replica is caught up
+    private boolean pull() throws IOException {
+        long startedAt = System.currentTimeMillis();
+        HttpURLConnection connection = open("/replication/journal?after=" + appliedLsn);
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_GONE) {
+                log.warn("Primary {} truncated its journal past LSN {}, importing its accounts again", primary,
+                        appliedLsn);
+                appliedLsn = -1L;
+                return false;
+            }
+            List<JournalRecord> records;
+            long durableLsn;
+            try (InputStream body = connection.getInputStream()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+                durableLsn = in.readLong();
+                int size = in.readInt();
+                records = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    records.add(JournalRecord.readFrom(in));
+                }
+            }
+            for (int i = 0; i < records.size(); i++) {
+                if (records.get(i).getLsn() != appliedLsn + 1 + i) {
+                    log.warn("Primary {} shipped LSN {} after LSN {}, importing its accounts again", primary,
+                            records.get(i).getLsn(), appliedLsn + i);
+                    appliedLsn = -1L;
+                    return false;
+                }
+            }
+            if (!records.isEmpty()) {
+                accountManager.applyReplicated(records);
+                appliedLsn = records.get(records.size() - 1).getLsn();
+            }
+            primaryLsn = Math.max(durableLsn, appliedLsn);
+            if (appliedLsn >= durableLsn) {
+                // everything durable when the pull started is applied
+                caughtUpAtMillis = startedAt;
+                return true;
+            }
+            return false;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void completeWaiters() {
+        long now = System.currentTimeMillis();
+        for (Iterator<VersionWaiter> i = waiters.iterator(); i.hasNext(); ) {
+            VersionWaiter waiter = i.next();
+            if (accountManager.getVersion(waiter.customerId) >= waiter.minVersion) {
+                waiter.future.complete(null);
+                i.remove();
+            } else if (now >= waiter.deadlineMillis) {
+                waiter.future.completeExceptionally(new OverloadError(OverloadError.Reason.OVERLOADED,
+                        RETRY_AFTER_SECONDS, "Replica has not reached version " + waiter.minVersion));
+                i.remove();
+            }
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + primary + path).openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        return connection;
+    }
+
+    private static class VersionWaiter {
+        private final String customerId;
+        private final long minVersion;
+        private final long deadlineMillis;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        VersionWaiter(String customerId, long minVersion, long deadlineMillis) {
+            this.customerId = customerId;
+            this.minVersion = minVersion;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
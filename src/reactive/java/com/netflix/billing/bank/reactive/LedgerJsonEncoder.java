@@ -0,0 +1,48 @@
+package com.netflix.billing.bank.reactive;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.LedgerJson;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.AbstractEncoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+
+/**
+ * Writes balances with {@link LedgerJson} ahead of the Jackson encoder, the reactive counterpart of
+ * LedgerJsonConverter: a balance read again at the same version is answered with the bytes encoded the first time.
+ */
+public class LedgerJsonEncoder extends AbstractEncoder<CustomerBalance> {
+
+    private final JsonFactory factory;
+
+    public LedgerJsonEncoder(JsonFactory factory) {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.factory = factory;
+    }
+
+    @Override
+    public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+        return CustomerBalance.class == elementType.resolve() && super.canEncode(elementType, mimeType);
+    }
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<? extends CustomerBalance> inputStream, DataBufferFactory bufferFactory,
+                                   ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        return Flux.from(inputStream).map(balance -> {
+            try {
+                return bufferFactory.wrap(LedgerJson.balance(balance, factory));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+}
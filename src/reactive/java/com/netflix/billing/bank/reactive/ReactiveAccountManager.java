@@ -0,0 +1,67 @@
+package com.netflix.billing.bank.reactive;
+
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.HistoryOrder;
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link AccountManager} operations as {@link Mono}s. Nothing is handed to the account's shard before the Mono is
+ * subscribed to, so an operation is only started once the server asks for its response, and the Mono completes on the
+ * shard thread that applied or read it: no thread waits for the operation in between.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveAccountManager {
+
+    @Autowired
+    public AccountManager accountManager;
+
+    /**
+     * @param customerId
+     * @param creditAmount
+     * @return CustomerBalance once the credit was applied
+     */
+    public Mono<CustomerBalance> credit(String customerId, CreditAmount creditAmount) {
+        return Mono.defer(() -> Mono.fromFuture(accountManager.creditAsync(customerId, creditAmount)));
+    }
+
+    /**
+     * @param customerId
+     * @param debitAmount
+     * @return CustomerBalance once the debit was applied
+     */
+    public Mono<CustomerBalance> debit(String customerId, DebitAmount debitAmount) {
+        return Mono.defer(() -> Mono.fromFuture(accountManager.debitAsync(customerId, debitAmount)));
+    }
+
+    /**
+     * @param customerId
+     * @return CustomerBalance
+     */
+    public Mono<CustomerBalance> getBalance(String customerId) {
+        return Mono.defer(() -> Mono.fromFuture(accountManager.getBalanceAsync(customerId)));
+    }
+
+    /**
+     * Reads the history on the shard owning the account, an event loop never waits for an evicted account to be
+     * loaded
+     *
+     * @param customerId
+     * @param limit
+     * @param cursor
+     * @param order
+     * @return DebitHistoryPage
+     */
+    public Mono<DebitHistoryPage> getDebitHistoryPage(String customerId, int limit, String cursor,
+                                                      HistoryOrder order) {
+        return Mono.defer(() -> Mono.fromFuture(accountManager.getDebitHistoryPageAsync(customerId, limit, cursor,
+                order)));
+    }
+}
@@ -0,0 +1,110 @@
+package com.netflix.billing.bank.reactive;
+
+import com.netflix.billing.bank.controller.wire.account.AmountValidator;
+import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.HistoryOrder;
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Mono;
+
+/**
+ * Reactive edition of the balance, credit, debit and history endpoints of BankController, same paths and same
+ * responses, served by WebFlux on Netty's event loops instead of a servlet thread per request.
+ *
+ * Request bodies are decoded only when the handler subscribes to them, operations are only handed to the account's
+ * shard once the response is subscribed to, and the shard thread applying an operation completes its response. A full
+ * shard mailbox or the admission limit refuses an operation with 503 or 429 (see OverloadHandler) rather than queueing
+ * it, so a client sending faster than the shards apply is slowed down instead of piling up work.
+ *
+ * Only serves a standalone primary: cluster forwarding and the replica's staleness guard are servlet filters, see
+ * ReactiveConfig.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveBankController {
+
+    // debits returned in one history page
+    private static final int MAX_HISTORY_PAGE_SIZE = 1000;
+
+    @Autowired
+    public ReactiveAccountManager accountManager;
+
+    @Autowired
+    public AmountValidator validator;
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param minVersion Accepted as by BankController, a primary always has its latest writes.
+     * @return How much money is left in the customer's account.
+     */
+    @GetMapping("customer/{customerId}/balance")
+    public Mono<CustomerBalance> getBalance(@PathVariable String customerId,
+                                            @RequestParam(required = false) Long minVersion) {
+        if (null == customerId || customerId.isEmpty()) {
+            return Mono.error(new Error("Invalid input parameters."));
+        }
+        return accountManager.getBalance(customerId);
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param creditAmount How much credit should be applied to the account
+     * @return How much money is left in the customer's account after the credit was applied.
+     */
+    @PostMapping("customer/{customerId}/credit")
+    public Mono<CustomerBalance> postCredit(@PathVariable String customerId,
+                                            @RequestBody Mono<CreditAmount> creditAmount) {
+        return creditAmount.flatMap(credit -> {
+            if (null == customerId || customerId.isEmpty() || !validator.validateCredit(credit)) {
+                return Mono.error(new Error("Invalid input parameters."));
+            }
+            return accountManager.credit(customerId, credit);
+        });
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param debitAmount How much money should be deducted from the customer's balance
+     * @return How much money is left in the customer's account after the debit amount was deducted from balance.
+     */
+    @PostMapping("customer/{customerId}/debit")
+    public Mono<CustomerBalance> debit(@PathVariable String customerId,
+                                       @RequestBody Mono<DebitAmount> debitAmount) {
+        return debitAmount.flatMap(debit -> {
+            if (null == customerId || customerId.isEmpty() || !validator.validateDebit(debit)) {
+                return Mono.error(new Error("Invalid input parameters."));
+            }
+            return accountManager.debit(customerId, debit);
+        });
+    }
+
+    /**
+     *
+     * @param customerId String id representing the customer/account id.
+     * @param limit How many debits to return at most. The whole history is returned when absent.
+     * @param cursor The nextCursor of the previous page, absent for the first page.
+     * @param order OLDEST_FIRST (default) or NEWEST_FIRST.
+     * @param minVersion Accepted as by BankController, a primary always has its latest writes.
+     * @return One page of the debit transactions made to the customer's account, with the cursor to the next one.
+     */
+    @GetMapping("customer/{customerId}/history")
+    public Mono<DebitHistoryPage> debitHistory(@PathVariable String customerId,
+                                               @RequestParam(required = false) Integer limit,
+                                               @RequestParam(required = false) String cursor,
+                                               @RequestParam(defaultValue = "OLDEST_FIRST") HistoryOrder order,
+                                               @RequestParam(required = false) Long minVersion) {
+        if (null == customerId || customerId.isEmpty() ||
+                (null != limit && (limit <= 0 || limit > MAX_HISTORY_PAGE_SIZE))) {
+            return Mono.error(new Error("Invalid input parameters."));
+        }
+        return accountManager.getDebitHistoryPage(customerId, null == limit ? Integer.MAX_VALUE : limit, cursor,
+                order);
+    }
+}
@@ -0,0 +1,46 @@
+package com.netflix.billing.bank.reactive;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * Reactive edition of the HTTP endpoints, built with -Preactive and run with the reactive profile
+ * (SPRING_PROFILES_ACTIVE=reactive). The credit/debit ledger, journal, snapshots, admission control and binary
+ * listener are shared with the servlet edition.
+ *
+ * Cluster mode and read replicas are refused at startup: forwarding to the owning node, the replica's staleness guard
+ * and the replication endpoints are servlet filters and controllers, without them a node would serve customers it
+ * does not own or stale reads.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveConfig implements WebFluxConfigurer {
+
+    private final ObjectMapper objectMapper;
+
+    public ReactiveConfig(ObjectMapper objectMapper,
+                          @Value("${CLUSTER_NODES:}") String clusterNodes,
+                          @Value("${REPLICA_OF:}") String replicaOf) {
+        if (!clusterNodes.isEmpty() || !replicaOf.isEmpty()) {
+            throw new Error("CLUSTER_NODES and REPLICA_OF need the servlet edition of the endpoints");
+        }
+        this.objectMapper = objectMapper;
+    }
+
+    // Netty's event loops, not the Tomcat the servlet edition brings along
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        configurer.customCodecs().encoder(new LedgerJsonEncoder(objectMapper.getFactory()));
+    }
+}
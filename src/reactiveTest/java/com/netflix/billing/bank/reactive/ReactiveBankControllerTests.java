@@ -0,0 +1,137 @@
+package com.netflix.billing.bank.reactive;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import com.netflix.billing.bank.controller.wire.account.AccountExecutorService;
+import com.netflix.billing.bank.controller.wire.account.AccountManager;
+import com.netflix.billing.bank.controller.wire.account.Money;
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import java.math.BigDecimal;
+import java.util.concurrent.CountDownLatch;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.CASH;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.GIFTCARD;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+		properties = {"CUSTOMER_RATE_LIMIT=1", "CUSTOMER_RATE_BURST=5"})
+@ActiveProfiles("reactive")
+public class ReactiveBankControllerTests {
+
+	@Autowired
+	public WebTestClient webTestClient;
+
+	@Autowired
+	public AccountManager accountManager;
+
+	@Autowired
+	public AccountExecutorService accountExecutorService;
+
+	@After
+	public void afterTest() {
+		accountManager.clear();
+	}
+
+	@Test
+	public void testCreditDebitBalanceAndHistory() {
+		// given
+		credit("CUSTOMER_1", new CreditAmount(GIFTCARD, money(10), "TX_1"))
+				.expectStatus().isOk()
+				.expectBody().jsonPath("$.balanceAmounts.GIFTCARD[0].amount").isEqualTo(10);
+		credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_2")).expectStatus().isOk();
+
+		// when
+		debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)))
+				.expectStatus().isOk()
+				.expectBody().jsonPath("$.balanceAmounts.CASH[0].amount").isEqualTo(15);
+		debit("CUSTOMER_1", new DebitAmount("INV_2", money(5))).expectStatus().isOk();
+
+		// then
+		webTestClient.get().uri("/customer/CUSTOMER_1/balance").exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.balanceAmounts.GIFTCARD").isEmpty()
+				.jsonPath("$.balanceAmounts.CASH[0].amount").isEqualTo(10)
+				.jsonPath("$.version").isEqualTo(4);
+		webTestClient.get().uri("/customer/CUSTOMER_1/history").exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.debits.length()").isEqualTo(3)
+				.jsonPath("$.debits[0].invoiceId").isEqualTo("INV_1")
+				.jsonPath("$.debits[2].invoiceId").isEqualTo("INV_2")
+				.jsonPath("$.nextCursor").doesNotExist();
+		webTestClient.get().uri("/customer/CUSTOMER_1/history?limit=1&order=NEWEST_FIRST").exchange()
+				.expectStatus().isOk()
+				.expectBody()
+				.jsonPath("$.debits.length()").isEqualTo(1)
+				.jsonPath("$.debits[0].invoiceId").isEqualTo("INV_2")
+				.jsonPath("$.nextCursor").isNotEmpty();
+	}
+
+	@Test
+	public void testRateLimitedCustomerRefused() {
+		// given - the customer used up its burst
+		for (int i = 0; i < 5; i++) {
+			credit("CUSTOMER_2", new CreditAmount(CASH, money(1), "TX_" + i)).expectStatus().isOk();
+		}
+
+		// when
+		WebTestClient.ResponseSpec response = credit("CUSTOMER_2", new CreditAmount(CASH, money(1), "TX_5"));
+
+		// then - refused with 429 and told when to retry, other customers are served
+		response.expectStatus().isEqualTo(HttpStatus.TOO_MANY_REQUESTS)
+				.expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+		credit("CUSTOMER_3", new CreditAmount(CASH, money(1), "TX_1")).expectStatus().isOk();
+	}
+
+	@Test
+	public void testFullShardRefused() throws Exception {
+		// given - the shard of the customer is busy and its mailbox full
+		CountDownLatch busy = new CountDownLatch(1);
+		try {
+			while (true) {
+				accountExecutorService.submit("CUSTOMER_4", () -> {
+					busy.await();
+					return null;
+				});
+			}
+		} catch (OverloadError e) {
+			// full
+		}
+
+		try {
+			// when
+			WebTestClient.ResponseSpec response = credit("CUSTOMER_4", new CreditAmount(CASH, money(1), "TX_1"));
+
+			// then - refused with 503 and told when to retry
+			response.expectStatus().isEqualTo(HttpStatus.SERVICE_UNAVAILABLE)
+					.expectHeader().valueEquals(HttpHeaders.RETRY_AFTER, "1");
+		} finally {
+			busy.countDown();
+		}
+	}
+
+	private WebTestClient.ResponseSpec credit(String customerId, CreditAmount creditAmount) {
+		return webTestClient.post().uri("/customer/" + customerId + "/credit").syncBody(creditAmount).exchange();
+	}
+
+	private WebTestClient.ResponseSpec debit(String customerId, DebitAmount debitAmount) {
+		return webTestClient.post().uri("/customer/" + customerId + "/debit").syncBody(debitAmount).exchange();
+	}
+
+	private static Money money(long amount) {
+		return new Money(BigDecimal.valueOf(amount), USD.toString());
+	}
+}
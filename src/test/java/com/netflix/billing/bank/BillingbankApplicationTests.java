@@ -1,34 +1,68 @@
 package com.netflix.billing.bank;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.netflix.billing.bank.binary.BinaryListener;
+import com.netflix.billing.bank.binary.BinaryProtocol;
 import com.netflix.billing.bank.controller.BankController;
 import com.netflix.billing.bank.controller.wire.account.AccountExecutorService;
 import com.netflix.billing.bank.controller.wire.account.AccountManager;
 import com.netflix.billing.bank.controller.wire.account.CustomerBalance;
+import com.netflix.billing.bank.controller.wire.account.HistoryOrder;
+import com.netflix.billing.bank.controller.wire.account.LedgerJson;
 import com.netflix.billing.bank.controller.wire.account.Money;
+import com.netflix.billing.bank.controller.wire.batch.BatchOperation;
+import com.netflix.billing.bank.controller.wire.batch.BatchResult;
 import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.credit.CreditLineItem;
 import com.netflix.billing.bank.controller.wire.credit.CreditType;
 import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
 import com.netflix.billing.bank.controller.wire.debit.DebitHistory;
+import com.netflix.billing.bank.controller.wire.debit.DebitHistoryPage;
+import com.netflix.billing.bank.controller.wire.debit.DebitLineItem;
+import com.netflix.billing.bank.model.AccountState;
 import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import java.io.DataInputStream;
 import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.batch.OperationOutcome.*;
 import static com.netflix.billing.bank.controller.wire.credit.CreditType.*;
 import static junit.framework.TestCase.fail;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
+@AutoConfigureMockMvc
 public class BillingbankApplicationTests {
 
 	@Autowired
@@ -40,6 +74,12 @@ public class BillingbankApplicationTests {
 	@Autowired
 	public AccountExecutorService accountExecutorService;
 
+	@Autowired
+	public MockMvc mockMvc;
+
+	@Autowired
+	public ObjectMapper objectMapper;
+
 	@After
 	public void afterTest() {
 		accountManager.clear();
@@ -53,7 +93,7 @@ public class BillingbankApplicationTests {
 		String customer1 = "CUSTOMER_1";
 		BigDecimal amount = BigDecimal.TEN;
 		// when
-		CustomerBalance balance = bankController.postCredit(customer1, null);
+		CustomerBalance balance = await(bankController.postCredit(customer1, null));
 		fail("Test should have thrown invalid input error");
 	}
 
@@ -63,8 +103,8 @@ public class BillingbankApplicationTests {
 		String customer1 = "CUSTOMER_1";
 		BigDecimal amount = BigDecimal.TEN;
 		// when
-		CustomerBalance balance = bankController
-				.postCredit(customer1, new CreditAmount(null, null, null));
+		CustomerBalance balance = await(bankController
+				.postCredit(customer1, new CreditAmount(null, null, null)));
 		fail("Test should have thrown invalid input error");
 	}
 
@@ -73,7 +113,7 @@ public class BillingbankApplicationTests {
 		// given
 		String customer1 = "CUSTOMER_1";
 		// when
-		CustomerBalance balance = bankController.debit(customer1, null);
+		CustomerBalance balance = await(bankController.debit(customer1, null));
 		fail("Test should have thrown invalid input error");
 	}
 
@@ -82,21 +122,21 @@ public class BillingbankApplicationTests {
 		// given
 		String customer1 = "CUSTOMER_1";
 		// when
-		CustomerBalance balance = bankController.debit(customer1, new DebitAmount("", null));
+		CustomerBalance balance = await(bankController.debit(customer1, new DebitAmount("", null)));
 		fail("Test should have thrown invalid input error");
 	}
 
 	@Test(expected = Error.class)
 	public void testNullInputsGetBalance() {
 		// when
-		CustomerBalance balance = bankController.getBalance(null);
+		CustomerBalance balance = await(bankController.getBalance(null));
 		fail("Test should have thrown invalid input error");
 	}
 
 	@Test(expected = Error.class)
 	public void testInvalidInputsGetBalance() {
 		// when
-		CustomerBalance balance = bankController.getBalance("");
+		CustomerBalance balance = await(bankController.getBalance(""));
 		fail("Test should have thrown invalid input error");
 	}
 
@@ -156,7 +196,7 @@ public class BillingbankApplicationTests {
 
 		// when
 		try {
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -231,9 +271,9 @@ public class BillingbankApplicationTests {
 
 		// when
 		try {
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 			// dedupe debit
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -247,9 +287,9 @@ public class BillingbankApplicationTests {
 		// dedupe debit request
 		// when
 		try {
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 			// dedupe debit
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -262,7 +302,7 @@ public class BillingbankApplicationTests {
 
 		// when - use same invoiceId for customer2
 		try {
-			balance = bankController.debit(customer2, debitAmount);
+			balance = await(bankController.debit(customer2, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -300,7 +340,7 @@ public class BillingbankApplicationTests {
 
 		// when
 		try {
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -337,7 +377,7 @@ public class BillingbankApplicationTests {
 
 		// when
 		try {
-			balance = bankController.debit(customer1, debitAmount);
+			balance = await(bankController.debit(customer1, debitAmount));
 		} catch (Exception e) {
 			fail("Error performing debit operation.");
 		}
@@ -356,23 +396,23 @@ public class BillingbankApplicationTests {
 			return postCredits(3, 4, 5, customer1, creditAmountValue); // 120$ credit
 		};
 		Callable<CustomerBalance> postDebitCustomer1_1 = () -> {
-			return bankController.debit(customer1,
-					new DebitAmount(invoice1, new Money(BigDecimal.valueOf(35), USD.toString())));
+			return await(bankController.debit(customer1,
+					new DebitAmount(invoice1, new Money(BigDecimal.valueOf(35), USD.toString()))));
 		};
 		Callable<CustomerBalance> postDebitCustomer1_2 = () -> {
-			return bankController.debit(customer1,
-					new DebitAmount(invoice2, new Money(BigDecimal.valueOf(25), USD.toString()))); // total 60$ debtit
+			return await(bankController.debit(customer1,
+					new DebitAmount(invoice2, new Money(BigDecimal.valueOf(25), USD.toString())))); // total 60$ debtit
 		};
 		Callable<CustomerBalance> postCreditCustomer2 = () -> {
 			return postCredits(3, 4, 5, customer2, creditAmountValue); // 120$ credit
 		};
 		Callable<CustomerBalance> postDebitCustomer2_1 = () -> {
-			return bankController.debit(customer2,
-					new DebitAmount(invoice3, new Money(BigDecimal.valueOf(35), USD.toString())));
+			return await(bankController.debit(customer2,
+					new DebitAmount(invoice3, new Money(BigDecimal.valueOf(35), USD.toString()))));
 		};
 		Callable<CustomerBalance> postDebitCustomer2_2 = () -> {
-			return bankController.debit(customer2,
-					new DebitAmount(invoice4, new Money(BigDecimal.valueOf(45), USD.toString()))); // total 80 $ debit
+			return await(bankController.debit(customer2,
+					new DebitAmount(invoice4, new Money(BigDecimal.valueOf(45), USD.toString())))); // total 80 $ debit
 		};
 
 		// execute postCredit and postDebit in multiThreaded mode
@@ -398,27 +438,428 @@ public class BillingbankApplicationTests {
 		assert bankController.debitHistory(customer2).getDebits().size() == 9;
 	}
 
+	@Test
+	public void testFractionalDebitAcrossCredits() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(GIFTCARD, new Money(new BigDecimal("0.10"), USD.toString()), "TX_1")));
+		await(bankController.postCredit(customer1,
+				new CreditAmount(GIFTCARD, new Money(new BigDecimal("0.20"), USD.toString()), "TX_2")));
+
+		// when
+		CustomerBalance balance = await(bankController.debit(customer1,
+				new DebitAmount("INV_1", new Money(new BigDecimal("0.15"), USD.toString()))));
+
+		// then - no binary floating point drift, the credit history keeps the amounts as applied
+		assert balance.getBalanceAmounts().get(GIFTCARD).size() == 1;
+		assert balance.getBalanceAmounts().get(GIFTCARD).get(0).getAmount().compareTo(new BigDecimal("0.15")) == 0;
+		assert accountManager.getCreditHistory(customer1).getCreditHistory().get(1).getMoney().getAmount()
+				.compareTo(new BigDecimal("0.20")) == 0;
+	}
+
+	@Test
+	public void testDebitAcrossManySmallCredits() {
+		// given - enough credits to span several queue chunks
+		String customer1 = "CUSTOMER_1";
+		for (int i = 0; i < 200; i++) {
+			await(bankController.postCredit(customer1,
+					new CreditAmount(PROMOTION, new Money(BigDecimal.ONE, USD.toString()), "TX_" + i)));
+		}
+
+		// when
+		await(bankController.debit(customer1,
+				new DebitAmount("INV_1", new Money(new BigDecimal("150.5"), USD.toString()))));
+		CustomerBalance balance = await(bankController.debit(customer1,
+				new DebitAmount("INV_2", new Money(BigDecimal.TEN, USD.toString()))));
+
+		// then - oldest credits consumed first
+		assert balance.getBalanceAmounts().get(PROMOTION).size() == 40;
+		assert balance.getBalanceAmounts().get(PROMOTION).get(0).getAmount().compareTo(new BigDecimal("0.5")) == 0;
+		assert accountManager.getDebitHistory(customer1).getDebits().get(150).getTransactionId().equals("TX_150");
+	}
+
+	@Test
+	public void testBatch() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		List<BatchOperation> operations = Arrays.asList(
+				BatchOperation.credit(new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")),
+				BatchOperation.credit(new CreditAmount(GIFTCARD, new Money(BigDecimal.TEN, USD.toString()), "TX_1")),
+				BatchOperation.credit(new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")),
+				BatchOperation.debit(new DebitAmount("INV_1", new Money(new BigDecimal(15), USD.toString()))),
+				BatchOperation.debit(new DebitAmount("INV_2", new Money(BigDecimal.TEN, USD.toString()))),
+				BatchOperation.debit(new DebitAmount("INV_3", new Money(BigDecimal.ONE, USD.toString()))));
+
+		// when
+		BatchResult result = await(bankController.batch(customer1, operations));
+
+		// then - gift card consumed before cash, a refused debit does not stop the batch
+		assert result.getOutcomes().equals(Arrays.asList(APPLIED, APPLIED, DUPLICATE, APPLIED,
+				INSUFFICIENT_BALANCE, APPLIED));
+		assert result.getBalance().getBalanceAmounts().get(GIFTCARD).isEmpty();
+		assert result.getBalance().getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(new BigDecimal(4)) == 0;
+		assert accountManager.getDebitHistory(customer1).getDebits().size() == 3;
+	}
+
+	@Test(expected = Error.class)
+	public void testInvalidBatch() {
+		bankController.batch("CUSTOMER_1", Arrays.asList(new BatchOperation()));
+	}
+
+	@Test
+	public void testDebitHistoryPages() {
+		// given - more debits than fit a history chunk
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.valueOf(1000), USD.toString()), "TX_1")));
+		for (int i = 0; i < 300; i++) {
+			await(bankController.debit(customer1,
+					new DebitAmount("INV_" + i, new Money(BigDecimal.ONE, USD.toString()))));
+		}
+
+		// when
+		DebitHistoryPage first = await(
+				bankController.debitHistory(customer1, 120, null, HistoryOrder.NEWEST_FIRST, null));
+		DebitHistoryPage second = await(bankController.debitHistory(customer1, 120, first.getNextCursor(),
+				HistoryOrder.NEWEST_FIRST, null));
+		DebitHistoryPage last = await(bankController.debitHistory(customer1, 120, second.getNextCursor(),
+				HistoryOrder.NEWEST_FIRST, null));
+
+		// then
+		assert first.getDebits().get(0).getInvoiceId().equals("INV_299");
+		assert second.getDebits().get(0).getInvoiceId().equals("INV_179");
+		assert last.getDebits().size() == 60;
+		assert last.getDebits().get(59).getInvoiceId().equals("INV_0");
+		assert last.getNextCursor() == null;
+		DebitHistoryPage oldest = await(
+				bankController.debitHistory(customer1, 250, null, HistoryOrder.OLDEST_FIRST, null));
+		assert await(bankController.debitHistory(customer1, 250, oldest.getNextCursor(), HistoryOrder.OLDEST_FIRST,
+				null)).getDebits().get(0).getInvoiceId().equals("INV_250");
+	}
+
+	@Test(expected = Error.class)
+	public void testInvalidDebitHistoryCursor() {
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")));
+		await(bankController.debitHistory(customer1, 10, "not a cursor", HistoryOrder.OLDEST_FIRST, null));
+	}
+
+	@Test(expected = Error.class)
+	public void testTooPreciseCredit() {
+		await(bankController.postCredit("CUSTOMER_1",
+				new CreditAmount(GIFTCARD, new Money(new BigDecimal("0.00001"), USD.toString()), "TX_1")));
+	}
+
+	@Test
+	public void testUnknownCurrencyRefused() {
+		// given
+		CreditAmount credit = new CreditAmount(CASH, new Money(BigDecimal.TEN, "XYZ"), "TX_1");
+		DebitAmount debit = new DebitAmount("INV_1", new Money(BigDecimal.ONE, null));
+
+		// then - refused before anything reaches the ledger, batches included
+		assert !bankController.validator.validateCredit(credit);
+		assert !bankController.validator.validateDebit(debit);
+		assert !bankController.validator.validateOperation(BatchOperation.credit(credit));
+		assert !bankController.validator.validateCredit(new CreditAmount(CASH, new Money(BigDecimal.TEN, "usd"), "TX_1"));
+		assert bankController.validator.validateCredit(
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1"));
+		assert bankController.validator.validateDebit(new DebitAmount("INV_1", new Money(BigDecimal.ONE, "EUR")));
+	}
+
+	@Test
+	public void testAsyncCreditRequest() throws Exception {
+		// given
+		String customer1 = "CUSTOMER_1";
+		String credit = "{\"transactionId\":\"TX_1\",\"creditType\":\"CASH\"," +
+				"\"money\":{\"amount\":10,\"currency\":\"USD\"}}";
+
+		// when - the servlet thread is released before the ledger answers
+		MvcResult result = mockMvc.perform(post("/customer/" + customer1 + "/credit")
+				.contentType(MediaType.APPLICATION_JSON).content(credit))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+
+		// then
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.balanceAmounts.CASH[0].amount").value(10));
+	}
+
+	@Test
+	public void testResponsesMatchJackson() throws Exception {
+		// given - a quote in an id, a non-ASCII invoiceId, fractional amounts and a type left without credits
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(new BigDecimal("5.5"), USD.toString()), "TX_\"1")));
+		await(bankController.postCredit(customer1,
+				new CreditAmount(GIFTCARD, new Money(BigDecimal.valueOf(100), USD.toString()), "TX_2")));
+		await(bankController.debit(customer1,
+				new DebitAmount("INV_\u00e91", new Money(BigDecimal.valueOf(102), USD.toString()))));
+
+		// when
+		String balance = mockMvc.perform(asyncDispatch(mockMvc.perform(get("/customer/" + customer1 + "/balance"))
+				.andReturn())).andReturn().getResponse().getContentAsString();
+		String again = mockMvc.perform(asyncDispatch(mockMvc.perform(get("/customer/" + customer1 + "/balance"))
+				.andReturn())).andReturn().getResponse().getContentAsString();
+		String history = mockMvc.perform(asyncDispatch(mockMvc.perform(get("/customer/" + customer1 + "/history?limit=1"))
+				.andReturn())).andReturn().getResponse().getContentAsString();
+
+		// then - same JSON as the bean serializers, the balance encoded once
+		CustomerBalance published = accountManager.getBalance(customer1);
+		assert balance.equals(objectMapper.writeValueAsString(published));
+		assert again.equals(balance);
+		assert LedgerJson.balance(published, objectMapper.getFactory())
+				== LedgerJson.balance(accountManager.getBalance(customer1), objectMapper.getFactory());
+		assert history.equals(objectMapper.writeValueAsString(
+				await(bankController.debitHistory(customer1, 1, null, HistoryOrder.OLDEST_FIRST, null))));
+	}
+
+	@Test
+	public void testPublishedBalanceNotChanged() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		Money money = new Money(BigDecimal.TEN, USD.toString());
+		CustomerBalance published = await(bankController.postCredit(customer1, new CreditAmount(CASH, money, "TX_1")));
+
+		// when - the caller reuses its Money, and tries to change the balance it was given
+		money.setAmount(BigDecimal.ONE);
+		boolean refused = false;
+		try {
+			published.setVersion(0);
+		} catch (Error e) {
+			refused = true;
+		}
+
+		// then
+		assert refused;
+		assert published.getVersion() == 1;
+		assert accountManager.getBalance(customer1).getBalanceAmounts().get(CASH).get(0).getAmount()
+				.compareTo(BigDecimal.TEN) == 0;
+	}
+
+	@Test(timeout = 30000)
+	public void testBinaryProtocolPipelining() throws Exception {
+		// given - a listener letting a connection have 8 requests unanswered
+		BinaryListener listener = new BinaryListener(accountManager, bankController.validator, null, 0, 8);
+		String customer1 = "CUSTOMER_1";
+		List<ByteBuffer> frames = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			frames.add(BinaryProtocol.credit(i, customer1,
+					new CreditAmount(CASH, new Money(BigDecimal.ONE, USD.toString()), "TX_" + i)));
+		}
+		frames.add(BinaryProtocol.batch(200, customer1, Arrays.asList(
+				BatchOperation.debit(new DebitAmount("INV_1", new Money(BigDecimal.valueOf(50), USD.toString()))),
+				BatchOperation.credit(new CreditAmount(CASH, new Money(BigDecimal.ONE, USD.toString()), "TX_0")))));
+		frames.add(BinaryProtocol.credit(201, customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.valueOf(-1), USD.toString()), "TX_NEGATIVE")));
+		frames.add(BinaryProtocol.balance(202, customer1));
+
+		// when - all sent at once on one connection, before any response is read
+		Map<Long, ByteBuffer> responses = new HashMap<>();
+		try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", listener.getPort()))) {
+			channel.write(frames.toArray(new ByteBuffer[0]));
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			while (responses.size() < frames.size()) {
+				byte[] frame = new byte[in.readInt()];
+				in.readFully(frame);
+				ByteBuffer response = ByteBuffer.wrap(frame);
+				responses.put(response.getLong(), response);
+			}
+		} finally {
+			listener.shutdown();
+		}
+
+		// then - every request answered once; the batch queued behind the credits, a balance read does not
+		for (long i = 0; i < 200; i++) {
+			assert responses.get(i).get() == BinaryProtocol.OK;
+		}
+		ByteBuffer batch = responses.get(200L);
+		assert batch.get() == BinaryProtocol.OK;
+		BatchResult result = BinaryProtocol.readBatchResult(batch);
+		assert result.getOutcomes().equals(Arrays.asList(APPLIED, DUPLICATE));
+		CustomerBalance published = accountManager.getBalance(customer1);
+		assert result.getBalance().getVersion() == published.getVersion();
+		assert result.getBalance().getBalanceAmounts().equals(published.getBalanceAmounts());
+		assert published.getBalanceAmounts().get(CASH).stream().map(Money::getAmount).reduce(BigDecimal.ZERO,
+				BigDecimal::add).compareTo(BigDecimal.valueOf(150)) == 0;
+		ByteBuffer invalid = responses.get(201L);
+		assert invalid.get() == BinaryProtocol.ERROR;
+		assert "Invalid input parameters.".equals(BinaryProtocol.readString(invalid));
+		ByteBuffer balance = responses.get(202L);
+		assert balance.get() == BinaryProtocol.OK;
+		assert BinaryProtocol.readBalance(balance).getVersion() <= published.getVersion();
+	}
+
+	@Test
+	public void testStreamCreditHistory() throws Exception {
+		// given - more credits than are serialized in one batch
+		String customer1 = "CUSTOMER_1";
+		for (int i = 0; i < 300; i++) {
+			await(bankController.postCredit(customer1,
+					new CreditAmount(CASH, new Money(BigDecimal.ONE, USD.toString()), "TX_" + i)));
+		}
+		await(bankController.debit(customer1, new DebitAmount("INV_1", new Money(BigDecimal.ONE, USD.toString()))));
+
+		// when
+		MvcResult result = mockMvc.perform(get("/customer/" + customer1 + "/credits"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		String body = mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType("application/x-ndjson"))
+				.andReturn().getResponse().getContentAsString();
+
+		// then - one credit per line, oldest first
+		String[] lines = body.split("\n");
+		assert lines.length == 300;
+		assert lines[0].contains("\"transactionId\":\"TX_0\"") && lines[0].contains("\"invoiceIdList\":[\"INV_1\"]");
+		assert lines[299].contains("\"transactionId\":\"TX_299\"");
+	}
+
+	@Test
+	public void testPrometheusMetrics() throws Exception {
+		// given
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")));
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")));
+		await(bankController.debit(customer1, new DebitAmount("INV_1", new Money(BigDecimal.ONE, USD.toString()))));
+
+		// when
+		String metrics = mockMvc.perform(get("/actuator/prometheus"))
+				.andExpect(status().isOk())
+				.andReturn().getResponse().getContentAsString();
+
+		// then
+		assert metrics.contains("ledger_dedupe_hits_total{operation=\"credit\",}");
+		assert metrics.contains("ledger_debit_credits_consumed_count");
+		assert metrics.contains("ledger_debit_consume_seconds_bucket");
+		assert metrics.contains("ledger_executor_queue_depth");
+		assert metrics.contains("ledger_executor_active_threads");
+	}
+
+	// Utility method to wait for an asynchronous controller response
+	@Test
+	public void testReadersSeeWholeOperations() throws Exception {
+		// given - writers posting credits and debits spanning several credits to one customer
+		String customer1 = "CUSTOMER_1";
+		List<Future<?>> writers = new ArrayList<>();
+		for (int w = 0; w < 4; w++) {
+			String prefix = "W" + w + "_";
+			writers.add(executorService.submit(() -> {
+				for (int i = 0; i < 500; i++) {
+					await(bankController.postCredit(customer1, new CreditAmount(CreditType.values()[i % 3],
+							new Money(new BigDecimal("1.25"), USD.toString()), prefix + "TX_" + i)));
+					if (i % 2 == 1) {
+						await(bankController.debit(customer1,
+								new DebitAmount(prefix + "INV_" + i, new Money(new BigDecimal("2.4"), USD.toString()))));
+					}
+				}
+			}));
+		}
+
+		// when - reading concurrently, once the first credit created the account
+		while (accountManager.getVersion(customer1) == 0L) {
+			Thread.yield();
+		}
+		long lastVersion = -1L;
+		int reads = 0;
+		while (reads == 0 || !writers.stream().allMatch(Future::isDone)) {
+			AccountState state = accountManager.getAccountState(customer1);
+			List<CreditLineItem> credits = accountManager.getCreditHistory(customer1).getCreditHistory();
+			List<DebitLineItem> debits = accountManager.getDebitHistory(customer1).getDebits();
+
+			// then - the balance matches the histories up to the state, with every debit applied whole
+			BigDecimal expected = BigDecimal.ZERO;
+			for (int i = 0; i < state.getCredits(); i++) {
+				expected = expected.add(credits.get(i).getMoney().getAmount());
+			}
+			Set<String> invoiceIds = new HashSet<>();
+			for (int i = 0; i < state.getDebits(); i++) {
+				if (invoiceIds.add(debits.get(i).getInvoiceId())) {
+					expected = expected.subtract(debits.get(i).getMoney().getAmount());
+				}
+			}
+			BigDecimal balance = BigDecimal.ZERO;
+			for (List<Money> amounts : state.getBalanceView().getBalance().getBalanceAmounts().values()) {
+				for (Money money : amounts) {
+					balance = balance.add(money.getAmount());
+				}
+			}
+			assert balance.compareTo(expected) == 0;
+			assert state.getVersion() >= lastVersion;
+			lastVersion = state.getVersion();
+			reads++;
+		}
+		for (Future<?> writer : writers) {
+			writer.get();
+		}
+		AccountState state = accountManager.getAccountState(customer1);
+		assert state.getCredits() == 2000 && state.getDebits() >= 1000;
+		assert state.getVersion() == 3000;
+	}
+
+	@Test
+	public void testAccountHandOver() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")));
+		await(bankController.debit(customer1, new DebitAmount("INV_1", new Money(BigDecimal.ONE, USD.toString()))));
+
+		// when - detached by the old owner and attached by the new one
+		byte[] image = accountManager.detachAccount(customer1);
+		assert !accountManager.getCustomerIds().contains(customer1);
+		accountManager.attachAccount(customer1, image);
+
+		// then - the ledger and the dedupe state moved along
+		CustomerBalance balance = await(bankController.postCredit(customer1,
+				new CreditAmount(CASH, new Money(BigDecimal.TEN, USD.toString()), "TX_1")));
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(new BigDecimal(9)) == 0;
+		assert accountManager.getDebitHistory(customer1).getDebits().size() == 1;
+		try {
+			accountManager.attachAccount(customer1, image);
+			fail("Account should not be attached twice");
+		} catch (Error e) {
+			assert e.getMessage().equals("Account already exists");
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> response) {
+		try {
+			return response.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw e;
+		}
+	}
+
 	// Utility method to post credits
 	private CustomerBalance postCredits(int numGiftcard, int numPromo, int numCash, String customerId, BigDecimal amount) {
 		CustomerBalance balance = null;
 		// GIFTCARD
 		for (int i = 0; i < numGiftcard; i++) {
-			balance = bankController.postCredit(customerId,
-					new CreditAmount(GIFTCARD, new Money(amount, USD.toString()), "TX_"+i));
+			balance = await(bankController.postCredit(customerId,
+					new CreditAmount(GIFTCARD, new Money(amount, USD.toString()), "TX_"+i)));
 			assert balance != null;
 			assert balance.getBalanceAmounts().get(GIFTCARD).get(i).getAmount().equals(amount);
 		}
 		// PROMOTION
 		for (int i = 0; i < numPromo; i++) {
-			balance = bankController.postCredit(customerId,
-					new CreditAmount(PROMOTION, new Money(amount, USD.toString()), "TX_"+i));
+			balance = await(bankController.postCredit(customerId,
+					new CreditAmount(PROMOTION, new Money(amount, USD.toString()), "TX_"+i)));
 			assert balance != null;
 			assert balance.getBalanceAmounts().get(PROMOTION).get(i).getAmount().equals(amount);
 		}
 		// CASH
 		for (int i = 0; i < numCash; i++) {
-			balance = bankController.postCredit(customerId,
-					new CreditAmount(CASH, new Money(amount, USD.toString()), "TX_"+i));
+			balance = await(bankController.postCredit(customerId,
+					new CreditAmount(CASH, new Money(amount, USD.toString()), "TX_"+i)));
 			assert balance != null;
 			assert balance.getBalanceAmounts().get(CASH).get(i).getAmount().equals(amount);
 		}
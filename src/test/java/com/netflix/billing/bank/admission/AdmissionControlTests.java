@@ -0,0 +1,77 @@
+package com.netflix.billing.bank.admission;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdmissionControlTests {
+
+	@Test
+	public void testRateLimitPerCustomer() {
+		// given - a burst of 5, refilled at one a second
+		AdmissionControl admission = new AdmissionControl(new AdaptiveConcurrencyLimit(100, 10, 100),
+				new CustomerRateLimiter(1, 5));
+
+		// when
+		for (int i = 0; i < 5; i++) {
+			admission.acquire("CUSTOMER_1", 1).release();
+		}
+
+		// then - the customer is refused, others are not
+		try {
+			admission.acquire("CUSTOMER_1", 1);
+			assert false : "Customer should be rate limited";
+		} catch (OverloadError e) {
+			assert e.getReason() == OverloadError.Reason.RATE_LIMITED && e.getRetryAfterSeconds() == 1;
+		}
+		admission.acquire("CUSTOMER_2", 5).release();
+	}
+
+	@Test
+	public void testOverloadKeepsRatePermits() {
+		// given - a burst of 2, and the only concurrency slot taken
+		AdmissionControl admission = new AdmissionControl(new AdaptiveConcurrencyLimit(1, 1, 1),
+				new CustomerRateLimiter(1, 2));
+		AdmissionControl.Permit busy = admission.acquire("CUSTOMER_2", 1);
+
+		// when - the customer is refused for overload over and over
+		for (int i = 0; i < 5; i++) {
+			try {
+				admission.acquire("CUSTOMER_1", 1);
+				assert false : "Service should be overloaded";
+			} catch (OverloadError e) {
+				assert e.getReason() == OverloadError.Reason.OVERLOADED;
+			}
+		}
+		busy.release();
+
+		// then - its burst is untouched
+		admission.acquire("CUSTOMER_1", 1).release();
+		admission.acquire("CUSTOMER_1", 1).release();
+	}
+
+	@Test
+	public void testConcurrencyLimitFollowsLatency() {
+		// given
+		AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(20, 10, 100);
+		for (int i = 0; i < 20; i++) {
+			assert limit.tryAcquire();
+		}
+		assert !limit.tryAcquire();
+
+		// when - operations complete at a steady latency, the limit grows
+		for (int i = 0; i < 100; i++) {
+			limit.release(TimeUnit.MILLISECONDS.toNanos(1));
+			assert limit.tryAcquire();
+		}
+		int grown = limit.getLimit();
+		assert grown > 20;
+
+		// then - once they take ten times as long, it shrinks
+		for (int i = 0; i < 100; i++) {
+			limit.release(TimeUnit.MILLISECONDS.toNanos(10));
+			limit.tryAcquire();
+		}
+		assert limit.getLimit() < grown / 2;
+	}
+}
@@ -0,0 +1,53 @@
+package com.netflix.billing.bank.cluster;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class HashRingTests {
+
+	@Test
+	public void testBalancedAndOrderIndependent() {
+		// given
+		HashRing ring = new HashRing(Arrays.asList("localhost:8080", "localhost:8081", "localhost:8082"), 128);
+		HashRing reordered = new HashRing(Arrays.asList("localhost:8082", "localhost:8080", "localhost:8081"), 128);
+
+		// when
+		Map<String, Integer> customers = new HashMap<>();
+		for (int i = 0; i < 30000; i++) {
+			String owner = ring.ownerOf("CUSTOMER_" + i);
+			assert owner.equals(reordered.ownerOf("CUSTOMER_" + i));
+			customers.merge(owner, 1, Integer::sum);
+		}
+
+		// then - every node owns about a third of the customers
+		assert customers.size() == 3;
+		for (int owned : customers.values()) {
+			assert owned > 8000 && owned < 12000;
+		}
+	}
+
+	@Test
+	public void testJoinOnlyMovesCustomersToNewNode() {
+		// given
+		HashRing ring = new HashRing(Arrays.asList("localhost:8080", "localhost:8081", "localhost:8082"), 128);
+		HashRing joined = new HashRing(
+				Arrays.asList("localhost:8080", "localhost:8081", "localhost:8082", "localhost:8083"), 128);
+
+		// when
+		int moved = 0;
+		for (int i = 0; i < 30000; i++) {
+			String before = ring.ownerOf("CUSTOMER_" + i);
+			String after = joined.ownerOf("CUSTOMER_" + i);
+			if (!before.equals(after)) {
+				assert after.equals("localhost:8083");
+				moved++;
+			}
+		}
+
+		// then - about a quarter of the customers moved
+		assert moved > 6000 && moved < 9000;
+	}
+}
@@ -0,0 +1,99 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.admission.OverloadError;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class AccountExecutorServiceTests {
+
+	private AccountExecutorService accountExecutorService = new AccountExecutorService(4, 4);
+
+	@After
+	public void afterTest() {
+		accountExecutorService.shutdown();
+	}
+
+	@Test
+	public void testSameCustomerSameShard() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		// then
+		int shard = accountExecutorService.shardFor(customer1);
+		assert shard >= 0 && shard < accountExecutorService.getNumShards();
+		assert accountExecutorService.shardFor(new String(customer1)) == shard;
+	}
+
+	@Test
+	public void testSingleWriterPerCustomer() throws InterruptedException {
+		// given - an unsynchronized list only the owning shard ever touches
+		String customer1 = "CUSTOMER_1";
+		List<Integer> applied = new ArrayList<>();
+		int numTasks = 10000;
+		ExecutorService callers = Executors.newFixedThreadPool(8);
+		CountDownLatch done = new CountDownLatch(numTasks);
+
+		// when
+		for (int i = 0; i < numTasks; i++) {
+			int value = i;
+			callers.submit(() -> {
+				accountExecutorService.execute(customer1, () -> applied.add(value));
+				done.countDown();
+			});
+		}
+
+		// then
+		assert done.await(30, TimeUnit.SECONDS);
+		assert accountExecutorService.execute(customer1, applied::size) == numTasks;
+		callers.shutdown();
+	}
+
+	@Test
+	public void testNestedExecuteOnOwningShard() {
+		// given
+		String customer1 = "CUSTOMER_1";
+		// when - a task re-entering its own shard runs inline instead of deadlocking
+		Integer result = accountExecutorService.execute(customer1,
+				() -> accountExecutorService.execute(customer1, () -> 42));
+		// then
+		assert result == 42;
+	}
+
+	@Test(expected = Error.class)
+	public void testErrorPropagates() {
+		accountExecutorService.execute("CUSTOMER_1", () -> {
+			throw new Error("Insufficient balance");
+		});
+	}
+
+	@Test
+	public void testFullMailboxRefusesTasks() throws InterruptedException {
+		// given - a shard held busy with a mailbox of two
+		AccountExecutorService bounded = new AccountExecutorService(1, 1, false, 2);
+		CountDownLatch release = new CountDownLatch(1);
+		bounded.submit("CUSTOMER_1", () -> release.await(10, TimeUnit.SECONDS));
+		bounded.submit("CUSTOMER_1", () -> true);
+		CompletableFuture<Boolean> queued = bounded.submit("CUSTOMER_1", () -> true);
+
+		// when
+		try {
+			bounded.submit("CUSTOMER_1", () -> true);
+			assert false : "Full mailbox should refuse the task";
+		} catch (OverloadError e) {
+			// then
+			assert e.getReason() == OverloadError.Reason.OVERLOADED && e.getRetryAfterSeconds() > 0;
+		}
+		// the shard catches up once released
+		release.countDown();
+		assert queued.join();
+		assert bounded.execute("CUSTOMER_1", () -> true);
+		bounded.shutdown();
+	}
+}
@@ -0,0 +1,487 @@
+package com.netflix.billing.bank.controller.wire.account;
+
+import com.netflix.billing.bank.controller.wire.credit.CreditAmount;
+import com.netflix.billing.bank.controller.wire.credit.CreditLineItem;
+import com.netflix.billing.bank.controller.wire.debit.DebitAmount;
+import com.netflix.billing.bank.controller.wire.debit.DebitLineItem;
+import com.netflix.billing.bank.journal.FsyncPolicy;
+import com.netflix.billing.bank.journal.Journal;
+import com.netflix.billing.bank.journal.JournalRecord;
+import com.netflix.billing.bank.journal.SnapshotStore;
+import com.netflix.billing.bank.model.OffHeapArena;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.netflix.billing.bank.controller.wire.account.Currency.USD;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.CASH;
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.GIFTCARD;
+
+public class AccountManagerRecoveryTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private AccountExecutorService accountExecutorService = new AccountExecutorService(2, 2);
+
+	@After
+	public void afterTest() {
+		accountExecutorService.shutdown();
+	}
+
+	@Test
+	public void testRecoverFromJournal() throws Exception {
+		// given
+		File directory = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory);
+		accountManager.credit("CUSTOMER_1", new CreditAmount(GIFTCARD, money(10), "TX_1"));
+		accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_1"));
+		accountManager.credit("CUSTOMER_2", new CreditAmount(CASH, money(5), "TX_1"));
+		accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)));
+		accountManager.journal.close();
+
+		// when - restarted
+		accountManager = newAccountManager(directory);
+
+		// then
+		CustomerBalance balance = accountManager.getBalance("CUSTOMER_1");
+		assert balance.getBalanceAmounts().get(GIFTCARD).isEmpty();
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(BigDecimal.valueOf(15)) == 0;
+		assert accountManager.getDebitHistory("CUSTOMER_1").getDebits().size() == 2;
+		assert accountManager.getBalance("CUSTOMER_2").getBalanceAmounts().get(CASH).size() == 1;
+
+		// processed transactions and invoices survived the restart
+		balance = accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_1"));
+		assert balance.getBalanceAmounts().get(CASH).size() == 1;
+		balance = accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)));
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(BigDecimal.valueOf(15)) == 0;
+		accountManager.journal.close();
+	}
+
+	@Test
+	public void testStopsAfterFailedJournalAppend() throws Exception {
+		// given
+		File directory = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory);
+		accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(10), "TX_1"));
+
+		// when - the journal can no longer be appended to
+		accountManager.journal.close();
+		try {
+			accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_2"));
+			assert false;
+		} catch (Error e) {
+			// expected
+		}
+
+		// then - the credit applied in memory is not served, a restart recovers what the journal holds
+		try {
+			accountManager.getBalance("CUSTOMER_1");
+			assert false;
+		} catch (Error e) {
+			assert e.getMessage().startsWith("Ledger stopped");
+		}
+		accountManager = newAccountManager(directory);
+		List<Money> cash = accountManager.getBalance("CUSTOMER_1").getBalanceAmounts().get(CASH);
+		assert cash.size() == 1 && cash.get(0).getAmount().compareTo(BigDecimal.TEN) == 0;
+		accountManager.journal.close();
+	}
+
+	@Test
+	public void testRecoverFromSnapshotAndJournal() throws Exception {
+		// given - small segments so the snapshot lets the journal drop some
+		File directory = folder.newFolder();
+		File snapshots = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory, snapshots, 256);
+		for (int i = 0; i < 20; i++) {
+			accountManager.credit("CUSTOMER_" + i, new CreditAmount(GIFTCARD, money(10), "TX_1"));
+		}
+		accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(4)));
+		int segments = directory.listFiles().length;
+
+		// when - snapshot, then keep writing
+		assert accountManager.snapshot() == 21;
+		assert directory.listFiles().length < segments;
+		accountManager.debit("CUSTOMER_1", new DebitAmount("INV_2", money(5)));
+		accountManager.credit("CUSTOMER_20", new CreditAmount(CASH, money(7), "TX_1"));
+		accountManager.journal.close();
+		accountManager = newAccountManager(directory, snapshots, 256);
+
+		// then
+		CustomerBalance balance = accountManager.getBalance("CUSTOMER_1");
+		assert balance.getBalanceAmounts().get(GIFTCARD).get(0).getAmount().compareTo(BigDecimal.ONE) == 0;
+		assert accountManager.getDebitHistory("CUSTOMER_1").getDebits().size() == 2;
+		assert accountManager.getCreditHistory("CUSTOMER_1").getCreditHistory().get(0).getInvoiceIdList().size() == 2;
+		assert accountManager.getBalance("CUSTOMER_19").getBalanceAmounts().get(GIFTCARD).size() == 1;
+		assert accountManager.getBalance("CUSTOMER_20").getBalanceAmounts().get(CASH).size() == 1;
+		// dedupe state came back with the snapshot
+		balance = accountManager.credit("CUSTOMER_2", new CreditAmount(GIFTCARD, money(10), "TX_1"));
+		assert balance.getBalanceAmounts().get(GIFTCARD).size() == 1;
+		accountManager.journal.close();
+	}
+
+	@Test
+	public void testHandOverJournaledOnBothNodes() throws Exception {
+		// given - an account handed from one node to another, which keeps writing to it
+		File senderDirectory = folder.newFolder();
+		File receiverDirectory = folder.newFolder();
+		AccountManager sender = newAccountManager(senderDirectory);
+		AccountManager receiver = newAccountManager(receiverDirectory);
+		sender.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_1"));
+		sender.debit("CUSTOMER_1", new DebitAmount("INV_1", money(5)));
+		receiver.attachAccount("CUSTOMER_1", sender.detachAccount("CUSTOMER_1"));
+		receiver.debit("CUSTOMER_1", new DebitAmount("INV_2", money(10)));
+		sender.journal.close();
+		receiver.journal.close();
+
+		// when - both restarted before any snapshot
+		sender = newAccountManager(senderDirectory);
+		receiver = newAccountManager(receiverDirectory);
+
+		// then - the account is only back on the node that took it, with the debits made on either node
+		assert sender.getCustomerIds().isEmpty();
+		CustomerBalance balance = receiver.getBalance("CUSTOMER_1");
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(BigDecimal.valueOf(5)) == 0;
+		assert receiver.getDebitHistory("CUSTOMER_1").getDebits().size() == 2;
+		sender.journal.close();
+		receiver.journal.close();
+	}
+
+	@Test
+	public void testReplicateFromExportAndJournal() throws Exception {
+		// given - a primary with accounts exported before some of its operations
+		AccountManager primary = newAccountManager(folder.newFolder());
+		primary.credit("CUSTOMER_1", new CreditAmount(GIFTCARD, money(10), "TX_1"));
+		primary.credit("CUSTOMER_2", new CreditAmount(CASH, money(5), "TX_1"));
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		long exportedLsn = primary.exportAccounts(new DataOutputStream(export));
+		primary.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_1"));
+		CustomerBalance expected = primary.debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)));
+		primary.credit("CUSTOMER_3", new CreditAmount(CASH, money(7), "TX_1"));
+
+		// when - a replica imports the accounts, then applies the journal after them
+		AccountManager replica = new AccountManager();
+		replica.accountExecutorService = accountExecutorService;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(export.toByteArray()));
+		int version = in.readInt();
+		assert in.readLong() == exportedLsn;
+		while (in.readBoolean()) {
+			String customerId = in.readUTF();
+			byte[] image = new byte[in.readInt()];
+			in.readFully(image);
+			replica.restoreAccount(customerId, image, version);
+		}
+		List<JournalRecord> records = primary.journal.read(exportedLsn, 100);
+		replica.applyReplicated(records);
+		// shipped twice, applied once
+		replica.applyReplicated(primary.journal.read(0, 100));
+
+		// then
+		assert records.size() == 3;
+		CustomerBalance balance = replica.getBalance("CUSTOMER_1");
+		assert balance.getVersion() == expected.getVersion();
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(BigDecimal.valueOf(15)) == 0;
+		assert replica.getDebitHistory("CUSTOMER_1").getDebits().size() == 2;
+		assert replica.getBalance("CUSTOMER_2").getBalanceAmounts().get(CASH).size() == 1;
+		assert replica.getBalance("CUSTOMER_3").getVersion() == 1;
+		primary.journal.close();
+	}
+
+	@Test
+	public void testHotAccountCreditsKeepArrivalOrder() throws Exception {
+		// given - an account that turned hot
+		File directory = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory);
+		accountManager.hotAccountCreditRate = 1;
+		accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(1), "TX_A"));
+		Thread.sleep(150);
+		accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(1), "TX_B"));
+		assert accountManager.hotAccounts.containsKey("CUSTOMER_1");
+
+		// when - credits from several threads are striped, then a debit drains them
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 100; i++) {
+					accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(1), "TX_" + thread + "_" + i));
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		CustomerBalance balance = accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(2)));
+
+		// then - every credit applied once, each thread's in the order it posted them
+		assert balance.getBalanceAmounts().get(CASH).stream().map(Money::getAmount).reduce(BigDecimal.ZERO,
+				BigDecimal::add).compareTo(BigDecimal.valueOf(400)) == 0;
+		assert accountManager.getBalance("CUSTOMER_1").getVersion() == 403;
+		int[] next = new int[threads.length];
+		for (JournalRecord record : accountManager.journal.read(2, 1000)) {
+			if (record.getType() == JournalRecord.Type.CREDIT) {
+				String[] id = record.getId().split("_");
+				assert Integer.parseInt(id[2]) == next[Integer.parseInt(id[1])]++;
+			}
+		}
+		accountManager.journal.close();
+		AccountManager recovered = newAccountManager(directory);
+		assert recovered.getBalance("CUSTOMER_1").getVersion() == 403;
+		recovered.journal.close();
+	}
+
+	@Test
+	public void testExpiredCreditsSkippedSweptAndRecovered() throws Exception {
+		// given
+		File directory = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory);
+		accountManager.expiryTickMillis = 10;
+		accountManager.credit("CUSTOMER_1", expiring(new CreditAmount(GIFTCARD, money(10), "TX_1"), 200));
+		accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(20), "TX_2"));
+		accountManager.credit("CUSTOMER_1", expiring(new CreditAmount(GIFTCARD, money(5), "TX_3"), 60_000));
+
+		// when - a debit after the first credit expired, before any sweep
+		Thread.sleep(250);
+		CustomerBalance balance = accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)));
+
+		// then - the expired credit is skipped and recorded as expired
+		assert balance.getBalanceAmounts().get(GIFTCARD).isEmpty();
+		assert balance.getBalanceAmounts().get(CASH).get(0).getAmount().compareTo(BigDecimal.valueOf(10)) == 0;
+		CreditLineItem expired = accountManager.getCreditHistory("CUSTOMER_1").getCreditHistory().get(0);
+		assert expired.getExpired().getAmount().compareTo(BigDecimal.valueOf(10)) == 0;
+		assert expired.getInvoiceIdList().isEmpty();
+
+		// when - the sweeper reaches a credit no debit touched
+		accountManager.credit("CUSTOMER_1", expiring(new CreditAmount(CASH, money(7), "TX_4"), 100));
+		Thread.sleep(150);
+		accountManager.sweepExpired();
+
+		// then - 4 credits, 2 expiries and a debit, the same after recovery
+		balance = accountManager.getBalance("CUSTOMER_1");
+		assert balance.getBalanceAmounts().get(CASH).size() == 1;
+		assert balance.getVersion() == 7;
+		accountManager.journal.close();
+		AccountManager recovered = newAccountManager(directory);
+		CustomerBalance recoveredBalance = recovered.getBalance("CUSTOMER_1");
+		assert recoveredBalance.getVersion() == 7;
+		assert recoveredBalance.getBalanceAmounts().equals(balance.getBalanceAmounts());
+		assert recovered.getCreditHistory("CUSTOMER_1").getCreditHistory().get(3).getExpired() != null;
+		recovered.journal.close();
+	}
+
+	@Test
+	public void testOffHeapStoreKeepsLedgers() throws Exception {
+		// given - enough customers to grow the index, and one history spanning many chunks
+		File directory = folder.newFolder();
+		File snapshots = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory, snapshots, 1 << 16, offHeapStore());
+		for (int i = 0; i < 1200; i++) {
+			accountManager.credit("CUSTOMER_" + i, new CreditAmount(GIFTCARD, money(10), "TX_1"));
+		}
+		for (int i = 2; i <= 600; i++) {
+			accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(1), "TX_" + i));
+		}
+		accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1", money(15)));
+		byte[] image = accountManager.detachAccount("CUSTOMER_7");
+		accountManager.attachAccount("CUSTOMER_7", image);
+
+		// when - snapshot and restarted
+		accountManager.snapshot();
+		accountManager.journal.close();
+		accountManager = newAccountManager(directory, snapshots, 1 << 16, offHeapStore());
+
+		// then
+		assert accountManager.getCustomerIds().size() == 1200;
+		assert accountManager.getCreditHistory("CUSTOMER_1").getCreditHistory().size() == 600;
+		assert accountManager.getCreditHistory("CUSTOMER_1").getCreditHistory().get(599).getTransactionId()
+				.equals("TX_600");
+		assert accountManager.getCreditHistory("CUSTOMER_1").getCreditHistory().get(5).getInvoiceIdList().get(0)
+				.equals("INV_1");
+		assert accountManager.getDebitHistory("CUSTOMER_1").getDebits().size() == 6;
+		assert accountManager.getBalance("CUSTOMER_1").getBalanceAmounts().get(CASH).size() == 594;
+		assert accountManager.getBalance("CUSTOMER_7").getBalanceAmounts().get(GIFTCARD).size() == 1;
+		assert accountManager.getBalance("CUSTOMER_1199").getBalanceAmounts().get(GIFTCARD).size() == 1;
+		accountManager.journal.close();
+	}
+
+	@Test(timeout = 60000)
+	public void testOffHeapHistoryReadWhileAccountRestored() throws Exception {
+		// given - an off-heap account with a long history, and its image as a replica imports it
+		AccountManager accountManager = newAccountManager(folder.newFolder(), null, 1 << 20, offHeapStore());
+		for (int i = 0; i < 200; i++) {
+			accountManager.credit("CUSTOMER_1", new CreditAmount(CASH, money(1), "TX_1_" + i));
+			accountManager.debit("CUSTOMER_1", new DebitAmount("INV_1_" + i, money(1)));
+		}
+		ByteArrayOutputStream export = new ByteArrayOutputStream();
+		accountManager.exportAccounts(new DataOutputStream(export));
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(export.toByteArray()));
+		int version = in.readInt();
+		in.readLong();
+		assert in.readBoolean() && in.readUTF().equals("CUSTOMER_1");
+		byte[] image = new byte[in.readInt()];
+		in.readFully(image);
+
+		// when - histories are read while the account is replaced over and over and another customer reuses the
+		// memory given back
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		AtomicBoolean restoring = new AtomicBoolean(true);
+		Thread reader = new Thread(() -> {
+			try {
+				while (restoring.get()) {
+					List<DebitLineItem> debits = accountManager.getDebitHistory("CUSTOMER_1").getDebits();
+					assert debits.size() == 200;
+					for (int i = 0; i < debits.size(); i++) {
+						assert debits.get(i).getInvoiceId().equals("INV_1_" + i);
+						assert debits.get(i).getTransactionId().equals("TX_1_" + i);
+					}
+					assert accountManager.getDebitHistoryPage("CUSTOMER_1", 10, null, HistoryOrder.NEWEST_FIRST)
+							.getDebits().get(0).getInvoiceId().equals("INV_1_199");
+				}
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		reader.start();
+		for (int i = 0; i < 300; i++) {
+			accountManager.restoreAccount("CUSTOMER_1", image, version);
+			accountManager.credit("CUSTOMER_2", new CreditAmount(CASH, money(1), "TX_2_" + i));
+			accountManager.debit("CUSTOMER_2", new DebitAmount("INV_2_" + i, money(1)));
+		}
+		restoring.set(false);
+		reader.join();
+
+		// then - every read saw the customer's own history
+		assert null == failure.get() : failure.get();
+		accountManager.journal.close();
+	}
+
+	@Test
+	public void testTieredStoreReloadsEvictedAccounts() throws Exception {
+		// given - ten times as many customers as the hot tier holds
+		File directory = folder.newFolder();
+		File snapshots = folder.newFolder();
+		TieredAccountStore store = new TieredAccountStore(accountExecutorService, 50, folder.newFolder(), 4096);
+		AccountManager accountManager = newAccountManager(directory, snapshots, 1 << 16, store);
+		for (int i = 0; i < 500; i++) {
+			accountManager.credit("CUSTOMER_" + i, new CreditAmount(GIFTCARD, money(10), "TX_1"));
+			accountManager.credit("CUSTOMER_" + i, new CreditAmount(CASH, money(i + 1), "TX_2"));
+		}
+
+		// when - evicted customers come back for a debit, a duplicate credit and a read
+		CustomerBalance debited = accountManager.debit("CUSTOMER_3", new DebitAmount("INV_1", money(5)));
+		CustomerBalance duplicate = accountManager.credit("CUSTOMER_4", new CreditAmount(CASH, money(4), "TX_2"));
+
+		// then
+		assert store.getEvictions() > 0;
+		assert store.getHotSize() < 100;
+		assert accountManager.getCustomerIds().size() == 500;
+		assert debited.getVersion() == 3;
+		assert debited.getBalanceAmounts().get(GIFTCARD).get(0).getAmount().compareTo(BigDecimal.valueOf(5)) == 0;
+		assert duplicate.getVersion() == 2;
+		assert accountManager.getBalance("CUSTOMER_0").getBalanceAmounts().get(GIFTCARD).size() == 1;
+		assert accountManager.getCreditHistory("CUSTOMER_250").getCreditHistory().get(1).getMoney().getAmount()
+				.compareTo(BigDecimal.valueOf(251)) == 0;
+		assert store.getLoads() > 0;
+
+		// when - snapshot, partly from cold images, and restarted
+		accountManager.snapshot();
+		accountManager.journal.close();
+		store = new TieredAccountStore(accountExecutorService, 50, folder.newFolder(), 4096);
+		accountManager = newAccountManager(directory, snapshots, 1 << 16, store);
+
+		// then
+		assert accountManager.getCustomerIds().size() == 500;
+		assert accountManager.getBalance("CUSTOMER_3").getVersion() == 3;
+		assert accountManager.getBalance("CUSTOMER_499").getBalanceAmounts().get(CASH).get(0).getAmount()
+				.compareTo(BigDecimal.valueOf(500)) == 0;
+		accountManager.journal.close();
+	}
+
+	private static CreditAmount expiring(CreditAmount creditAmount, long inMillis) {
+		creditAmount.setExpiresAt(Instant.now().plusMillis(inMillis));
+		return creditAmount;
+	}
+
+	@Test
+	public void testTieredStoreRecoversColdAccountsWithoutLoading() throws Exception {
+		// given - customers with credits expiring soon, snapshotted
+		File directory = folder.newFolder();
+		File snapshots = folder.newFolder();
+		AccountManager accountManager = newAccountManager(directory, snapshots, 1 << 16,
+				new TieredAccountStore(accountExecutorService, 50, folder.newFolder(), 4096));
+		for (int i = 0; i < 200; i++) {
+			accountManager.credit("CUSTOMER_" + i, expiring(new CreditAmount(GIFTCARD, money(10), "TX_1"), 1500));
+			accountManager.credit("CUSTOMER_" + i, new CreditAmount(CASH, money(i + 1), "TX_2"));
+		}
+		accountManager.snapshot();
+		accountManager.journal.close();
+
+		// when - restarted with most accounts in the cold tier
+		TieredAccountStore store = new TieredAccountStore(accountExecutorService, 50, folder.newFolder(), 4096);
+		accountManager = new AccountManager();
+		accountManager.accountStore = store;
+		accountManager.accountExecutorService = accountExecutorService;
+		accountManager.journal = new Journal(directory, 1 << 16, FsyncPolicy.ALWAYS, 10);
+		accountManager.snapshotStore = new SnapshotStore(snapshots, 2);
+		accountManager.expiryTickMillis = 10;
+		accountManager.recover();
+
+		// then - versions and balances are answered without reading cold accounts back
+		assert store.getColdSize() > 100;
+		assert accountManager.getVersion("CUSTOMER_0") == 2;
+		assert accountManager.getBalance("CUSTOMER_199").getBalanceAmounts().get(CASH).get(0).getAmount()
+				.compareTo(BigDecimal.valueOf(200)) == 0;
+		assert store.getLoads() == 0;
+
+		// when - the credits expire
+		Thread.sleep(1600);
+		accountManager.sweepExpired();
+
+		// then - the expiries scheduled on recovery reach the cold accounts too
+		CustomerBalance balance = accountManager.getBalance("CUSTOMER_0");
+		assert balance.getVersion() == 3;
+		assert balance.getBalanceAmounts().get(GIFTCARD).isEmpty();
+		assert accountManager.getVersion("CUSTOMER_199") == 3;
+		accountManager.journal.close();
+	}
+
+	private AccountManager newAccountManager(File directory) throws Exception {
+		return newAccountManager(directory, null, 1 << 16);
+	}
+
+	private AccountManager newAccountManager(File directory, File snapshots, int segmentSize) throws Exception {
+		return newAccountManager(directory, snapshots, segmentSize, new HeapAccountStore());
+	}
+
+	private AccountManager newAccountManager(File directory, File snapshots, int segmentSize,
+											 AccountStore accountStore) throws Exception {
+		AccountManager accountManager = new AccountManager();
+		accountManager.accountStore = accountStore;
+		accountManager.accountExecutorService = accountExecutorService;
+		accountManager.journal = new Journal(directory, segmentSize, FsyncPolicy.ALWAYS, 10);
+		accountManager.snapshotStore = null == snapshots ? null : new SnapshotStore(snapshots, 2);
+		accountManager.recover();
+		return accountManager;
+	}
+
+	private static AccountStore offHeapStore() {
+		return new OffHeapAccountStore(new OffHeapArena(1 << 16));
+	}
+
+	private static Money money(long amount) {
+		return new Money(BigDecimal.valueOf(amount), USD.toString());
+	}
+}
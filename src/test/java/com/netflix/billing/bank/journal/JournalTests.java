@@ -0,0 +1,208 @@
+package com.netflix.billing.bank.journal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.netflix.billing.bank.controller.wire.credit.CreditType.GIFTCARD;
+
+public class JournalTests {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test(timeout = 30000)
+	public void testAppendsWhileResponsesRun() throws Exception {
+		// given - a response to a durable append that waits for another append, attached before the flusher can
+		// complete it so that the flusher runs it
+		Journal journal = new Journal(folder.newFolder(), 4096, FsyncPolicy.ALWAYS, 10);
+		CountDownLatch appended = new CountDownLatch(1);
+		CompletableFuture<Long> responded;
+		synchronized (journal) {
+			responded = journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_1", 1, "USD", 1))
+					.thenApply(lsn -> {
+						try {
+							appended.await();
+						} catch (InterruptedException e) {
+							throw new Error(e);
+						}
+						return lsn;
+					});
+		}
+
+		// when - the other append is made while that response runs
+		Thread.sleep(100);
+		journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_2", 1, "USD", 2));
+		appended.countDown();
+
+		// then - neither waits for the other
+		assert responded.get(10, TimeUnit.SECONDS) == 1;
+		journal.close();
+	}
+
+	@Test
+	public void testReplayAcrossSegments() throws Exception {
+		// given - segments small enough to hold a handful of records
+		File directory = folder.newFolder();
+		Journal journal = new Journal(directory, 512, FsyncPolicy.ALWAYS, 10);
+		List<CompletableFuture<Long>> durable = new ArrayList<>();
+
+		// when
+		for (int i = 0; i < 100; i++) {
+			durable.add(journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_" + i, i, "USD", i)));
+		}
+		durable.add(journal.append(JournalRecord.debit("CUSTOMER_1", "INV_1", 50, "USD", 100)));
+		// then - group commit acknowledges every append
+		for (CompletableFuture<Long> future : durable) {
+			assert future.get(10, TimeUnit.SECONDS) > 0;
+		}
+		journal.close();
+		assert directory.listFiles().length > 1;
+
+		// when - reopened
+		journal = new Journal(directory, 512, FsyncPolicy.ALWAYS, 10);
+		List<JournalRecord> records = new ArrayList<>();
+		long lastLsn = journal.replay(records::add);
+
+		// then
+		assert lastLsn == 101;
+		assert records.size() == 101;
+		for (int i = 0; i < 100; i++) {
+			assert records.get(i).getLsn() == i + 1;
+			assert records.get(i).getType() == JournalRecord.Type.CREDIT;
+			assert records.get(i).getId().equals("TX_" + i);
+			assert records.get(i).getUnits() == i;
+		}
+		assert records.get(100).getType() == JournalRecord.Type.DEBIT;
+		assert records.get(100).getCreditType() == null;
+
+		// appends continue after the last record
+		assert journal.append(JournalRecord.debit("CUSTOMER_1", "INV_2", 1, "USD", 101)).get() == 102;
+		journal.close();
+	}
+
+	@Test
+	public void testTornRecordEndsReplay() throws Exception {
+		// given
+		File directory = folder.newFolder();
+		Journal journal = new Journal(directory, 4096, FsyncPolicy.OS, 10);
+		journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_1", 10, "USD", 1));
+		journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_2", 10, "USD", 2));
+		journal.close();
+
+		// when - corrupt the body of the second record
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			int firstSize = raf.readInt();
+			raf.seek(8 + firstSize + 8 + 4);
+			raf.writeByte(0x7f);
+		}
+		journal = new Journal(directory, 4096, FsyncPolicy.OS, 10);
+		List<JournalRecord> records = new ArrayList<>();
+		journal.replay(records::add);
+
+		// then - the torn record is dropped and overwritten by the next append
+		assert records.size() == 1;
+		assert journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_3", 10, "USD", 3)).get() == 2;
+		journal.close();
+	}
+
+	@Test
+	public void testStaleRecordsBeyondTornWriteNotReplayed() throws Exception {
+		// given - six records, the third torn
+		File directory = folder.newFolder();
+		Journal journal = new Journal(directory, 4096, FsyncPolicy.OS, 10);
+		for (int i = 1; i <= 6; i++) {
+			journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_" + i, 10, "USD", i));
+		}
+		journal.close();
+		int size = JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_1", 10, "USD", 1).encodedSize();
+		File segment = directory.listFiles()[0];
+		try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+			raf.seek(2 * (8 + size));
+			raf.writeInt(0);
+		}
+
+		// when - reopened, a record as long as the old third and fourth together takes the third's place
+		journal = new Journal(directory, 4096, FsyncPolicy.OS, 10);
+		StringBuilder id = new StringBuilder("TX_3");
+		while (JournalRecord.credit("CUSTOMER_1", GIFTCARD, id.toString(), 10, "USD", 3).encodedSize() < 2 * size + 8) {
+			id.append('X');
+		}
+		assert journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, id.toString(), 10, "USD", 3)).get() == 3;
+		journal.close();
+		journal = new Journal(directory, 4096, FsyncPolicy.OS, 10);
+		List<JournalRecord> records = new ArrayList<>();
+		long lastLsn = journal.replay(records::add);
+
+		// then - the old fifth and sixth records that follow it are not part of the journal anymore
+		assert lastLsn == 3;
+		assert records.size() == 3;
+		assert records.get(2).getId().equals(id.toString());
+		assert journal.read(0, 100).size() == 3;
+		assert journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_4", 10, "USD", 4)).get() == 4;
+		journal.close();
+	}
+
+	@Test
+	public void testReadFromAnyLsn() throws Exception {
+		// given
+		Journal journal = new Journal(folder.newFolder(), 1 << 16, FsyncPolicy.OS, 10);
+		for (int i = 1; i <= 2000; i++) {
+			journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_" + i, i, "USD", i));
+		}
+
+		// when
+		List<JournalRecord> middle = journal.read(700, 5);
+		journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_2001", 2001, "USD", 2001));
+		List<JournalRecord> tail = journal.read(1999, 100);
+
+		// then - records in sequence across segments, including those appended after the last read
+		assert middle.size() == 5;
+		for (int i = 0; i < 5; i++) {
+			assert middle.get(i).getLsn() == 701 + i;
+			assert middle.get(i).getId().equals("TX_" + (701 + i));
+		}
+		assert tail.size() == 2;
+		assert tail.get(1).getLsn() == 2001;
+		assert journal.read(2001, 100).isEmpty();
+		journal.close();
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+		// given
+		File directory = folder.newFolder();
+		Journal journal = new Journal(directory, 256, FsyncPolicy.INTERVAL, 1);
+		for (int i = 0; i < 50; i++) {
+			journal.append(JournalRecord.credit("CUSTOMER_1", GIFTCARD, "TX_" + i, i, "USD", i));
+		}
+
+		// when
+		journal.truncate(40);
+		List<JournalRecord> records = new ArrayList<>();
+		journal.replay(40, records::add);
+
+		// then
+		assert records.size() == 10;
+		assert records.get(0).getLsn() == 41;
+
+		// when - a replica asks for records that were truncated
+		int files = directory.listFiles().length;
+		List<JournalRecord> shipped = journal.read(5, 100);
+
+		// then - refused, and no deleted segment was brought back
+		assert null == shipped;
+		assert directory.listFiles().length == files;
+		assert journal.getFirstLsn() > 6;
+		journal.close();
+	}
+}
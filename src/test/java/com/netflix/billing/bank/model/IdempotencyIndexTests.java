@@ -0,0 +1,84 @@
+package com.netflix.billing.bank.model;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+public class IdempotencyIndexTests {
+
+	@Test
+	public void testExactWithinWindow() {
+		// given
+		IdempotencyIndex index = new IdempotencyIndex(1000, 0);
+
+		// when
+		for (int i = 0; i < 1000; i++) {
+			index.add(1, "TX_" + i, i);
+		}
+		index.add(0, "INV_€", 0);
+		index.add(2, null, 0);
+
+		// then - every id is found in its own namespace only
+		for (int i = 0; i < 1000; i++) {
+			assert index.contains(1, "TX_" + i);
+			assert !index.contains(2, "TX_" + i);
+		}
+		assert !index.contains(1, "TX_1000");
+		assert index.contains(0, "INV_€");
+		assert !index.contains(0, "INV_");
+		assert index.contains(2, null);
+		assert !index.contains(1, null);
+	}
+
+	@Test
+	public void testBoundedByCapacityAndRetention() {
+		// given
+		IdempotencyIndex index = new IdempotencyIndex(100, 1000);
+
+		// when - three generations by count
+		for (int i = 0; i < 300; i++) {
+			index.add(1, "TX_" + i, 0);
+		}
+
+		// then - the last capacity ids are always remembered, the oldest generation is gone
+		assert index.size() == 200;
+		assert !index.contains(1, "TX_0");
+		for (int i = 200; i < 300; i++) {
+			assert index.contains(1, "TX_" + i);
+		}
+
+		// when - two retention periods later
+		index.add(1, "TX_300", 1000);
+		index.add(1, "TX_301", 2000);
+
+		// then
+		assert !index.contains(1, "TX_299");
+		assert index.contains(1, "TX_300");
+		assert index.contains(1, "TX_301");
+	}
+
+	@Test
+	public void testSnapshotRoundTrip() throws Exception {
+		// given
+		IdempotencyIndex index = new IdempotencyIndex(50, 0);
+		for (int i = 0; i < 80; i++) {
+			index.add(i % 4, "ID_" + i, i);
+		}
+
+		// when
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		index.writeTo(new DataOutputStream(bytes));
+		IdempotencyIndex restored = new IdempotencyIndex(50, 0);
+		restored.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+		// then
+		assert restored.size() == 80;
+		for (int i = 0; i < 80; i++) {
+			assert restored.contains(i % 4, "ID_" + i);
+			assert !restored.contains((i + 1) % 4, "ID_" + i);
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.netflix.billing.bank.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class TimingWheelTests {
+
+	@Test
+	public void testItemsDueOnceTheirDeadlinePassed() {
+		// given - deadlines on every level of a wheel with 10ms ticks, and one past its span
+		TimingWheel<Long> wheel = new TimingWheel<>(10, 0);
+		Random random = new Random(42);
+		List<Long> deadlines = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			deadlines.add((long) random.nextInt(1 << (2 * i % 40)) + 1);
+		}
+		deadlines.add(Long.MAX_VALUE / 2);
+		for (long deadline : deadlines) {
+			wheel.schedule(deadline, deadline);
+		}
+
+		// when - advancing in uneven steps
+		List<Long> due = new ArrayList<>();
+		long now = 0;
+		while (now < 1L << 40) {
+			now += 1 + random.nextInt(now < 1 << 20 ? 100 : 1 << 30);
+			for (long deadline : wheel.advance(now)) {
+				// then - never early, and at most a tick late
+				assert deadline <= now;
+				assert deadline > now - 10 - (1 << 30);
+				due.add(deadline);
+			}
+		}
+
+		// then
+		assert due.size() == deadlines.size() - 1;
+		assert wheel.size() == 1;
+	}
+}
@@ -0,0 +1,58 @@
+package com.netflix.billing.bank.model;
+
+import org.junit.Test;
+
+public class WindowTinyLfuTests {
+
+	@Test
+	public void testFrequentKeysSurviveAScan() {
+		// given - a full cache of keys used over and over
+		WindowTinyLfu<String> policy = new WindowTinyLfu<>(100);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 100; i++) {
+				if (!policy.access("HOT_" + i)) {
+					assert null == policy.add("HOT_" + i);
+				}
+			}
+		}
+
+		// when - five times as many keys used once each, within the sample the sketch ages over
+		int evictedHot = 0;
+		for (int i = 0; i < 500; i++) {
+			String evicted = policy.add("ONCE_" + i);
+			if (null != evicted && evicted.startsWith("HOT_")) {
+				evictedHot++;
+			}
+		}
+
+		// then - bar the window's share and the odd overestimate of the sketch, they made room for each other
+		assert policy.size() == 100;
+		assert evictedHot <= 5;
+		int held = 0;
+		for (int i = 0; i < 100; i++) {
+			held += policy.contains("HOT_" + i) ? 1 : 0;
+		}
+		assert held >= 95;
+	}
+
+	@Test
+	public void testKeyComingBackIsAdmitted() {
+		// given
+		WindowTinyLfu<String> policy = new WindowTinyLfu<>(100);
+		for (int i = 0; i < 100; i++) {
+			policy.add("KEY_" + i);
+		}
+
+		// when - a new key is used more often than the ones held
+		for (int i = 0; i < 3; i++) {
+			policy.access("NEW");
+		}
+		String evicted = policy.add("NEW");
+		policy.add("NEXT");
+
+		// then
+		assert null != evicted && !evicted.equals("NEW");
+		assert policy.contains("NEW");
+		assert policy.size() == 100;
+	}
+}